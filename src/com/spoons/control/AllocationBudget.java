@@ -0,0 +1,288 @@
+/*
+ * com.spoons.control
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.control;
+
+import com.spoons.filter.EriqFilter;
+import com.spoons.filter.FilterRuntime;
+import com.spoons.filter.StagedFilter;
+import com.spoons.filter.TextFilter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Measure how many bytes each filter (and each stage of the EriqFilter, see
+ *  EriqFilter.stages()) allocates per post, and fail if it is over budget.
+ * Allocation is what drives GC, and GC is what drives our tail latency, so this
+ *  catches allocation regressions (in SmartSplitString, LocationFilter, ...)
+ *  before they ship.
+ *
+ * Every filter is warmed up first (FilterRuntime.warmUp()) so the numbers are
+ *  for JIT compiled code. Bytes are counted with
+ *  com.sun.management.ThreadMXBean.getThreadAllocatedBytes() on the one thread
+ *  doing all the filtering, and the GC count and time are taken around each run.
+ * GCs cannot be pinned on a single stage, so the stage rows have none, and
+ *  the "[filter].stages" row has the bytes and GCs of all the stages together.
+ *
+ * The budget file is a properties file of max bytes per post, keyed by filter
+ *  name ("eriq") or filter and stage ("eriq.locations"). Anything not in it has
+ *  no budget.
+ *
+ * Usage:
+ *  AllocationBudget [corpus] [budget file] [passes]
+ * Exits with 2 if anything is over budget.
+ */
+public class AllocationBudget {
+   private static final String[] FILTER_NAMES = {"none", "basic", "eriq"};
+   private static final int DEFAULT_PASSES = 3;
+   private static final int WARM_UP_PASSES = 20;
+
+   private final com.sun.management.ThreadMXBean threads;
+   private final long threadId;
+
+   private List<String> corpus;
+   private int passes;
+   private Properties budget;
+
+   /**
+    * The cost of a getThreadAllocatedBytes() pair, taken off every stage measurement.
+    */
+   private long overhead;
+
+   private List<String> overBudget;
+
+   public static void main(String[] args) throws IOException {
+      if (args.length < 1) {
+         System.err.println("USAGE: AllocationBudget <corpus> [budget file] [passes]");
+         System.exit(1);
+      }
+
+      Properties budget = new Properties();
+      if (args.length > 1) {
+         InputStream inputStream = new FileInputStream(args[1]);
+         try {
+            budget.load(inputStream);
+         } finally {
+            inputStream.close();
+         }
+      }
+
+      int passes = DEFAULT_PASSES;
+      if (args.length > 2) {
+         passes = Integer.parseInt(args[2]);
+      }
+
+      List<String> corpus = Files.readAllLines(new File(args[0]).toPath(), StandardCharsets.UTF_8);
+
+      AllocationBudget measure = new AllocationBudget(corpus, budget, passes);
+      List<String> failures = measure.run();
+
+      if (!failures.isEmpty()) {
+         System.err.println("Over budget:");
+         for (String failure : failures) {
+            System.err.println("   " + failure);
+         }
+         System.exit(2);
+      }
+
+      System.exit(0);
+   }
+
+   public AllocationBudget(List<String> corpus, Properties budget, int passes) {
+      if (corpus.isEmpty()) {
+         throw new IllegalArgumentException("The corpus is empty.");
+      }
+
+      if (passes < 1) {
+         throw new IllegalArgumentException("Need at least one pass.");
+      }
+
+      if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+         throw new IllegalStateException("This JVM cannot count allocated bytes.");
+      }
+
+      threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+      if (!threads.isThreadAllocatedMemorySupported()) {
+         throw new IllegalStateException("This JVM cannot count allocated bytes.");
+      }
+      threads.setThreadAllocatedMemoryEnabled(true);
+
+      threadId = Thread.currentThread().getId();
+
+      this.corpus = corpus;
+      this.budget = budget;
+      this.passes = passes;
+   }
+
+   /**
+    * Measure every filter (on this thread), print a report.
+    *
+    * @return A description of everything that is over budget.
+    */
+   public List<String> run() {
+      overBudget = new ArrayList<String>();
+      overhead = measureOverhead();
+
+      FilterRuntime.loadAll();
+      System.out.println(String.format("%d posts x %d passes", corpus.size(), passes));
+      System.out.println(String.format("%-20s %14s %10s %10s", "", "bytes/post", "GCs", "GC ms"));
+
+      for (String name : FILTER_NAMES) {
+         TextFilter filter = TextFilter.forName(name);
+         FilterRuntime.warmUp(filter, corpus, WARM_UP_PASSES);
+
+         measureFilter(name, filter);
+
+         if (filter instanceof EriqFilter) {
+            measureStages(name, ((EriqFilter)filter).stages());
+         }
+      }
+
+      return overBudget;
+   }
+
+   private void measureFilter(String name, TextFilter filter) {
+      long gcCount = gcCount();
+      long gcMillis = gcMillis();
+      long start = allocated();
+
+      for (int pass = 0; pass < passes; pass++) {
+         for (String post : corpus) {
+            filter.splitFilter(post);
+         }
+      }
+
+      long bytes = allocated() - start;
+      report(name, bytes, gcCount() - gcCount, gcMillis() - gcMillis);
+   }
+
+   private void measureStages(String name, List<StagedFilter.Stage> stages) {
+      // Warm the stages up on their own too, the call sites are different.
+      for (int pass = 0; pass < WARM_UP_PASSES; pass++) {
+         runStages(stages, null);
+      }
+
+      long[] bytes = new long[stages.size()];
+      long gcCount = gcCount();
+      long gcMillis = gcMillis();
+
+      for (int pass = 0; pass < passes; pass++) {
+         runStages(stages, bytes);
+      }
+
+      long gcs = gcCount() - gcCount;
+      long gcTime = gcMillis() - gcMillis;
+      long total = 0;
+      for (int ndx = 0; ndx < stages.size(); ndx++) {
+         // GCs can not be pinned on a stage, so they are only on the total.
+         report(name + "." + stages.get(ndx).getName(), bytes[ndx], -1, -1);
+         total += bytes[ndx];
+      }
+
+      report(name + ".stages", total, gcs, gcTime);
+   }
+
+   /**
+    * Run the corpus through the stages one by one, adding the allocation of
+    *  each stage to bytes (if it is not null).
+    */
+   private void runStages(List<StagedFilter.Stage> stages, long[] bytes) {
+      for (String post : corpus) {
+         Object value = post;
+
+         for (int ndx = 0; ndx < stages.size(); ndx++) {
+            if (bytes == null) {
+               value = stages.get(ndx).process(value);
+               continue;
+            }
+
+            long start = allocated();
+            value = stages.get(ndx).process(value);
+            bytes[ndx] += Math.max(0, allocated() - start - overhead);
+         }
+      }
+   }
+
+   private void report(String name, long bytes, long gcs, long gcMillis) {
+      double perPost = (double)bytes / ((long)corpus.size() * passes);
+
+      System.out.println(String.format("%-20s %14.1f %10s %10s", name, perPost,
+                                       gcs < 0 ? "" : Long.toString(gcs),
+                                       gcMillis < 0 ? "" : Long.toString(gcMillis)));
+
+      String limit = budget.getProperty(name);
+      if (limit != null && perPost > Double.parseDouble(limit.trim())) {
+         overBudget.add(String.format("%s: %.1f bytes/post (budget %s)", name, perPost, limit.trim()));
+      }
+   }
+
+   private long allocated() {
+      return threads.getThreadAllocatedBytes(threadId);
+   }
+
+   /**
+    * What allocated() itself costs, as seen by allocated().
+    */
+   private long measureOverhead() {
+      long rtn = Long.MAX_VALUE;
+      for (int ndx = 0; ndx < 10000; ndx++) {
+         long start = allocated();
+         rtn = Math.min(rtn, allocated() - start);
+      }
+
+      return rtn;
+   }
+
+   private static long gcCount() {
+      long rtn = 0;
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+         rtn += Math.max(0, gc.getCollectionCount());
+      }
+
+      return rtn;
+   }
+
+   private static long gcMillis() {
+      long rtn = 0;
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+         rtn += Math.max(0, gc.getCollectionTime());
+      }
+
+      return rtn;
+   }
+}
@@ -0,0 +1,277 @@
+/*
+ * com.spoons.control
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.control;
+
+import com.spoons.filter.FilterRuntime;
+import com.spoons.filter.TextFilter;
+import com.spoons.filter.Utf8LineFilter;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A small embedded HTTP server for the filters so that they can be used without
+ *  starting a JVM per batch.
+ *
+ * Endpoints (all POST, UTF-8 bodies):
+ *  /filter/{name} - The body is a single post, the response is the filtered post.
+ *  /batch/{name}  - The body is newline separated posts, the response is the
+ *                   newline separated filtered posts (streamed through Utf8LineFilter).
+ * Where {name} is one of "none", "basic", or "eriq".
+ *
+ * Every request gets its own virtual thread when the JVM has them (Java 21+),
+ *  otherwise a cached thread pool is used.
+ * All requests share the same filters, and therefore the same location,
+ *  stop word, and emoticon structures.
+ * They are all loaded, and the filters warmed up, before the first request is
+ *  taken (see FilterRuntime).
+ */
+public class FilterServer {
+   private static final int DEFAULT_PORT = 8080;
+
+   private static final String FILTER_PATH = "/filter/";
+   private static final String BATCH_PATH = "/batch/";
+
+   private static final String[] FILTER_NAMES = {"none", "basic", "eriq"};
+
+   private HttpServer server;
+   private ExecutorService executor;
+
+   /**
+    * The filters available to the endpoints, keyed by name.
+    */
+   private Map<String, TextFilter> filters;
+
+   /**
+    * Posts to warm the filters up with before starting, null for the default ones.
+    */
+   private File warmUpCorpus;
+   private int warmUpPasses;
+
+   /**
+    * Start the server: "FilterServer [port [warm up corpus [warm up passes]]]".
+    */
+   public static void main(String[] args) throws IOException {
+      int port = DEFAULT_PORT;
+      if (args.length > 0) {
+         port = Integer.parseInt(args[0]);
+      }
+
+      FilterServer server = new FilterServer(port);
+      if (args.length > 1) {
+         int passes = FilterRuntime.DEFAULT_WARM_UP_PASSES;
+         if (args.length > 2) {
+            passes = Integer.parseInt(args[2]);
+         }
+         server.setWarmUp(new File(args[1]), passes);
+      }
+
+      server.start();
+      System.out.print(FilterRuntime.report());
+      System.out.println("Filtering on port " + port);
+   }
+
+   public FilterServer(int port) throws IOException {
+      filters = new HashMap<String, TextFilter>();
+      for (String name : FILTER_NAMES) {
+         filters.put(name, TextFilter.forName(name));
+      }
+
+      server = HttpServer.create(new InetSocketAddress(port), 0);
+      server.createContext(FILTER_PATH, new FilterHandler());
+      server.createContext(BATCH_PATH, new BatchHandler());
+
+      warmUpCorpus = null;
+      warmUpPasses = FilterRuntime.DEFAULT_WARM_UP_PASSES;
+   }
+
+   /**
+    * Warm the filters up with the posts in corpus (instead of the default ones)
+    *  before starting.
+    * Zero passes turns warming up off.
+    */
+   public void setWarmUp(File corpus, int passes) {
+      warmUpCorpus = corpus;
+      warmUpPasses = passes;
+   }
+
+   /**
+    * Load all the shared structures, warm up the filters, and start taking requests.
+    */
+   public void start() throws IOException {
+      FilterRuntime.loadAll();
+
+      if (warmUpPasses > 0) {
+         for (TextFilter filter : filters.values()) {
+            if (warmUpCorpus == null) {
+               FilterRuntime.warmUp(filter);
+            } else {
+               FilterRuntime.warmUp(filter, warmUpCorpus, warmUpPasses);
+            }
+         }
+      }
+
+      executor = newPerRequestExecutor();
+      server.setExecutor(executor);
+      server.start();
+   }
+
+   /**
+    * Stop taking requests, give the current ones up to delaySec seconds to finish.
+    */
+   public void stop(int delaySec) {
+      server.stop(delaySec);
+      executor.shutdown();
+   }
+
+   /**
+    * Use a virtual thread per request if this JVM supports it.
+    * Looked up reflectively so that we still build and run on older JVMs.
+    */
+   private static ExecutorService newPerRequestExecutor() {
+      try {
+         return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+      } catch (ReflectiveOperationException ex) {
+         return Executors.newCachedThreadPool();
+      }
+   }
+
+   /**
+    * Get the filter named by the last part of the request path, or send a 404.
+    *
+    * @return The filter, or null if there is no such filter (and the response is sent).
+    */
+   private TextFilter getFilter(HttpExchange exchange, String prefix) throws IOException {
+      if (!"POST".equals(exchange.getRequestMethod())) {
+         sendError(exchange, 405, "POST only");
+         return null;
+      }
+
+      String name = exchange.getRequestURI().getPath().substring(prefix.length());
+      TextFilter filter = filters.get(name);
+      if (filter == null) {
+         sendError(exchange, 404, "Unknown filter: " + name);
+      }
+
+      return filter;
+   }
+
+   /**
+    * Whether the response headers have been sent (after which no error can be sent).
+    */
+   private static boolean headersSent(HttpExchange exchange) {
+      return exchange.getResponseCode() != -1;
+   }
+
+   private static void sendError(HttpExchange exchange, int code, String message)
+    throws IOException {
+      byte[] body = message.getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(code, body.length);
+      exchange.getResponseBody().write(body);
+      exchange.close();
+   }
+
+   private class FilterHandler implements HttpHandler {
+      public void handle(HttpExchange exchange) throws IOException {
+         try {
+            TextFilter filter = getFilter(exchange, FILTER_PATH);
+            if (filter == null) {
+               return;
+            }
+
+            String post = new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8);
+            byte[] body = filter.filter(post).getBytes(StandardCharsets.UTF_8);
+
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+         } catch (Exception ex) {
+            Logger.logError("Error filtering a post.", ex);
+            // If the body was being written, the client just gets a short response.
+            if (!headersSent(exchange)) {
+               sendError(exchange, 500, "Error filtering the post");
+            }
+         } finally {
+            exchange.close();
+         }
+      }
+   }
+
+   private class BatchHandler implements HttpHandler {
+      public void handle(HttpExchange exchange) throws IOException {
+         try {
+            TextFilter filter = getFilter(exchange, BATCH_PATH);
+            if (filter == null) {
+               return;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            // Chunked, the response is streamed out as the posts are filtered.
+            exchange.sendResponseHeaders(200, 0);
+
+            OutputStream output = exchange.getResponseBody();
+            new Utf8LineFilter(filter).filter(exchange.getRequestBody(), output);
+         } catch (Exception ex) {
+            Logger.logError("Error filtering a batch.", ex);
+            // Once the headers are gone, all we can do is cut the response short.
+            if (!headersSent(exchange)) {
+               sendError(exchange, 500, "Error filtering the batch");
+            }
+         } finally {
+            exchange.close();
+         }
+      }
+   }
+
+   private static byte[] readAll(InputStream input) throws IOException {
+      ByteArrayOutputStream rtn = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+
+      while ((read = input.read(buffer)) != -1) {
+         rtn.write(buffer, 0, read);
+      }
+
+      return rtn.toByteArray();
+   }
+}
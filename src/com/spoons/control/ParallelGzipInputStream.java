@@ -0,0 +1,283 @@
+/*
+ * com.spoons.control
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.control;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * A gzip InputStream that inflates on several threads when it can.
+ *
+ * Files written by ParallelGzipOutputStream record the size of every gzip member,
+ *  so the members can be read off the underlying stream without inflating them
+ *  and inflated in parallel (several members ahead of the reader).
+ * As soon as a member without a recorded size shows up (any other gzip file),
+ *  the rest of the stream is read with a plain GZIPInputStream, which also
+ *  handles multiple members.
+ */
+public class ParallelGzipInputStream extends InputStream {
+   private InputStream in;
+   private ExecutorService inflaters;
+   private int maxPending;
+
+   /**
+    * The members being inflated, in order.
+    */
+   private ArrayDeque<Future<byte[]>> pending;
+
+   /**
+    * Set once a member without a recorded size has been found.
+    */
+   private InputStream fallback;
+
+   private boolean endOfMembers;
+
+   private byte[] current;
+   private int currentPos;
+
+   public ParallelGzipInputStream(InputStream in, int threads) {
+      if (threads < 1) {
+         throw new IllegalArgumentException("threads must be positive.");
+      }
+
+      this.in = in;
+      maxPending = threads * 2;
+      pending = new ArrayDeque<Future<byte[]>>();
+      fallback = null;
+      endOfMembers = false;
+      current = new byte[0];
+      currentPos = 0;
+
+      inflaters = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+         public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ParallelGzipInputStream");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+   }
+
+   public ParallelGzipInputStream(InputStream in) {
+      this(in, Runtime.getRuntime().availableProcessors());
+   }
+
+   public int read() throws IOException {
+      byte[] single = new byte[1];
+      int read = read(single, 0, 1);
+      return read == -1 ? -1 : (single[0] & 0xFF);
+   }
+
+   public int read(byte[] bytes, int offset, int length) throws IOException {
+      if (length == 0) {
+         return 0;
+      }
+
+      while (currentPos == current.length) {
+         if (!nextMember()) {
+            if (fallback != null) {
+               return fallback.read(bytes, offset, length);
+            }
+
+            return -1;
+         }
+      }
+
+      int toCopy = Math.min(length, current.length - currentPos);
+      System.arraycopy(current, currentPos, bytes, offset, toCopy);
+      currentPos += toCopy;
+
+      return toCopy;
+   }
+
+   public void close() throws IOException {
+      inflaters.shutdownNow();
+      if (fallback != null) {
+         fallback.close();
+      } else {
+         in.close();
+      }
+   }
+
+   /**
+    * Move on to the next inflated member.
+    *
+    * @return false if there are no more members.
+    */
+   private boolean nextMember() throws IOException {
+      while (!endOfMembers && fallback == null && pending.size() < maxPending) {
+         readMember();
+      }
+
+      if (pending.isEmpty()) {
+         return false;
+      }
+
+      try {
+         current = pending.poll().get();
+         currentPos = 0;
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while inflating.", ex);
+      } catch (ExecutionException ex) {
+         throw new IOException("Error inflating a gzip member.", ex.getCause());
+      }
+
+      return true;
+   }
+
+   /**
+    * Read the next member off of the stream and start inflating it.
+    * If the member does not have its size recorded, switch over to the fallback.
+    */
+   private void readMember() throws IOException {
+      byte[] header = new byte[ParallelGzipOutputStream.HEADER_SIZE];
+      int headerLength = readFully(in, header, 0, header.length);
+
+      if (headerLength == 0) {
+         endOfMembers = true;
+         return;
+      }
+
+      boolean sized = headerLength == header.length &&
+                      (header[0] & 0xFF) == 0x1F && (header[1] & 0xFF) == 0x8B &&
+                      header[3] == 4 && header[10] == 8 && header[11] == 0 &&
+                      header[12] == ParallelGzipOutputStream.SUBFIELD_1 &&
+                      header[13] == ParallelGzipOutputStream.SUBFIELD_2;
+
+      if (!sized) {
+         // Put back what we took and let GZIPInputStream deal with the rest.
+         fallback = new GZIPInputStream(new SequenceInputStream(
+               new ByteArrayInputStream(header, 0, headerLength), in), 1 << 16);
+         return;
+      }
+
+      int memberSize = getIntLE(header, 16);
+      if (memberSize < ParallelGzipOutputStream.HEADER_SIZE +
+                       ParallelGzipOutputStream.TRAILER_SIZE ||
+          memberSize > ParallelGzipOutputStream.MAX_MEMBER_SIZE) {
+         throw new IOException("Bad gzip member size: " + memberSize + ".");
+      }
+
+      // Grow the buffer as the bytes actually show up so that a bad size
+      //  runs out of input long before it runs out of memory.
+      byte[] read = Arrays.copyOf(header, Math.min(memberSize, 1 << 16));
+      int size = header.length;
+      while (size < memberSize) {
+         if (size == read.length) {
+            read = Arrays.copyOf(read, (int)Math.min(memberSize, 2L * read.length));
+         }
+
+         int count = readFully(in, read, size, read.length - size);
+         if (count == 0) {
+            throw new IOException("Truncated gzip member.");
+         }
+         size += count;
+      }
+      final byte[] member = read;
+
+      pending.add(inflaters.submit(new Callable<byte[]>() {
+         public byte[] call() throws IOException {
+            return inflateMember(member);
+         }
+      }));
+   }
+
+   private static byte[] inflateMember(byte[] member) throws IOException {
+      int dataStart = ParallelGzipOutputStream.HEADER_SIZE;
+      int dataEnd = member.length - ParallelGzipOutputStream.TRAILER_SIZE;
+      int expectedCrc = getIntLE(member, dataEnd);
+      int inflatedSize = getIntLE(member, dataEnd + 4);
+      if (inflatedSize < 0 || inflatedSize > ParallelGzipOutputStream.MAX_BLOCK_SIZE) {
+         throw new IOException("Bad gzip member length: " + inflatedSize + ".");
+      }
+      byte[] rtn = new byte[inflatedSize];
+
+      Inflater inflater = new Inflater(true);
+      try {
+         inflater.setInput(member, dataStart, dataEnd - dataStart);
+         int size = 0;
+         while (size < rtn.length && !inflater.finished()) {
+            int inflated = inflater.inflate(rtn, size, rtn.length - size);
+            if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+               break;
+            }
+            size += inflated;
+         }
+
+         if (size != rtn.length) {
+            throw new IOException("Corrupt gzip member.");
+         }
+      } catch (DataFormatException ex) {
+         throw new IOException("Corrupt gzip member.", ex);
+      } finally {
+         inflater.end();
+      }
+
+      CRC32 crc = new CRC32();
+      crc.update(rtn, 0, rtn.length);
+      if ((int)crc.getValue() != expectedCrc) {
+         throw new IOException("Gzip member failed its CRC check.");
+      }
+
+      return rtn;
+   }
+
+   private static int readFully(InputStream in, byte[] bytes, int offset, int length)
+    throws IOException {
+      int total = 0;
+      while (total < length) {
+         int read = in.read(bytes, offset + total, length - total);
+         if (read == -1) {
+            break;
+         }
+         total += read;
+      }
+
+      return total;
+   }
+
+   private static int getIntLE(byte[] bytes, int offset) {
+      return (bytes[offset] & 0xFF) | ((bytes[offset + 1] & 0xFF) << 8) |
+             ((bytes[offset + 2] & 0xFF) << 16) | ((bytes[offset + 3] & 0xFF) << 24);
+   }
+}
@@ -0,0 +1,274 @@
+/*
+ * com.spoons.control
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.control;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A gzip OutputStream that compresses on several threads.
+ *
+ * The data is cut into blocks and every block is compressed on its own as a
+ *  complete gzip member. Concatenated members are still a normal gzip file
+ *  (gunzip and GZIPInputStream read them fine), but the blocks can be compressed
+ *  at the same time and written out in order.
+ * Every member also carries its own compressed size in a gzip extra field
+ *  (subfield "SP", like the "BC" subfield of BGZF), which lets
+ *  ParallelGzipInputStream find the members without inflating them, and
+ *  so inflate them in parallel too.
+ *
+ * flush() ends the current member, so after a flush() the underlying stream is
+ *  at a member boundary and everything written so far can be read back.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+   public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+   public static final int MAX_BLOCK_SIZE = 1 << 26;
+
+   /**
+    * The gzip extra subfield that holds the size of the member.
+    */
+   static final byte SUBFIELD_1 = 'S';
+   static final byte SUBFIELD_2 = 'P';
+
+   /**
+    * Header (10) + XLEN (2) + subfield (4 + 4).
+    */
+   static final int HEADER_SIZE = 20;
+   static final int TRAILER_SIZE = 8;
+
+   /**
+    * The largest member a block of MAX_BLOCK_SIZE can be written as.
+    */
+   static final int MAX_MEMBER_SIZE = memberCapacity(MAX_BLOCK_SIZE);
+
+   private OutputStream out;
+   private ExecutorService compressors;
+   private int maxPending;
+
+   private byte[] buffer;
+   private int count;
+
+   /**
+    * The members being compressed, in order.
+    */
+   private ArrayDeque<Future<byte[]>> pending;
+
+   private boolean closed;
+
+   /**
+    * Whether any member has been written yet.
+    */
+   private boolean wroteAny;
+
+   public ParallelGzipOutputStream(OutputStream out, int threads, int blockSize) {
+      if (threads < 1 || blockSize < 1) {
+         throw new IllegalArgumentException("threads and blockSize must be positive.");
+      }
+
+      if (blockSize > MAX_BLOCK_SIZE) {
+         throw new IllegalArgumentException("blockSize can be at most " + MAX_BLOCK_SIZE + ".");
+      }
+
+      this.out = out;
+      maxPending = threads * 2;
+      buffer = new byte[blockSize];
+      count = 0;
+      pending = new ArrayDeque<Future<byte[]>>();
+      closed = false;
+      wroteAny = false;
+
+      compressors = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+         public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ParallelGzipOutputStream");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+   }
+
+   public ParallelGzipOutputStream(OutputStream out) {
+      this(out, Runtime.getRuntime().availableProcessors(), DEFAULT_BLOCK_SIZE);
+   }
+
+   public void write(int value) throws IOException {
+      if (count == buffer.length) {
+         submitBlock();
+      }
+
+      buffer[count++] = (byte)value;
+   }
+
+   public void write(byte[] bytes, int offset, int length) throws IOException {
+      while (length > 0) {
+         if (count == buffer.length) {
+            submitBlock();
+         }
+
+         int toCopy = Math.min(length, buffer.length - count);
+         System.arraycopy(bytes, offset, buffer, count, toCopy);
+         count += toCopy;
+         offset += toCopy;
+         length -= toCopy;
+      }
+   }
+
+   /**
+    * Finish the current member, wait for every member to be compressed,
+    *  and write them all out.
+    */
+   public void flush() throws IOException {
+      if (count > 0) {
+         submitBlock();
+      }
+
+      while (!pending.isEmpty()) {
+         writeOldest();
+      }
+
+      out.flush();
+   }
+
+   public void close() throws IOException {
+      if (closed) {
+         return;
+      }
+
+      try {
+         // An empty gzip file still needs one (empty) member.
+         if (!wroteAny && count == 0) {
+            out.write(compressMember(new byte[0]));
+         }
+
+         flush();
+      } finally {
+         closed = true;
+         compressors.shutdown();
+         out.close();
+      }
+   }
+
+   /**
+    * Hand the buffer off to be compressed and start a new one.
+    * If too many blocks are already waiting, write the oldest first.
+    */
+   private void submitBlock() throws IOException {
+      while (pending.size() >= maxPending) {
+         writeOldest();
+      }
+
+      final byte[] block = Arrays.copyOf(buffer, count);
+      pending.add(compressors.submit(new Callable<byte[]>() {
+         public byte[] call() {
+            return compressMember(block);
+         }
+      }));
+
+      count = 0;
+   }
+
+   private void writeOldest() throws IOException {
+      try {
+         out.write(pending.poll().get());
+         wroteAny = true;
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while compressing.", ex);
+      } catch (ExecutionException ex) {
+         throw new IOException("Error compressing a block.", ex.getCause());
+      }
+   }
+
+   /**
+    * More than deflate can ever turn blockSize bytes into, plus the header and trailer.
+    */
+   static int memberCapacity(int blockSize) {
+      return HEADER_SIZE + blockSize + blockSize / 8 + 64 + TRAILER_SIZE;
+   }
+
+   /**
+    * Make a complete gzip member out of a block.
+    */
+   static byte[] compressMember(byte[] block) {
+      Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+      deflater.setInput(block);
+      deflater.finish();
+
+      byte[] member = new byte[memberCapacity(block.length)];
+      int size = HEADER_SIZE;
+      while (!deflater.finished()) {
+         if (size == member.length - TRAILER_SIZE) {
+            member = Arrays.copyOf(member, member.length * 2);
+         }
+         size += deflater.deflate(member, size, member.length - TRAILER_SIZE - size);
+      }
+      deflater.end();
+
+      CRC32 crc = new CRC32();
+      crc.update(block, 0, block.length);
+      putIntLE(member, size, (int)crc.getValue());
+      putIntLE(member, size + 4, block.length);
+      size += TRAILER_SIZE;
+
+      // ID1, ID2, CM = deflate, FLG = FEXTRA, MTIME = 0, XFL = 0, OS = unknown
+      member[0] = (byte)0x1F;
+      member[1] = (byte)0x8B;
+      member[2] = 8;
+      member[3] = 4;
+      putIntLE(member, 4, 0);
+      member[8] = 0;
+      member[9] = (byte)0xFF;
+      // XLEN, then the subfield with the size of the whole member.
+      member[10] = 8;
+      member[11] = 0;
+      member[12] = SUBFIELD_1;
+      member[13] = SUBFIELD_2;
+      member[14] = 4;
+      member[15] = 0;
+      putIntLE(member, 16, size);
+
+      return Arrays.copyOf(member, size);
+   }
+
+   static void putIntLE(byte[] bytes, int offset, int value) {
+      bytes[offset] = (byte)value;
+      bytes[offset + 1] = (byte)(value >>> 8);
+      bytes[offset + 2] = (byte)(value >>> 16);
+      bytes[offset + 3] = (byte)(value >>> 24);
+   }
+}
@@ -0,0 +1,463 @@
+/*
+ * com.spoons.control
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.control;
+
+import com.spoons.filter.TextFilter;
+import com.spoons.filter.Utf8LineFilter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Filter a large file with several worker processes.
+ *
+ * The input is split into byte ranges that end on newlines, and each range (shard)
+ *  is filtered by its own JVM (this same class started with "--worker").
+ * Each finished shard leaves behind its output (synced to disk) and a small
+ *  manifest in "[output].shards/", so rerunning the same command only redoes the
+ *  shards that did not finish.
+ * A shard only counts as done if its manifest has the same byte range, the same
+ *  input (path, size and modification time) and the same filter fingerprint, so
+ *  a changed input or filter configuration redoes every shard.
+ * Once every shard is done, the shard outputs are concatenated (in order) into
+ *  the final output and "[output].manifest" is written with the line counts and
+ *  CRC32 checksums of every shard and of the whole output.
+ * The shard directory is removed after a successful merge.
+ * If the output ends in ".gz" the shards are gzipped (in parallel) and the
+ *  merged output is their concatenation, which is a valid multi-member gzip file.
+ * Gzipped input cannot be split into byte ranges, use StreamingRunner for that.
+ *
+ * Usage:
+ *  ShardedBatchRunner [input] [output] [number of shards] [filter name (default: eriq)]
+ */
+public class ShardedBatchRunner {
+   private static final String WORKER_FLAG = "--worker";
+   private static final String DEFAULT_FILTER = "eriq";
+
+   private File input;
+   private File output;
+   private File shardDir;
+   private int numShards;
+   private String filterName;
+
+   /**
+    * The filter's fingerprint, worked out once per run.
+    */
+   private String fingerprint;
+
+   public static void main(String[] args) throws Exception {
+      if (args.length > 0 && args[0].equals(WORKER_FLAG)) {
+         runWorker(args);
+         return;
+      }
+
+      if (args.length < 3) {
+         System.err.println("USAGE: ShardedBatchRunner <input> <output> <shards> [filter]");
+         System.exit(1);
+      }
+
+      String filterName = args.length > 3 ? args[3] : DEFAULT_FILTER;
+      ShardedBatchRunner runner = new ShardedBatchRunner(new File(args[0]), new File(args[1]),
+                                                         Integer.parseInt(args[2]), filterName);
+      if (!runner.run()) {
+         System.exit(1);
+      }
+   }
+
+   public ShardedBatchRunner(File input, File output, int numShards, String filterName) {
+      if (numShards < 1) {
+         throw new IllegalArgumentException("Need at least one shard.");
+      }
+
+      if (StreamingRunner.isGzip(input)) {
+         throw new IllegalArgumentException("Gzipped input cannot be sharded: " + input);
+      }
+
+      TextFilter filter = TextFilter.forName(filterName);
+      if (filter == null) {
+         throw new IllegalArgumentException("Unknown filter: " + filterName);
+      }
+
+      // Every shard would start with none of the state of the shards before it.
+      if (filter.isStateful()) {
+         throw new IllegalArgumentException("A stateful filter cannot be sharded: " + filterName);
+      }
+
+      this.input = input;
+      this.output = output;
+      this.numShards = numShards;
+      this.filterName = filterName;
+      shardDir = new File(output.getPath() + ".shards");
+   }
+
+   /**
+    * Filter all the shards that are not already done, then merge them.
+    *
+    * @return true if every shard finished and the output was written.
+    */
+   public boolean run() throws IOException, InterruptedException {
+      shardDir.mkdirs();
+      fingerprint = TextFilter.forName(filterName).fingerprint();
+      long[] bounds = splitPoints(input, numShards);
+
+      List<Process> processes = new ArrayList<Process>();
+      List<Integer> running = new ArrayList<Integer>();
+
+      for (int shard = 0; shard < numShards; shard++) {
+         if (isShardDone(shard, bounds[shard], bounds[shard + 1])) {
+            continue;
+         }
+
+         processes.add(startWorker(shard, bounds[shard], bounds[shard + 1]));
+         running.add(shard);
+      }
+
+      boolean success = true;
+      for (int ndx = 0; ndx < processes.size(); ndx++) {
+         int exitCode = processes.get(ndx).waitFor();
+         if (exitCode != 0) {
+            Logger.logError("Shard " + running.get(ndx) + " failed with exit code " + exitCode);
+            System.err.println("Shard " + running.get(ndx) + " failed, rerun to retry it.");
+            success = false;
+         }
+      }
+
+      if (!success) {
+         return false;
+      }
+
+      merge(bounds);
+      deleteShards();
+      return true;
+   }
+
+   /**
+    * Find numShards + 1 byte offsets into file such that every shard
+    *  [bounds[i], bounds[i + 1]) starts at the beginning of a line.
+    */
+   public static long[] splitPoints(File file, int numShards) throws IOException {
+      long[] bounds = new long[numShards + 1];
+      long size = file.length();
+
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+         for (int shard = 1; shard < numShards; shard++) {
+            long target = Math.max(bounds[shard - 1], size * shard / numShards);
+
+            // Start right after the first newline at or after target - 1.
+            long pos = Math.max(0, target - 1);
+            if (pos < bounds[shard - 1]) {
+               pos = bounds[shard - 1];
+            }
+
+            raf.seek(pos);
+            InputStream in = new BufferedInputStream(Channels.newInputStream(raf.getChannel()));
+            int read;
+            while ((read = in.read()) != -1 && read != '\n') {
+               pos++;
+            }
+
+            bounds[shard] = Math.min(size, pos + 1);
+         }
+      } finally {
+         raf.close();
+      }
+
+      bounds[numShards] = size;
+      return bounds;
+   }
+
+   /**
+    * If the final output is gzipped, so are the shards (gzip members can just
+    *  be concatenated).
+    */
+   private File shardOutput(int shard) {
+      String suffix = StreamingRunner.isGzip(output) ? ".out.gz" : ".out";
+      return new File(shardDir, String.format("shard-%05d", shard) + suffix);
+   }
+
+   private File shardManifest(int shard) {
+      return new File(shardDir, String.format("shard-%05d.manifest", shard));
+   }
+
+   /**
+    * A shard is done if its manifest exists and is for the same byte range of the
+    *  same input (path, size and modification time) and the same filter fingerprint.
+    */
+   private boolean isShardDone(int shard, long start, long end) {
+      if (!shardManifest(shard).exists() || !shardOutput(shard).exists()) {
+         return false;
+      }
+
+      try {
+         Properties manifest = readProperties(shardManifest(shard));
+         return Long.toString(start).equals(manifest.getProperty("start")) &&
+                Long.toString(end).equals(manifest.getProperty("end")) &&
+                filterName.equals(manifest.getProperty("filter")) &&
+                fingerprint.equals(manifest.getProperty("fingerprint")) &&
+                input.getPath().equals(manifest.getProperty("input")) &&
+                Long.toString(input.length()).equals(manifest.getProperty("inputSize")) &&
+                Long.toString(input.lastModified()).equals(manifest.getProperty("inputModified"));
+      } catch (IOException ex) {
+         return false;
+      }
+   }
+
+   private Process startWorker(int shard, long start, long end) throws IOException {
+      String java = System.getProperty("java.home") + File.separator + "bin" +
+                    File.separator + "java";
+
+      List<String> command = new ArrayList<String>();
+      command.add(java);
+      command.add("-cp");
+      command.add(System.getProperty("java.class.path"));
+      command.add(ShardedBatchRunner.class.getName());
+      command.add(WORKER_FLAG);
+      command.add(input.getPath());
+      command.add(Long.toString(start));
+      command.add(Long.toString(end));
+      command.add(shardOutput(shard).getPath());
+      command.add(shardManifest(shard).getPath());
+      command.add(filterName);
+      command.add(Integer.toString(
+            Math.max(1, Runtime.getRuntime().availableProcessors() / numShards)));
+
+      ProcessBuilder builder = new ProcessBuilder(command);
+      builder.inheritIO();
+      return builder.start();
+   }
+
+   /**
+    * The worker side:
+    *  --worker [input] [start] [end] [shard output] [shard manifest] [filter name] [threads]
+    * The output is written to a temp file, synced and renamed when it is complete,
+    *  then the manifest is written the same way.
+    * The input's size and modification time are taken before reading it, so if
+    *  it changes during the run the manifest will not match it on the next run.
+    */
+   private static void runWorker(String[] args) throws IOException {
+      File inputFile = new File(args[1]);
+      long start = Long.parseLong(args[2]);
+      long end = Long.parseLong(args[3]);
+      File outputFile = new File(args[4]);
+      File manifestFile = new File(args[5]);
+      String filterName = args[6];
+      int numThreads = Integer.parseInt(args[7]);
+
+      long inputSize = inputFile.length();
+      long inputModified = inputFile.lastModified();
+      TextFilter filter = TextFilter.forName(filterName);
+
+      File tempOutput = new File(outputFile.getPath() + ".tmp");
+      CRC32 crc = new CRC32();
+      long lines;
+
+      FileInputStream inputStream = new FileInputStream(inputFile);
+      OutputStream outputStream = null;
+      try {
+         FileChannel channel = inputStream.getChannel();
+         channel.position(start);
+         InputStream in = new RangeInputStream(Channels.newInputStream(channel), end - start);
+
+         outputStream = new CheckedOutputStream(new FileOutputStream(tempOutput), crc);
+         if (StreamingRunner.isGzip(outputFile)) {
+            // Compress on this worker's share of the cores.
+            outputStream = new ParallelGzipOutputStream(outputStream, numThreads,
+                                                        ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE);
+         }
+         lines = new Utf8LineFilter(filter).filter(in, outputStream);
+      } finally {
+         inputStream.close();
+         if (outputStream != null) {
+            outputStream.close();
+         }
+      }
+
+      // The manifest says the output is complete, so the output has to be on
+      //  disk before the manifest is.
+      StreamingRunner.syncFile(tempOutput);
+      Files.move(tempOutput.toPath(), outputFile.toPath(),
+                 StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      StreamingRunner.syncDirectory(outputFile.getAbsoluteFile().getParentFile());
+
+      Properties manifest = new Properties();
+      manifest.setProperty("start", Long.toString(start));
+      manifest.setProperty("end", Long.toString(end));
+      manifest.setProperty("filter", filterName);
+      manifest.setProperty("fingerprint", filter.fingerprint());
+      manifest.setProperty("input", inputFile.getPath());
+      manifest.setProperty("inputSize", Long.toString(inputSize));
+      manifest.setProperty("inputModified", Long.toString(inputModified));
+      manifest.setProperty("lines", Long.toString(lines));
+      manifest.setProperty("crc32", Long.toHexString(crc.getValue()));
+      writeProperties(manifest, manifestFile);
+   }
+
+   /**
+    * Concatenate all the shard outputs into the final output and write the manifest.
+    */
+   private void merge(long[] bounds) throws IOException {
+      Properties manifest = new Properties();
+      manifest.setProperty("input", input.getPath());
+      manifest.setProperty("filter", filterName);
+      manifest.setProperty("fingerprint", fingerprint);
+      manifest.setProperty("shards", Integer.toString(numShards));
+
+      File tempOutput = new File(output.getPath() + ".tmp");
+      CRC32 crc = new CRC32();
+      long totalLines = 0;
+
+      OutputStream out = new CheckedOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tempOutput), 1 << 16), crc);
+      try {
+         for (int shard = 0; shard < numShards; shard++) {
+            Properties shardManifest = readProperties(shardManifest(shard));
+            Files.copy(shardOutput(shard).toPath(), out);
+
+            String prefix = "shard." + shard + ".";
+            manifest.setProperty(prefix + "start", Long.toString(bounds[shard]));
+            manifest.setProperty(prefix + "end", Long.toString(bounds[shard + 1]));
+            manifest.setProperty(prefix + "lines", shardManifest.getProperty("lines"));
+            manifest.setProperty(prefix + "crc32", shardManifest.getProperty("crc32"));
+            totalLines += Long.parseLong(shardManifest.getProperty("lines"));
+         }
+      } finally {
+         out.close();
+      }
+
+      // The shards are deleted after this, so the output has to be on disk first.
+      StreamingRunner.syncFile(tempOutput);
+      Files.move(tempOutput.toPath(), output.toPath(),
+                 StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      StreamingRunner.syncDirectory(output.getAbsoluteFile().getParentFile());
+
+      manifest.setProperty("lines", Long.toString(totalLines));
+      manifest.setProperty("crc32", Long.toHexString(crc.getValue()));
+      writeProperties(manifest, new File(output.getPath() + ".manifest"));
+   }
+
+   /**
+    * Remove the shard outputs and manifests (and any temp files a failed
+    *  worker left behind), then the shard directory itself.
+    */
+   private void deleteShards() throws IOException {
+      File[] files = shardDir.listFiles();
+      if (files != null) {
+         for (File file : files) {
+            Files.deleteIfExists(file.toPath());
+         }
+      }
+
+      Files.deleteIfExists(shardDir.toPath());
+   }
+
+   private static Properties readProperties(File file) throws IOException {
+      Properties rtn = new Properties();
+      InputStream in = new FileInputStream(file);
+      try {
+         rtn.load(in);
+      } finally {
+         in.close();
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Write properties to a temp file, sync it and atomically move it into place.
+    */
+   private static void writeProperties(Properties properties, File file) throws IOException {
+      File temp = new File(file.getPath() + ".tmp");
+      FileOutputStream out = new FileOutputStream(temp);
+      try {
+         properties.store(out, null);
+         out.getFD().sync();
+      } finally {
+         out.close();
+      }
+
+      Files.move(temp.toPath(), file.toPath(),
+                 StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+   }
+
+   /**
+    * An InputStream that stops after a fixed number of bytes.
+    */
+   private static class RangeInputStream extends FilterInputStream {
+      private long remaining;
+
+      public RangeInputStream(InputStream in, long length) {
+         super(in);
+         remaining = length;
+      }
+
+      public int read() throws IOException {
+         if (remaining <= 0) {
+            return -1;
+         }
+
+         int rtn = super.read();
+         if (rtn != -1) {
+            remaining--;
+         }
+
+         return rtn;
+      }
+
+      public int read(byte[] buffer, int offset, int length) throws IOException {
+         if (remaining <= 0) {
+            return -1;
+         }
+
+         int rtn = super.read(buffer, offset, (int)Math.min(length, remaining));
+         if (rtn > 0) {
+            remaining -= rtn;
+         }
+
+         return rtn;
+      }
+   }
+}
@@ -0,0 +1,316 @@
+/*
+ * com.spoons.control
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.control;
+
+import com.spoons.filter.TextFilter;
+import com.spoons.filter.Utf8LineFilter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+/**
+ * Filter a file in a single process, checkpointing along the way so that a run
+ *  that dies can pick up exactly where it left off.
+ *
+ * Every checkpointInterval lines the output is flushed and forced to disk, and
+ *  then "[output].checkpoint" is written (temp file + atomic rename) with:
+ *   - the input byte offset of the next unfiltered line,
+ *   - the output byte offset that goes with it,
+ *   - the number of lines filtered,
+ *   - the input's path, size and modification time (taken when the run started),
+ *   - the filter's fingerprint.
+ * On start, if a checkpoint for the same (unchanged) input and filter exists,
+ *  the output is truncated back to the checkpointed offset (dropping any lines
+ *  written after the checkpoint) and filtering resumes from the checkpointed
+ *  input offset. So no line is ever lost or written twice.
+ * The checkpoint is removed when the run finishes, after the output is synced.
+ *
+ * Files ending in ".gz" are read with ParallelGzipInputStream and written with
+ *  ParallelGzipOutputStream. For gzipped input the checkpointed input offset is
+ *  into the inflated data.
+ *
+ * Usage:
+ *  StreamingRunner [input] [output] [filter name (default: eriq)] [checkpoint interval]
+ */
+public class StreamingRunner {
+   private static final String DEFAULT_FILTER = "eriq";
+   private static final long DEFAULT_CHECKPOINT_INTERVAL = 100000;
+
+   private File input;
+   private File output;
+   private File checkpoint;
+   private TextFilter filter;
+   private long checkpointInterval;
+
+   /**
+    * The filter's fingerprint, worked out once per run.
+    */
+   private String fingerprint;
+
+   /**
+    * The input's size and modification time from the start of the run.
+    */
+   private long inputSize;
+   private long inputModified;
+
+   public static void main(String[] args) throws IOException {
+      if (args.length < 2) {
+         System.err.println("USAGE: StreamingRunner <input> <output> [filter] [checkpoint interval]");
+         System.exit(1);
+      }
+
+      TextFilter filter = TextFilter.forName(args.length > 2 ? args[2] : DEFAULT_FILTER);
+      if (filter == null) {
+         System.err.println("Unknown filter: " + args[2]);
+         System.exit(1);
+      }
+
+      long interval = DEFAULT_CHECKPOINT_INTERVAL;
+      if (args.length > 3) {
+         interval = Long.parseLong(args[3]);
+      }
+
+      long lines = new StreamingRunner(new File(args[0]), new File(args[1]), filter, interval).run();
+      System.out.println("Filtered " + lines + " lines.");
+   }
+
+   public StreamingRunner(File input, File output, TextFilter filter, long checkpointInterval) {
+      if (checkpointInterval < 1) {
+         throw new IllegalArgumentException("The checkpoint interval must be positive.");
+      }
+
+      // A resumed run would start with none of the state from before the checkpoint.
+      if (filter.isStateful()) {
+         throw new IllegalArgumentException("A stateful filter cannot be checkpointed: " + filter);
+      }
+
+      this.input = input;
+      this.output = output;
+      this.filter = filter;
+      this.checkpointInterval = checkpointInterval;
+      checkpoint = new File(output.getPath() + ".checkpoint");
+   }
+
+   /**
+    * Filter the input, resuming from the last checkpoint if there is one.
+    *
+    * @return The total number of lines filtered (including the ones from before the resume).
+    */
+   public long run() throws IOException {
+      long inputOffset = 0;
+      long outputOffset = 0;
+      long startLines = 0;
+
+      fingerprint = filter.fingerprint();
+      inputSize = input.length();
+      inputModified = input.lastModified();
+      Properties last = readCheckpoint();
+      if (last != null) {
+         inputOffset = Long.parseLong(last.getProperty("inputOffset"));
+         outputOffset = Long.parseLong(last.getProperty("outputOffset"));
+         startLines = Long.parseLong(last.getProperty("lines"));
+         System.out.println("Resuming " + input + " at line " + startLines);
+      }
+
+      final FileChannel outChannel = FileChannel.open(output.toPath(), StandardOpenOption.CREATE,
+                                                      StandardOpenOption.WRITE);
+      FileInputStream inputStream = new FileInputStream(input);
+      InputStream in = inputStream;
+      OutputStream out = null;
+      long lines;
+
+      try {
+         // Anything past the checkpoint was not recorded, so it gets redone.
+         outChannel.truncate(outputOffset);
+         outChannel.position(outputOffset);
+
+         if (isGzip(input)) {
+            // Offsets are into the inflated input, so it has to be inflated up to there.
+            in = new ParallelGzipInputStream(inputStream);
+            skipFully(in, inputOffset);
+         } else {
+            inputStream.getChannel().position(inputOffset);
+         }
+
+         out = Channels.newOutputStream(outChannel);
+         if (isGzip(output)) {
+            // Every flush ends a gzip member, so checkpoints land between members.
+            out = new ParallelGzipOutputStream(out);
+         }
+
+         final OutputStream finalOut = out;
+         final Utf8LineFilter lineFilter = new Utf8LineFilter(filter);
+         final long baseInputOffset = inputOffset;
+         final long baseLines = startLines;
+
+         lines = baseLines + lineFilter.filter(in, out, new Utf8LineFilter.LineListener() {
+            public void lineFiltered(long lines, long inputOffset) throws IOException {
+               if (lines % checkpointInterval == 0) {
+                  lineFilter.flush(finalOut);
+                  finalOut.flush();
+                  outChannel.force(false);
+                  writeCheckpoint(baseInputOffset + inputOffset, outChannel.position(),
+                                  baseLines + lines);
+               }
+            }
+         });
+
+         // Closing writes out whatever is left (for gzip, the last member), and
+         //  also closes outChannel, so the output is synced after.
+         out.close();
+         out = null;
+      } finally {
+         in.close();
+         if (out != null) {
+            out.close();
+         }
+         outChannel.close();
+      }
+
+      // The checkpoint can only go once all of the output is on disk.
+      syncFile(output);
+      checkpoint.delete();
+      return lines;
+   }
+
+   static boolean isGzip(File file) {
+      return file.getName().endsWith(".gz");
+   }
+
+   private static void skipFully(InputStream in, long count) throws IOException {
+      byte[] buffer = new byte[1 << 16];
+      while (count > 0) {
+         int read = in.read(buffer, 0, (int)Math.min(buffer.length, count));
+         if (read == -1) {
+            throw new IOException("Input is shorter than the checkpoint.");
+         }
+         count -= read;
+      }
+   }
+
+   /**
+    * Get the last checkpoint, if it is for this input and filter.
+    */
+   private Properties readCheckpoint() throws IOException {
+      if (!checkpoint.exists()) {
+         return null;
+      }
+
+      Properties rtn = new Properties();
+      InputStream in = new FileInputStream(checkpoint);
+      try {
+         rtn.load(in);
+      } finally {
+         in.close();
+      }
+
+      if (!input.getPath().equals(rtn.getProperty("input")) ||
+          !Long.toString(inputSize).equals(rtn.getProperty("inputSize")) ||
+          !Long.toString(inputModified).equals(rtn.getProperty("inputModified")) ||
+          !fingerprint.equals(rtn.getProperty("fingerprint"))) {
+         System.err.println("Ignoring checkpoint for a different (or changed) input or filter: " +
+                            checkpoint);
+         return null;
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Write the checkpoint to a temp file and then atomically move it into place,
+    *  so there is always either the old or the new checkpoint on disk.
+    * The directory is synced after the move, otherwise a crash could lose the
+    *  rename even though the file itself was synced.
+    */
+   private void writeCheckpoint(long inputOffset, long outputOffset, long lines)
+    throws IOException {
+      Properties properties = new Properties();
+      properties.setProperty("input", input.getPath());
+      properties.setProperty("inputSize", Long.toString(inputSize));
+      properties.setProperty("inputModified", Long.toString(inputModified));
+      properties.setProperty("inputOffset", Long.toString(inputOffset));
+      properties.setProperty("outputOffset", Long.toString(outputOffset));
+      properties.setProperty("lines", Long.toString(lines));
+      properties.setProperty("fingerprint", fingerprint);
+
+      File temp = new File(checkpoint.getPath() + ".tmp");
+      FileOutputStream out = new FileOutputStream(temp);
+      try {
+         properties.store(out, null);
+         out.getFD().sync();
+      } finally {
+         out.close();
+      }
+
+      Files.move(temp.toPath(), checkpoint.toPath(),
+                 StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      syncDirectory(checkpoint.getAbsoluteFile().getParentFile());
+   }
+
+   /**
+    * fsync a (closed) file.
+    */
+   static void syncFile(File file) throws IOException {
+      FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+      try {
+         channel.force(true);
+      } finally {
+         channel.close();
+      }
+   }
+
+   /**
+    * fsync a directory, so that renames in it are on disk.
+    * Some platforms (Windows) cannot open a directory, there the rename has to do.
+    */
+   static void syncDirectory(File directory) throws IOException {
+      FileChannel channel;
+      try {
+         channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+      } catch (IOException ex) {
+         return;
+      }
+
+      try {
+         channel.force(true);
+      } finally {
+         channel.close();
+      }
+   }
+}
@@ -0,0 +1,349 @@
+/*
+ * com.spoons.filter
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.filter;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An ASCII fast path for SmartSplitString.split().
+ * The post is copied into a byte array once, lowercased eight bytes at a time
+ *  with SWAR (SIMD within a register) tricks on longs, and runs of letters are
+ *  found a long at a time instead of a char at a time.
+ * Posts that contain anything outside of ASCII are left for the scalar path,
+ *  so the output of split() is always identical to SmartSplitString.split().
+ */
+public class AsciiSplitString {
+   /**
+    * Read eight bytes of a byte[] as a single long.
+    */
+   private static final VarHandle LONGS =
+    MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+   private static final long ONES = 0x0101010101010101L;
+   private static final long HIGHS = 0x8080808080808080L;
+   private static final long LOWS = 0x7F7F7F7F7F7F7F7FL;
+
+   /**
+    * Which ASCII bytes Character.isWhitespace() considers whitespace.
+    */
+   private static final boolean[] WHITESPACE = new boolean[128];
+   static {
+      for (int ndx = 0; ndx < WHITESPACE.length; ndx++) {
+         WHITESPACE[ndx] = Character.isWhitespace((char)ndx);
+      }
+   }
+
+   private static final byte[] HASH_TAG = "<$#$>".getBytes(StandardCharsets.ISO_8859_1);
+   private static final byte[] MENTION = "<$@$>".getBytes(StandardCharsets.ISO_8859_1);
+   private static final byte[] RETWEET = "<$RT$>".getBytes(StandardCharsets.ISO_8859_1);
+
+   /**
+    * Per-thread scratch space for split(String).
+    */
+   private static final ThreadLocal<AsciiWords> scratch = new ThreadLocal<AsciiWords>() {
+      protected AsciiWords initialValue() {
+         return new AsciiWords();
+      }
+   };
+
+   /**
+    * Construct a new AsciiSplitString.
+    * Private to promote static behavior.
+    */
+   private AsciiSplitString() {
+   }
+
+   /**
+    * Split a string exactly like SmartSplitString.split(), but only if the
+    *  string is pure ASCII.
+    *
+    * @return The list of words in text, or null if text is not pure ASCII.
+    */
+   public static String[] split(String text, boolean replaceMeta) {
+      byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+      if (bytes.length != text.length() || !lowerCaseAscii(bytes, bytes.length)) {
+         return null;
+      }
+
+      AsciiWords words = scratch.get();
+      if (!split(text, bytes, bytes.length, replaceMeta, words)) {
+         return null;
+      }
+
+      String[] rtn = new String[words.size()];
+      for (int ndx = 0; ndx < rtn.length; ndx++) {
+         rtn[ndx] = words.getWord(ndx);
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Split bytes[offset, offset + length) into words, just like split(String),
+    *  but leave the words in words instead of making Strings.
+    * bytes is not changed.
+    *
+    * @return false if the bytes are not pure ASCII (words is then in no useful state).
+    */
+   static boolean split(byte[] bytes, int offset, int length, boolean replaceMeta,
+                        AsciiWords words) {
+      byte[] line = words.lineBuffer(length);
+      System.arraycopy(bytes, offset, line, 0, length);
+      if (!lowerCaseAscii(line, length)) {
+         return false;
+      }
+
+      return split(null, line, length, replaceMeta, words);
+   }
+
+   /**
+    * The split itself, over the lowercased bytes[0, length).
+    *
+    * @param text The String the bytes came from, or null if they did not come from one.
+    */
+   private static boolean split(String text, byte[] bytes, int length, boolean replaceMeta,
+                                AsciiWords words) {
+      words.clear();
+      // A word is never longer than the bytes it came from, only the tokens
+      //  (see addToken()) are, and they make more room for themselves.
+      words.ensureChars(length);
+      byte[] chars = words.chars;
+
+      int pos = 0;
+      int wordStart = 0;
+      int index = 0;
+      boolean inMeta = false;
+      boolean inWord = false;
+
+      while (index < length) {
+         byte currentChar = bytes[index];
+
+         boolean hasNext = index < (length - 1);
+         byte nextChar = hasNext ? bytes[index + 1] : 0;
+
+         if (WHITESPACE[currentChar]) {
+            if (inMeta) {
+               chars[pos++] = currentChar;
+               inWord = true;
+            } else if (inWord) {
+               pos = endWord(words, wordStart, pos, replaceMeta, length);
+               chars = words.chars;
+               wordStart = pos;
+               inWord = false;
+            }
+         } else if (!inMeta && !inWord && replaceMeta &&
+                    (currentChar == '@' || currentChar == '#') &&
+                    hasNext && isLetter(nextChar) &&
+                    (index == 0 || WHITESPACE[bytes[index - 1]])) {
+            pos = addToken(words, pos, currentChar == '#' ? HASH_TAG : MENTION, length);
+            chars = words.chars;
+            wordStart = pos;
+         } else if (hasNext && inWord && currentChar == '\'' && isLetter(nextChar)) {
+            chars[pos++] = nextChar;
+            index++;
+         } else if (hasNext && currentChar == '<' && nextChar == '$') {
+            if (inWord) {
+               pos = endWord(words, wordStart, pos, replaceMeta, length);
+               chars = words.chars;
+               wordStart = pos;
+            }
+
+            chars[pos++] = '<';
+            chars[pos++] = '$';
+            inWord = true;
+            inMeta = true;
+            index++;
+         } else if (inMeta && hasNext && currentChar == '$' && nextChar == '>') {
+            chars[pos++] = '$';
+            chars[pos++] = '>';
+            pos = endWord(words, wordStart, pos, replaceMeta, length);
+            chars = words.chars;
+            wordStart = pos;
+            inWord = false;
+            inMeta = false;
+            index++;
+         } else if (inMeta) {
+            // A lone surrogate gets encoded as '?', which would change a meta word.
+            if (currentChar == '?' && text != null && text.charAt(index) != '?') {
+               return false;
+            }
+
+            chars[pos++] = currentChar;
+            inWord = true;
+         } else if (isLetter(currentChar)) {
+            // Copy the entire run of letters in one go.
+            int run = letterRun(bytes, index, length);
+            System.arraycopy(bytes, index, chars, pos, run);
+            pos += run;
+            inWord = true;
+            index += run;
+            continue;
+         } else if (inWord) {
+            pos = endWord(words, wordStart, pos, replaceMeta, length);
+            chars = words.chars;
+            wordStart = pos;
+            inWord = false;
+         }
+
+         index++;
+      }
+
+      if (pos > wordStart) {
+         pos = endWord(words, wordStart, pos, replaceMeta, length);
+      }
+      words.length = pos;
+
+      return true;
+   }
+
+   /**
+    * Check if a slice of bytes is pure ASCII, eight bytes at a time.
+    */
+   static boolean isAscii(byte[] bytes, int offset, int length) {
+      long high = 0;
+      int ndx = offset;
+      int end = offset + length;
+
+      for (; ndx + 8 <= end; ndx += 8) {
+         high |= (long)LONGS.get(bytes, ndx);
+      }
+
+      for (; ndx < end; ndx++) {
+         high |= bytes[ndx];
+      }
+
+      return (high & HIGHS) == 0;
+   }
+
+   /**
+    * Lowercase all the ASCII letters in bytes[0, length) in place.
+    *
+    * @return true if every byte was ASCII.
+    */
+   private static boolean lowerCaseAscii(byte[] bytes, int length) {
+      long high = 0;
+      int ndx = 0;
+
+      for (; ndx + 8 <= length; ndx += 8) {
+         long block = (long)LONGS.get(bytes, ndx);
+         high |= block;
+
+         long upper = upperMask(block);
+         if (upper != 0) {
+            LONGS.set(bytes, ndx, block | (upper >>> 2));
+         }
+      }
+
+      for (; ndx < length; ndx++) {
+         byte currentChar = bytes[ndx];
+         high |= currentChar;
+
+         if ('A' <= currentChar && currentChar <= 'Z') {
+            bytes[ndx] = (byte)(currentChar | 0x20);
+         }
+      }
+
+      return (high & HIGHS) == 0;
+   }
+
+   /**
+    * Get the length of the run of lowercase letters starting at start (and before end).
+    */
+   private static int letterRun(byte[] bytes, int start, int end) {
+      int ndx = start;
+
+      for (; ndx + 8 <= end; ndx += 8) {
+         long letters = lowerMask((long)LONGS.get(bytes, ndx));
+         if (letters != HIGHS) {
+            return ndx - start + (Long.numberOfTrailingZeros(~letters & HIGHS) >>> 3);
+         }
+      }
+
+      while (ndx < end && isLetter(bytes[ndx])) {
+         ndx++;
+      }
+
+      return ndx - start;
+   }
+
+   /**
+    * The high bit of each byte in the result is set if that byte is in 'A'..'Z'.
+    */
+   private static long upperMask(long block) {
+      long low = block & LOWS;
+      return (low + ONES * (0x80 - 'A')) & ~(low + ONES * (0x80 - 'Z' - 1)) & ~block & HIGHS;
+   }
+
+   /**
+    * The high bit of each byte in the result is set if that byte is in 'a'..'z'.
+    */
+   private static long lowerMask(long block) {
+      long low = block & LOWS;
+      return (low + ONES * (0x80 - 'a')) & ~(low + ONES * (0x80 - 'z' - 1)) & ~block & HIGHS;
+   }
+
+   private static boolean isLetter(byte character) {
+      return 'a' <= character && character <= 'z';
+   }
+
+   /**
+    * End the word at chars[start, end), just like SmartSplitString.addWord().
+    *
+    * @param room The most bytes that may still be added after this word.
+    * @return Where the next word starts.
+    */
+   private static int endWord(AsciiWords words, int start, int end, boolean replaceMeta,
+                              int room) {
+      // Re-Tweets get replaced
+      if (replaceMeta && end - start == 2 && words.chars[start] == 'r' &&
+          words.chars[start + 1] == 't') {
+         return addToken(words, start, RETWEET, room);
+      }
+
+      words.addWord(start, end);
+      return end;
+   }
+
+   /**
+    * Add a token (that is not in the post) as a word at pos.
+    *
+    * @return Where the next word starts.
+    */
+   private static int addToken(AsciiWords words, int pos, byte[] token, int room) {
+      words.length = pos;
+      words.ensureChars(token.length + room);
+      int start = words.append(token);
+      words.addWord(start, words.length);
+
+      return words.length;
+   }
+}
@@ -0,0 +1,212 @@
+/*
+ * com.spoons.filter
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.filter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The words of a pure ASCII post, kept as slices of one byte[] instead of as
+ *  Strings (see AsciiSplitString.split(byte[], int, int, boolean, AsciiWords)).
+ * The stages after the split (locations, entities, stop words) can work on the
+ *  slices in place, so a line that never needs a String never gets one.
+ *
+ * It is also a CharSequence over all of the word bytes, so a word can be looked
+ *  up with any of the (CharSequence, start, end) lookups.
+ *
+ * Reuse one per thread: once its buffers are big enough, nothing is allocated.
+ */
+final class AsciiWords implements CharSequence {
+   private static final int INITIAL_SIZE = 64;
+
+   /**
+    * The lowercased copy of the line being split.
+    */
+   byte[] line;
+
+   /**
+    * The bytes of every word, one after another.
+    */
+   byte[] chars;
+   int length;
+
+   /**
+    * The bounds of each word in chars.
+    */
+   int[] starts;
+   int[] ends;
+   int size;
+
+   public AsciiWords() {
+      line = new byte[INITIAL_SIZE * 4];
+      chars = new byte[INITIAL_SIZE * 4];
+      starts = new int[INITIAL_SIZE];
+      ends = new int[INITIAL_SIZE];
+      clear();
+   }
+
+   public void clear() {
+      length = 0;
+      size = 0;
+   }
+
+   public int size() {
+      return size;
+   }
+
+   public int start(int word) {
+      return starts[word];
+   }
+
+   public int end(int word) {
+      return ends[word];
+   }
+
+   public String getWord(int word) {
+      return new String(chars, starts[word], ends[word] - starts[word],
+                        StandardCharsets.ISO_8859_1);
+   }
+
+   /**
+    * Make sure line can hold at least count bytes.
+    */
+   byte[] lineBuffer(int count) {
+      if (line.length < count) {
+         line = new byte[Math.max(count, line.length * 2)];
+      }
+
+      return line;
+   }
+
+   /**
+    * Copy text into line, if it is pure ASCII.
+    * The line can then be split with AsciiSplitString.split(line, 0, text.length(), ...),
+    *  which lowercases it in place.
+    *
+    * @return false if text has a char that is not ASCII.
+    */
+   boolean loadLine(String text) {
+      byte[] buffer = lineBuffer(text.length());
+      for (int ndx = 0; ndx < text.length(); ndx++) {
+         char character = text.charAt(ndx);
+         if (character >= 0x80) {
+            return false;
+         }
+
+         buffer[ndx] = (byte)character;
+      }
+
+      return true;
+   }
+
+   /**
+    * Make sure there is room for count more bytes in chars.
+    */
+   void ensureChars(int count) {
+      if (length + count > chars.length) {
+         chars = Arrays.copyOf(chars, Math.max(length + count, chars.length * 2));
+      }
+   }
+
+   /**
+    * Add a word that is already at chars[start, end).
+    */
+   void addWord(int start, int end) {
+      if (size == starts.length) {
+         starts = Arrays.copyOf(starts, size * 2);
+         ends = Arrays.copyOf(ends, size * 2);
+      }
+
+      starts[size] = start;
+      ends[size] = end;
+      size++;
+   }
+
+   /**
+    * Copy a word (like one of the meta word tokens) onto the end of chars.
+    *
+    * @return The start of the copy in chars.
+    */
+   int append(byte[] word) {
+      ensureChars(word.length);
+      System.arraycopy(word, 0, chars, length, word.length);
+      length += word.length;
+
+      return length - word.length;
+   }
+
+   /**
+    * Point word at chars[start, end), for stages that rewrite the words in place.
+    */
+   void setWord(int word, int start, int end) {
+      starts[word] = start;
+      ends[word] = end;
+   }
+
+   /**
+    * Drop every word from size on.
+    */
+   void truncate(int size) {
+      this.size = size;
+   }
+
+   /**
+    * The words from first to first + count joined by spaces, like a location is
+    *  counted by LocationFilter.
+    */
+   String join(int first, int count) {
+      StringBuilder rtn = new StringBuilder();
+      for (int ndx = first; ndx < first + count; ndx++) {
+         if (ndx > first) {
+            rtn.append(' ');
+         }
+         for (int pos = starts[ndx]; pos < ends[ndx]; pos++) {
+            rtn.append((char)chars[pos]);
+         }
+      }
+
+      return rtn.toString();
+   }
+
+   public int length() {
+      return length;
+   }
+
+   public char charAt(int index) {
+      return (char)(chars[index] & 0xFF);
+   }
+
+   public CharSequence subSequence(int start, int end) {
+      return new String(chars, start, end - start, StandardCharsets.ISO_8859_1);
+   }
+
+   public String toString() {
+      return new String(chars, 0, length, StandardCharsets.ISO_8859_1);
+   }
+}
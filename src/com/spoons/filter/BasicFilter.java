@@ -43,11 +43,24 @@ public class BasicFilter extends TextFilter {
     * @inheritDoc
     */
    public String[] splitFilter(String input) {
-      input = MiscFilters.replaceLinks(input, " <link> ");
+      input = TriggerMask.replaceLinks(input, " <link> ", TriggerMask.scan(input));
 
       String[] allWords = SmartSplitString.split(input);
       allWords = StopWordUtils.removeStopWords(allWords, 0);
 
       return allWords;
    }
+
+   /**
+    * Everything but lines that may have a link is done on the bytes.
+    */
+   boolean splitFilterAscii(byte[] bytes, int offset, int length, AsciiWords words) {
+      if (TriggerMask.mayHaveLinks(TriggerMask.scan(bytes, offset, length)) ||
+          !AsciiSplitString.split(bytes, offset, length, false, words)) {
+         return false;
+      }
+
+      StopWordUtils.removeStopWords(words, 0);
+      return true;
+   }
 }
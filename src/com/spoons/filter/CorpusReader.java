@@ -0,0 +1,373 @@
+/*
+ * com.spoons.filter
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.filter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the files made by CorpusWriter.
+ * Blocks are memory mapped as they are needed, and for uncompressed files the
+ *  token IDs are read straight out of the mapped file (getIds() does not copy).
+ * Deflated blocks are inflated into memory when they are read, and only the
+ *  INFLATED_BLOCKS most recently read ones are kept.
+ *
+ * Safe for many threads once it has been constructed.
+ */
+public class CorpusReader {
+   /**
+    * How many inflated blocks to keep around.
+    */
+   public static final int INFLATED_BLOCKS = 8;
+
+   private RandomAccessFile file;
+   private FileChannel channel;
+
+   private byte mode;
+   private boolean compressed;
+   private String fingerprint;
+
+   private long[] blockOffsets;
+   private long[] blockFirstPosts;
+   private long numPosts;
+   private String[] vocabulary;
+
+   /**
+    * The mapped blocks of an uncompressed file (views of the file, so cheap to keep).
+    */
+   private Block[] blocks;
+
+   /**
+    * The most recently read blocks of a compressed file, least recent first.
+    */
+   private Map<Integer, Block> inflated;
+
+   public CorpusReader(File path) throws IOException {
+      file = new RandomAccessFile(path, "r");
+      channel = file.getChannel();
+
+      try {
+         readHeader();
+         readFooter();
+      } catch (IOException ex) {
+         file.close();
+         throw ex;
+      }
+
+      blocks = new Block[blockOffsets.length];
+      inflated = new LinkedHashMap<Integer, Block>(INFLATED_BLOCKS * 2, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<Integer, Block> eldest) {
+            return size() > INFLATED_BLOCKS;
+         }
+      };
+   }
+
+   public String getFingerprint() {
+      return fingerprint;
+   }
+
+   /**
+    * Whether the posts are stored as token IDs (true) or UTF-8 tokens (false).
+    */
+   public boolean hasIds() {
+      return mode == CorpusWriter.MODE_IDS;
+   }
+
+   public long numPosts() {
+      return numPosts;
+   }
+
+   public int numBlocks() {
+      return blockOffsets.length;
+   }
+
+   /**
+    * The word for a token ID (only for files with IDs).
+    */
+   public String getWord(int id) {
+      return vocabulary[id];
+   }
+
+   public int vocabularySize() {
+      return vocabulary.length;
+   }
+
+   /**
+    * Get the words of a post.
+    */
+   public String[] getPost(long post) throws IOException {
+      int blockNdx = findBlock(post);
+      return getBlock(blockNdx).getWords((int)(post - blockFirstPosts[blockNdx]));
+   }
+
+   /**
+    * Get a block of posts.
+    */
+   public Block getBlock(int blockNdx) throws IOException {
+      if (!compressed) {
+         synchronized (blocks) {
+            if (blocks[blockNdx] == null) {
+               blocks[blockNdx] = loadBlock(blockNdx);
+            }
+
+            return blocks[blockNdx];
+         }
+      }
+
+      synchronized (inflated) {
+         Block block = inflated.get(blockNdx);
+         if (block != null) {
+            return block;
+         }
+      }
+
+      // Inflate outside of the lock so other blocks can be read meanwhile.
+      Block block = loadBlock(blockNdx);
+      synchronized (inflated) {
+         inflated.put(blockNdx, block);
+      }
+
+      return block;
+   }
+
+   public void close() throws IOException {
+      file.close();
+   }
+
+   private int findBlock(long post) {
+      if (post < 0 || post >= numPosts) {
+         throw new IndexOutOfBoundsException("No post " + post + ", there are " + numPosts);
+      }
+
+      int ndx = Arrays.binarySearch(blockFirstPosts, post);
+      if (ndx < 0) {
+         ndx = -ndx - 2;
+      }
+
+      return ndx;
+   }
+
+   private void readHeader() throws IOException {
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), 16));
+      if (header.remaining() < 16 || header.getInt() != CorpusWriter.MAGIC) {
+         throw new IOException("Not a corpus file.");
+      }
+
+      int version = header.getInt();
+      if (version != CorpusWriter.VERSION) {
+         throw new IOException("Unknown corpus file version: " + version);
+      }
+
+      mode = header.get();
+      compressed = header.get() != 0;
+      header.getShort();
+
+      int fingerprintLength = header.getInt();
+      ByteBuffer fingerprintBytes = channel.map(FileChannel.MapMode.READ_ONLY, 16, fingerprintLength);
+      fingerprint = StandardCharsets.UTF_8.decode(fingerprintBytes).toString();
+   }
+
+   private void readFooter() throws IOException {
+      long size = channel.size();
+      ByteBuffer tail = channel.map(FileChannel.MapMode.READ_ONLY, size - 12, 12);
+      long footerOffset = tail.getLong();
+      if (tail.getInt() != CorpusWriter.MAGIC) {
+         throw new IOException("Corpus file is truncated.");
+      }
+
+      ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, footerOffset,
+                                      size - 12 - footerOffset);
+      int numBlocks = footer.getInt();
+      blockOffsets = new long[numBlocks];
+      blockFirstPosts = new long[numBlocks];
+      for (int ndx = 0; ndx < numBlocks; ndx++) {
+         blockOffsets[ndx] = footer.getLong();
+      }
+      for (int ndx = 0; ndx < numBlocks; ndx++) {
+         blockFirstPosts[ndx] = footer.getLong();
+      }
+      numPosts = footer.getLong();
+
+      vocabulary = new String[footer.getInt()];
+      for (int ndx = 0; ndx < vocabulary.length; ndx++) {
+         byte[] word = new byte[footer.getInt()];
+         footer.get(word);
+         vocabulary[ndx] = new String(word, StandardCharsets.UTF_8);
+      }
+   }
+
+   private Block loadBlock(int blockNdx) throws IOException {
+      long offset = blockOffsets[blockNdx];
+      ByteBuffer lengths = channel.map(FileChannel.MapMode.READ_ONLY, offset, 8);
+      int rawLength = lengths.getInt();
+      int storedLength = lengths.getInt();
+      if (rawLength < 0 || storedLength < 0 || offset + 8 + storedLength > channel.size()) {
+         throw new IOException("Corrupt block " + blockNdx);
+      }
+
+      ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, offset + 8, storedLength);
+      if (compressed) {
+         byte[] stored = new byte[storedLength];
+         data.get(stored);
+
+         byte[] raw = new byte[rawLength];
+         Inflater inflater = new Inflater();
+         try {
+            inflater.setInput(stored);
+            int size = 0;
+            while (!inflater.finished()) {
+               int count = inflater.inflate(raw, size, raw.length - size);
+               if (count == 0 && inflater.needsInput()) {
+                  throw new IOException("Truncated block " + blockNdx);
+               } else if (count == 0 && (inflater.needsDictionary() || size == raw.length)) {
+                  throw new IOException("Corrupt block " + blockNdx);
+               }
+               size += count;
+            }
+
+            if (size != rawLength) {
+               throw new IOException("Truncated block " + blockNdx);
+            }
+         } catch (DataFormatException ex) {
+            throw new IOException("Corrupt block " + blockNdx, ex);
+         } finally {
+            inflater.end();
+         }
+
+         data = ByteBuffer.wrap(raw);
+      }
+
+      return new Block(data);
+   }
+
+   /**
+    * A block of posts, backed by the mapped (or inflated) block.
+    */
+   public class Block {
+      private ByteBuffer data;
+      private int numPosts;
+
+      /**
+       * Where each post's tokens start (numPosts + 1 of them).
+       */
+      private IntBuffer postStarts;
+
+      /**
+       * The token IDs, or the UTF-8 byte offsets of the tokens.
+       */
+      private IntBuffer tokens;
+
+      /**
+       * Where the UTF-8 bytes start in data.
+       */
+      private int bytesStart;
+
+      private Block(ByteBuffer data) {
+         this.data = data;
+         numPosts = data.getInt(0);
+
+         postStarts = slice(data, 4, numPosts + 1);
+         int numTokens = postStarts.get(numPosts);
+
+         if (hasIds()) {
+            tokens = slice(data, 4 + 4 * (numPosts + 1), numTokens);
+         } else {
+            tokens = slice(data, 4 + 4 * (numPosts + 1), numTokens + 1);
+            bytesStart = 4 + 4 * (numPosts + 1) + 4 * (numTokens + 1);
+         }
+      }
+
+      public int numPosts() {
+         return numPosts;
+      }
+
+      public int numTokens(int post) {
+         return postStarts.get(post + 1) - postStarts.get(post);
+      }
+
+      /**
+       * Get the token IDs of a post as a view into the block (no copying).
+       */
+      public IntBuffer getIds(int post) {
+         if (!hasIds()) {
+            throw new UnsupportedOperationException("This corpus has no token IDs.");
+         }
+
+         return slice(tokens, postStarts.get(post), numTokens(post));
+      }
+
+      /**
+       * Get the words of a post.
+       */
+      public String[] getWords(int post) {
+         int start = postStarts.get(post);
+         String[] rtn = new String[numTokens(post)];
+
+         for (int ndx = 0; ndx < rtn.length; ndx++) {
+            int token = start + ndx;
+            if (hasIds()) {
+               rtn[ndx] = vocabulary[tokens.get(token)];
+            } else {
+               int from = tokens.get(token);
+               int to = tokens.get(token + 1);
+               ByteBuffer word = data.duplicate();
+               word.position(bytesStart + from);
+               word.limit(bytesStart + to);
+               rtn[ndx] = StandardCharsets.UTF_8.decode(word).toString();
+            }
+         }
+
+         return rtn;
+      }
+   }
+
+   private static IntBuffer slice(ByteBuffer buffer, int offset, int numInts) {
+      ByteBuffer view = buffer.duplicate();
+      view.position(offset);
+      view.limit(offset + 4 * numInts);
+      return view.slice().asIntBuffer();
+   }
+
+   private static IntBuffer slice(IntBuffer buffer, int offset, int length) {
+      IntBuffer view = buffer.duplicate();
+      view.position(offset);
+      view.limit(offset + length);
+      return view.slice();
+   }
+}
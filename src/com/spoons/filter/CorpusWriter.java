@@ -0,0 +1,300 @@
+/*
+ * com.spoons.filter
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.filter;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Writes filtered posts in a compact binary format that CorpusReader can map into
+ *  memory and read without parsing any text.
+ *
+ * Layout (all numbers big-endian):
+ *  Header:
+ *   int     MAGIC
+ *   int     VERSION
+ *   byte    mode (MODE_IDS or MODE_UTF8)
+ *   byte    1 if blocks are deflated, 0 otherwise
+ *   short   unused (0)
+ *   int     length of the fingerprint
+ *   byte[]  the filter fingerprint (UTF-8)
+ *  Blocks (up to postsPerBlock posts each):
+ *   int     raw length
+ *   int     stored length (same as raw length unless deflated)
+ *   byte[]  the stored block, which (once inflated) is:
+ *            int     number of posts (P)
+ *            int[P+1] where each post's tokens start (the last is the number of tokens, T)
+ *            MODE_IDS:  int[T] token IDs
+ *            MODE_UTF8: int[T+1] where each token's bytes start, then the UTF-8 bytes
+ *  Footer:
+ *   int     number of blocks (B)
+ *   long[B] file offset of each block
+ *   long[B] number of the first post in each block
+ *   long    total number of posts
+ *   int     vocabulary size (V, 0 in MODE_UTF8), then V of (int length, byte[] UTF-8 word)
+ *   long    file offset of the footer
+ *   int     MAGIC
+ */
+public class CorpusWriter {
+   public static final int MAGIC = 0x53504E46; // "SPNF"
+   public static final int VERSION = 1;
+
+   public static final byte MODE_IDS = 0;
+   public static final byte MODE_UTF8 = 1;
+
+   public static final int DEFAULT_POSTS_PER_BLOCK = 4096;
+
+   private DataOutputStream out;
+   private long position;
+
+   private Vocabulary vocabulary;
+   private boolean compress;
+   private int postsPerBlock;
+
+   private List<Long> blockOffsets;
+   private List<Long> blockFirstPosts;
+   private long numPosts;
+
+   /**
+    * The block being built.
+    */
+   private int blockPosts;
+   private int[] postStarts;
+   private int numTokens;
+   private int[] tokens;
+   private byte[] bytes;
+   private int numBytes;
+
+   /**
+    * Write posts as token IDs from vocabulary (which is saved in the file),
+    *  or as UTF-8 tokens if vocabulary is null.
+    *
+    * @param fingerprint The fingerprint of the filter that made the posts.
+    */
+   public CorpusWriter(File file, String fingerprint, Vocabulary vocabulary, boolean compress,
+                       int postsPerBlock) throws IOException {
+      if (postsPerBlock < 1) {
+         throw new IllegalArgumentException("postsPerBlock must be positive.");
+      }
+
+      this.vocabulary = vocabulary;
+      this.compress = compress;
+      this.postsPerBlock = postsPerBlock;
+
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+      position = 0;
+      blockOffsets = new ArrayList<Long>();
+      blockFirstPosts = new ArrayList<Long>();
+      numPosts = 0;
+
+      blockPosts = 0;
+      postStarts = new int[postsPerBlock + 1];
+      numTokens = 0;
+      tokens = new int[1024];
+      bytes = new byte[1024];
+      numBytes = 0;
+
+      byte[] fingerprintBytes = fingerprint.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeByte(vocabulary != null ? MODE_IDS : MODE_UTF8);
+      out.writeByte(compress ? 1 : 0);
+      out.writeShort(0);
+      out.writeInt(fingerprintBytes.length);
+      out.write(fingerprintBytes);
+      position += 16 + fingerprintBytes.length;
+   }
+
+   public CorpusWriter(File file, String fingerprint, Vocabulary vocabulary) throws IOException {
+      this(file, fingerprint, vocabulary, false, DEFAULT_POSTS_PER_BLOCK);
+   }
+
+   /**
+    * Filter a text file (one post per line) into a corpus file:
+    *  CorpusWriter [input] [output] [filter name (default: eriq)] [ids|utf8 (default: ids)]
+    */
+   public static void main(String[] args) throws IOException {
+      if (args.length < 2) {
+         System.err.println("USAGE: CorpusWriter <input> <output> [filter] [ids|utf8]");
+         System.exit(1);
+      }
+
+      TextFilter filter = TextFilter.forName(args.length > 2 ? args[2] : "eriq");
+      Vocabulary vocabulary = (args.length > 3 && args[3].equals("utf8")) ? null : new Vocabulary();
+
+      BufferedReader reader = new BufferedReader(new InputStreamReader(
+            new FileInputStream(args[0]), StandardCharsets.UTF_8));
+      CorpusWriter writer = new CorpusWriter(new File(args[1]), filter.fingerprint(), vocabulary);
+      try {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            writer.write(filter.splitFilter(line));
+         }
+      } finally {
+         reader.close();
+         writer.close();
+      }
+   }
+
+   /**
+    * Add a filtered post.
+    */
+   public void write(String[] words) throws IOException {
+      ensureTokens(numTokens + words.length + 1);
+
+      for (String word : words) {
+         if (vocabulary != null) {
+            tokens[numTokens++] = vocabulary.getId(word);
+         } else {
+            tokens[numTokens++] = numBytes;
+            byte[] wordBytes = word.getBytes(StandardCharsets.UTF_8);
+            if (numBytes + wordBytes.length > bytes.length) {
+               bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, numBytes + wordBytes.length));
+            }
+            System.arraycopy(wordBytes, 0, bytes, numBytes, wordBytes.length);
+            numBytes += wordBytes.length;
+         }
+      }
+
+      blockPosts++;
+      postStarts[blockPosts] = numTokens;
+
+      if (blockPosts == postsPerBlock) {
+         flushBlock();
+      }
+   }
+
+   /**
+    * Write out the last block and the footer.
+    */
+   public void close() throws IOException {
+      try {
+         if (blockPosts > 0) {
+            flushBlock();
+         }
+
+         long footerOffset = position;
+         out.writeInt(blockOffsets.size());
+         for (Long offset : blockOffsets) {
+            out.writeLong(offset);
+         }
+         for (Long firstPost : blockFirstPosts) {
+            out.writeLong(firstPost);
+         }
+         out.writeLong(numPosts);
+
+         if (vocabulary == null) {
+            out.writeInt(0);
+         } else {
+            int size = vocabulary.size();
+            out.writeInt(size);
+            for (int id = 0; id < size; id++) {
+               byte[] word = vocabulary.getWord(id).getBytes(StandardCharsets.UTF_8);
+               out.writeInt(word.length);
+               out.write(word);
+            }
+         }
+
+         out.writeLong(footerOffset);
+         out.writeInt(MAGIC);
+      } finally {
+         out.close();
+      }
+   }
+
+   private void ensureTokens(int size) {
+      if (size > tokens.length) {
+         tokens = Arrays.copyOf(tokens, Math.max(tokens.length * 2, size));
+      }
+   }
+
+   private void flushBlock() throws IOException {
+      int rawLength = 4 + 4 * (blockPosts + 1) + 4 * numTokens;
+      if (vocabulary == null) {
+         rawLength += 4 + numBytes;
+      }
+
+      ByteBuffer raw = ByteBuffer.allocate(rawLength);
+      raw.putInt(blockPosts);
+      for (int ndx = 0; ndx <= blockPosts; ndx++) {
+         raw.putInt(postStarts[ndx]);
+      }
+      for (int ndx = 0; ndx < numTokens; ndx++) {
+         raw.putInt(tokens[ndx]);
+      }
+      if (vocabulary == null) {
+         raw.putInt(numBytes);
+         raw.put(bytes, 0, numBytes);
+      }
+
+      byte[] stored = raw.array();
+      int storedLength = rawLength;
+      if (compress) {
+         Deflater deflater = new Deflater();
+         deflater.setInput(stored);
+         deflater.finish();
+
+         byte[] compressed = new byte[rawLength + 64];
+         storedLength = 0;
+         while (!deflater.finished()) {
+            if (storedLength == compressed.length) {
+               compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            storedLength += deflater.deflate(compressed, storedLength, compressed.length - storedLength);
+         }
+         deflater.end();
+         stored = compressed;
+      }
+
+      blockOffsets.add(position);
+      blockFirstPosts.add(numPosts);
+
+      out.writeInt(rawLength);
+      out.writeInt(storedLength);
+      out.write(stored, 0, storedLength);
+      position += 8 + storedLength;
+
+      numPosts += blockPosts;
+      blockPosts = 0;
+      numTokens = 0;
+      numBytes = 0;
+   }
+}
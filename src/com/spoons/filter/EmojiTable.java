@@ -0,0 +1,304 @@
+/*
+ * com.spoons.filter
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.filter;
+
+/**
+ * Recognizes emoji (and the sequences built out of them: skin tones, variation
+ *  selectors, ZWJ sequences, flags) so that SmartSplitString can turn them into
+ *  "<$emote:...$>" meta words instead of dropping them.
+ *
+ * The emoji live in two blocks (U+2000 - U+2BFF and U+1F000 - U+1FAFF), and
+ *  each block has a flat table of name indexes built from the ranges below
+ *  when the class loads. So checking a code point is a compare and an array
+ *  load, and anything below U+2000 (all of ASCII and the alphabets) is rejected
+ *  with the first compare.
+ * The one exception is keycaps ("#", "*" or a digit, then maybe U+FE0F, then
+ *  U+20E3), see isKeycapStart().
+ *
+ * Emoji that carry sentiment get the same names as the ASCII emoticons in
+ *  emoticons.txt, the rest are just "emoji".
+ */
+public class EmojiTable {
+   /**
+    * Nothing below this is ever an emoji, except for the start of a keycap.
+    */
+   public static final char MIN_CHAR = (char)0x2000;
+
+   private static final char KEYCAP = (char)0x20E3;
+   private static final char EMOJI_PRESENTATION = (char)0xFE0F;
+
+   private static final String[] NAMES = {
+      null,
+      "emoji",
+      "smile",
+      "laugh",
+      "wink",
+      "heart",
+      "frown",
+      "angry",
+      "thumbsup",
+      "thumbsdown",
+      "flag"
+   };
+
+   private static final int EMOJI = 1;
+   private static final int SMILE = 2;
+   private static final int LAUGH = 3;
+   private static final int WINK = 4;
+   private static final int HEART = 5;
+   private static final int FROWN = 6;
+   private static final int ANGRY = 7;
+   private static final int THUMBS_UP = 8;
+   private static final int THUMBS_DOWN = 9;
+   private static final int FLAG = 10;
+
+   /**
+    * The meta word for each name.
+    */
+   private static final String[] TOKENS = new String[NAMES.length];
+
+   private static final int SYMBOLS_START = 0x2000;
+   private static final int PICTOGRAPHS_START = 0x1F000;
+
+   private static final byte[] SYMBOLS = new byte[0x2C00 - SYMBOLS_START];
+   private static final byte[] PICTOGRAPHS = new byte[0x1FB00 - PICTOGRAPHS_START];
+
+   /**
+    * {first, last, name}.
+    * Later entries override earlier ones, so the general ranges come first.
+    */
+   private static final int[][] RANGES = {
+      // General emoji blocks.
+      {0x203C, 0x203C, EMOJI}, {0x2049, 0x2049, EMOJI},
+      {0x231A, 0x231B, EMOJI}, {0x2328, 0x2328, EMOJI}, {0x23CF, 0x23CF, EMOJI},
+      {0x23E9, 0x23F3, EMOJI}, {0x23F8, 0x23FA, EMOJI},
+      {0x25AA, 0x25AB, EMOJI}, {0x25B6, 0x25B6, EMOJI}, {0x25C0, 0x25C0, EMOJI},
+      {0x25FB, 0x25FE, EMOJI},
+      {0x2600, 0x27BF, EMOJI},
+      {0x2934, 0x2935, EMOJI},
+      {0x2B05, 0x2B07, EMOJI}, {0x2B1B, 0x2B1C, EMOJI}, {0x2B50, 0x2B50, EMOJI},
+      {0x2B55, 0x2B55, EMOJI},
+      {0x1F004, 0x1F004, EMOJI}, {0x1F0CF, 0x1F0CF, EMOJI},
+      {0x1F170, 0x1F251, EMOJI},
+      {0x1F300, 0x1F64F, EMOJI},
+      {0x1F680, 0x1F6FF, EMOJI},
+      {0x1F7E0, 0x1F7F0, EMOJI},
+      {0x1F90C, 0x1F9FF, EMOJI},
+      {0x1FA70, 0x1FAFF, EMOJI},
+      {0x1F1E6, 0x1F1FF, FLAG},
+
+      // Smiles.
+      {0x263A, 0x263A, SMILE},
+      {0x1F600, 0x1F601, SMILE}, {0x1F603, 0x1F607, SMILE}, {0x1F60A, 0x1F60C, SMILE},
+      {0x1F60E, 0x1F60E, SMILE}, {0x1F642, 0x1F642, SMILE}, {0x1F917, 0x1F917, SMILE},
+      {0x1F929, 0x1F929, SMILE}, {0x1F60B, 0x1F60B, SMILE},
+
+      // Laughing.
+      {0x1F602, 0x1F602, LAUGH}, {0x1F923, 0x1F923, LAUGH}, {0x1F606, 0x1F606, LAUGH},
+
+      // Winks.
+      {0x1F609, 0x1F609, WINK}, {0x1F61C, 0x1F61C, WINK},
+
+      // Hearts.
+      {0x2665, 0x2665, HEART}, {0x2763, 0x2764, HEART},
+      {0x1F48B, 0x1F48B, HEART}, {0x1F493, 0x1F493, HEART}, {0x1F495, 0x1F49F, HEART},
+      {0x1F5A4, 0x1F5A4, HEART}, {0x1F60D, 0x1F60D, HEART}, {0x1F617, 0x1F61A, HEART},
+      {0x1F63B, 0x1F63B, HEART}, {0x1F90D, 0x1F90E, HEART}, {0x1F970, 0x1F970, HEART},
+      {0x1F9E1, 0x1F9E1, HEART},
+
+      // Frowns (sad, crying, worried).
+      {0x2639, 0x2639, FROWN}, {0x1F494, 0x1F494, FROWN},
+      {0x1F614, 0x1F615, FROWN}, {0x1F61E, 0x1F61F, FROWN}, {0x1F622, 0x1F623, FROWN},
+      {0x1F625, 0x1F62B, FROWN}, {0x1F62D, 0x1F62D, FROWN}, {0x1F630, 0x1F630, FROWN},
+      {0x1F641, 0x1F641, FROWN}, {0x1F97A, 0x1F97A, FROWN},
+
+      // Angry.
+      {0x1F47F, 0x1F47F, ANGRY}, {0x1F620, 0x1F621, ANGRY}, {0x1F624, 0x1F624, ANGRY},
+      {0x1F92C, 0x1F92C, ANGRY},
+
+      {0x1F44D, 0x1F44D, THUMBS_UP},
+      {0x1F44E, 0x1F44E, THUMBS_DOWN}
+   };
+
+   static {
+      for (int ndx = 1; ndx < NAMES.length; ndx++) {
+         TOKENS[ndx] = "<$emote:" + NAMES[ndx] + "$>";
+      }
+
+      for (int[] range : RANGES) {
+         for (int codePoint = range[0]; codePoint <= range[1]; codePoint++) {
+            if (codePoint >= PICTOGRAPHS_START) {
+               PICTOGRAPHS[codePoint - PICTOGRAPHS_START] = (byte)range[2];
+            } else {
+               SYMBOLS[codePoint - SYMBOLS_START] = (byte)range[2];
+            }
+         }
+      }
+   }
+
+   /**
+    * Private to promote static behavior.
+    */
+   private EmojiTable() {
+   }
+
+   /**
+    * Get the emoji name of a code point, null if it is not an emoji.
+    */
+   public static String getName(int codePoint) {
+      return NAMES[nameIndex(codePoint)];
+   }
+
+   /**
+    * Check for an emoji (sequence) that starts at text[index].
+    *
+    * @return The length (in chars) of the emoji, and its name index (in the low
+    *  byte), as one int. 0 if there is no emoji at index.
+    *  See matchLength() and matchToken().
+    */
+   public static int match(CharSequence text, int index) {
+      int codePoint = codePointAt(text, index);
+      int name = nameIndex(codePoint);
+      if (name == 0) {
+         if (isKeycapBase(codePoint)) {
+            return matchKeycap(text, index);
+         }
+         return 0;
+      }
+
+      int end = index + Character.charCount(codePoint);
+
+      // Two regional indicators are a flag.
+      if (name == FLAG) {
+         int next = codePointAt(text, end);
+         if (nameIndex(next) == FLAG) {
+            end += Character.charCount(next);
+         }
+      }
+
+      while (end < text.length()) {
+         int next = codePointAt(text, end);
+
+         if (isModifier(next)) {
+            end += Character.charCount(next);
+         } else if (next == 0x200D) {
+            // Zero width joiner, only part of the emoji if another emoji follows.
+            int joined = codePointAt(text, end + 1);
+            if (nameIndex(joined) == 0) {
+               break;
+            }
+            end += 1 + Character.charCount(joined);
+         } else {
+            break;
+         }
+      }
+
+      return ((end - index) << 8) | name;
+   }
+
+   /**
+    * Whether a char below MIN_CHAR starts a keycap, given the char after it
+    *  ('\0' if there is none). The rest of the keycap is checked by match().
+    */
+   public static boolean isKeycapStart(char character, char next) {
+      return isKeycapBase(character) && (next == KEYCAP || next == EMOJI_PRESENTATION);
+   }
+
+   /**
+    * The number of chars in a match from match().
+    */
+   public static int matchLength(int match) {
+      return match >>> 8;
+   }
+
+   /**
+    * The meta word ("<$emote:...$>") for a match from match().
+    */
+   public static String matchToken(int match) {
+      return TOKENS[match & 0xFF];
+   }
+
+   private static boolean isKeycapBase(int codePoint) {
+      return codePoint == '#' || codePoint == '*' || ('0' <= codePoint && codePoint <= '9');
+   }
+
+   /**
+    * "#", "*" or a digit, an optional U+FE0F, then U+20E3.
+    */
+   private static int matchKeycap(CharSequence text, int index) {
+      int end = index + 1;
+      if (end < text.length() && text.charAt(end) == EMOJI_PRESENTATION) {
+         end++;
+      }
+
+      if (end >= text.length() || text.charAt(end) != KEYCAP) {
+         return 0;
+      }
+
+      return ((end + 1 - index) << 8) | EMOJI;
+   }
+
+   private static int nameIndex(int codePoint) {
+      if (codePoint < SYMBOLS_START) {
+         return 0;
+      }
+
+      if (codePoint < SYMBOLS_START + SYMBOLS.length) {
+         return SYMBOLS[codePoint - SYMBOLS_START];
+      }
+
+      if (codePoint >= PICTOGRAPHS_START && codePoint < PICTOGRAPHS_START + PICTOGRAPHS.length) {
+         return PICTOGRAPHS[codePoint - PICTOGRAPHS_START];
+      }
+
+      return 0;
+   }
+
+   /**
+    * Code points that only modify the emoji before them:
+    *  variation selectors, skin tones, the keycap, and tags (for subdivision flags).
+    */
+   private static boolean isModifier(int codePoint) {
+      return codePoint == 0xFE0F || codePoint == 0xFE0E ||
+             (codePoint >= 0x1F3FB && codePoint <= 0x1F3FF) ||
+             codePoint == 0x20E3 ||
+             (codePoint >= 0xE0020 && codePoint <= 0xE007F);
+   }
+
+   /**
+    * Like Character.codePointAt(), but -1 past the end.
+    */
+   private static int codePointAt(CharSequence text, int index) {
+      if (index >= text.length()) {
+         return -1;
+      }
+
+      return Character.codePointAt(text, index);
+   }
+}
@@ -32,15 +32,95 @@ import dk.brics.automaton.AutomatonMatcher;
 import dk.brics.automaton.RegExp;
 import dk.brics.automaton.RunAutomaton;
 
-import java.util.HashMap;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Parses emoticons out of tweets.
  *
+ * The emoticons come from a dictionary file (see emoticons.txt next to this
+ *  class, or the file named by the "spoons.emoticons" system property).
+ * Compiling the automata is slow, so the compiled automata can be cached on disk
+ *  under a hash of the dictionary, in the directory named by the
+ *  "spoons.emoticons.cache" property. There is no cache unless it is set.
+ *  The directory must be private to the user (it is created that way), and
+ *  the cache is only allowed to hold automata, so no one else can plant objects
+ *  in it. Changing the dictionary just makes a new cache entry.
+ *
  * @author Allen Dunlea and Ryan Hnarakis
  *
  */
 public class EmoticonParser {
+   /**
+    * The system property with the path of the dictionary to use instead of the
+    *  default one.
+    */
+   public static final String DICTIONARY_PROPERTY = "spoons.emoticons";
+
+   /**
+    * The system property with the directory for the compiled automata.
+    * It is created readable by the owner only, and ignored if anyone else
+    *  can write to it.
+    */
+   public static final String CACHE_DIR_PROPERTY = "spoons.emoticons.cache";
+
+   private static final String DICTIONARY_RESOURCE = "emoticons.txt";
+
+   /**
+    * Part of the cache key, change it if the cache layout changes.
+    */
+   private static final String CACHE_VERSION = "1";
+
+   /**
+    * The most any array in the cache can hold, the biggest automaton tables
+    *  are a few thousand entries.
+    */
+   private static final int MAX_CACHE_ARRAY = 1 << 20;
+
+   /**
+    * Only lets the automata (and the arrays and primitives that make them up)
+    *  out of the cache.
+    */
+   private static final ObjectInputFilter CACHE_FILTER = new ObjectInputFilter() {
+      public Status checkInput(FilterInfo info) {
+         if (info.depth() > 8 || info.arrayLength() > MAX_CACHE_ARRAY) {
+            return Status.REJECTED;
+         }
+
+         Class<?> type = info.serialClass();
+         if (type == null) {
+            return Status.UNDECIDED;
+         }
+
+         while (type.isArray()) {
+            type = type.getComponentType();
+         }
+
+         if (type.isPrimitive() || type.getName().startsWith("dk.brics.automaton.")) {
+            return Status.ALLOWED;
+         }
+
+         return Status.REJECTED;
+      }
+   };
+
    /**
     * This string represents how the emoticon replacements will be formated.
     */
@@ -51,7 +131,12 @@ public class EmoticonParser {
     * this is just one method that I implemented for it's ease
     * and so that testing could be done.
     */
-   private HashMap <RunAutomaton, String> emoticons = null;
+   private Map<RunAutomaton, String> emoticons = null;
+
+   /**
+    * If the emoticons are the bundled ones (the ones TriggerMask knows about).
+    */
+   private boolean bundled = false;
 
    /**
     *
@@ -66,7 +151,17 @@ public class EmoticonParser {
     *
     */
    public EmoticonParser() {
-      emoticons = buildDictionary();
+      bundled = System.getProperty(DICTIONARY_PROPERTY) == null;
+      emoticons = loadDictionary(readDefaultDictionary());
+   }
+
+   /**
+    * @param format How the emoticon replacements will be formated.
+    * @param dictionary The emoticons to use, in the same format as emoticons.txt.
+    */
+   public EmoticonParser(String format, File dictionary) throws IOException {
+      this.format = format;
+      emoticons = loadDictionary(Files.readAllBytes(dictionary.toPath()));
    }
 
    /**
@@ -112,6 +207,14 @@ public class EmoticonParser {
       return format;
    }
 
+   /**
+    * @return true if this uses the bundled dictionary, false if it was loaded
+    *  from a file (which may have emoticons without any of the usual triggers).
+    */
+   public boolean isBundledDictionary() {
+      return bundled;
+   }
+
 
    /**
     * Replaces an emoticon with a word using the set format (defaults to "%s").
@@ -123,60 +226,206 @@ public class EmoticonParser {
    }
 
    /**
-    * Builds a basic dictionary of emoticons to words
-    * The keys are finite state automaton.
-    * @return
+    * A digest of the dictionary that new parsers load by default,
+    *  see FilterRuntime.describe().
     */
-   private HashMap<RunAutomaton,String> buildDictionary() {
-      HashMap<RunAutomaton,String> dictionary = new HashMap<RunAutomaton, String>();
+   public static String getDefaultDictionaryDigest() {
+      return FilterRuntime.digest(readDefaultDictionary());
+   }
 
-      //eyes on left smiles
-      dictionary.put(new RunAutomaton(new RegExp("[:8=][ -o]?[\\)\\]>\\}D]").toAutomaton()),
-                     "smile");
+   /**
+    * Get the default dictionary, from the system property or the classpath.
+    */
+   private static byte[] readDefaultDictionary() {
+      String path = System.getProperty(DICTIONARY_PROPERTY);
 
-      //eyes on right smiles
-      dictionary.put(new RunAutomaton(new RegExp("[\\(\\[<\\{C][ -o]?[:8=]").toAutomaton()),
-                     "smile");
+      try {
+         if (path != null) {
+            return Files.readAllBytes(new File(path).toPath());
+         }
 
-      //eyes on left angry
-      dictionary.put(new RunAutomaton(new RegExp(">[:8=][ -o]?[\\(\\[<\\{o]").toAutomaton()),
-                     "angry");
+         InputStream inputStream = EmoticonParser.class.getResourceAsStream(DICTIONARY_RESOURCE);
+         if (inputStream == null) {
+            throw new IllegalStateException("Could not find the emoticon dictionary (" +
+                                            DICTIONARY_RESOURCE + ") on the classpath.");
+         }
 
-       //eyes on right angry
-      dictionary.put(new RunAutomaton((new RegExp("[\\)\\]>\\}Do][ -o]?[:8=]\\<")).toAutomaton()),
-                     "angry");
+         try {
+            return inputStream.readAllBytes();
+         } finally {
+            inputStream.close();
+         }
+      } catch (IOException ex) {
+         throw new IllegalStateException("Could not read the emoticon dictionary.", ex);
+      }
+   }
 
-      //eyes on left frowns
-      dictionary.put(new RunAutomaton(new RegExp("[:8=][ -o]?[\\(\\[\\{C]").toAutomaton()),
-                     "frown");
+   /**
+    * Get the compiled dictionary from the cache, or compile it (and cache it).
+    */
+   private static Map<RunAutomaton, String> loadDictionary(byte[] dictionary) {
+      File cacheFile = getCacheFile(dictionary);
+
+      if (cacheFile != null && cacheFile.isFile()) {
+         try {
+            return readCache(cacheFile);
+         } catch (Exception ex) {
+            // Corrupt, or from an incompatible automaton library. Just rebuild it.
+         }
+      }
+
+      Map<RunAutomaton, String> rtn = buildDictionary(dictionary);
+
+      if (cacheFile != null) {
+         try {
+            writeCache(cacheFile, rtn);
+         } catch (IOException ex) {
+            System.err.println("Could not cache the emoticons in " + cacheFile + ": " + ex);
+         }
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Builds the dictionary of emoticons to words.
+    * The keys are finite state automaton, in the same order as the dictionary.
+    */
+   private static Map<RunAutomaton, String> buildDictionary(byte[] dictionary) {
+      Map<RunAutomaton, String> rtn = new LinkedHashMap<RunAutomaton, String>();
+
+      String[] lines = new String(dictionary, StandardCharsets.UTF_8).split("\r?\n");
+      for (int ndx = 0; ndx < lines.length; ndx++) {
+         String line = lines[ndx];
+         if (line.trim().isEmpty() || line.startsWith("#")) {
+            continue;
+         }
+
+         int tab = line.indexOf('\t');
+         if (tab <= 0 || tab == line.length() - 1) {
+            throw new IllegalArgumentException("Bad emoticon on line " + (ndx + 1) +
+                                               ", expected \"name<tab>regex\": " + line);
+         }
+
+         rtn.put(new RunAutomaton(new RegExp(line.substring(tab + 1)).toAutomaton()),
+                 line.substring(0, tab));
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Where the compiled version of the dictionary goes, null if there is no cache.
+    */
+   private static File getCacheFile(byte[] dictionary) {
+      String dir = System.getProperty(CACHE_DIR_PROPERTY);
+      if (dir == null || dir.isEmpty() || !isPrivateDirectory(new File(dir))) {
+         return null;
+      }
+
+      try {
+         MessageDigest digest = MessageDigest.getInstance("SHA-256");
+         digest.update(CACHE_VERSION.getBytes(StandardCharsets.UTF_8));
+         digest.update(dictionary);
+
+         StringBuilder name = new StringBuilder("spoons-emoticons-");
+         byte[] hash = digest.digest();
+         for (int ndx = 0; ndx < 16; ndx++) {
+            name.append(String.format("%02x", hash[ndx]));
+         }
+         name.append(".cache");
+
+         return new File(dir, name.toString());
+      } catch (NoSuchAlgorithmException ex) {
+         return null;
+      }
+   }
+
+   /**
+    * Makes the cache directory (owner only) if needed, and checks that no one
+    *  else owns it or can write to it.
+    */
+   private static boolean isPrivateDirectory(File dir) {
+      Path path = dir.toPath();
+
+      try {
+         boolean posix = path.getFileSystem().supportedFileAttributeViews().contains("posix");
+
+         if (!Files.isDirectory(path)) {
+            if (posix) {
+               Files.createDirectories(path, PosixFilePermissions.asFileAttribute(
+                PosixFilePermissions.fromString("rwx------")));
+            } else {
+               Files.createDirectories(path);
+            }
+         }
 
-      //eyes on right frowns
-      dictionary.put(new RunAutomaton(new RegExp("[\\)\\]\\}D][ -o]?[:8=]").toAutomaton()),
-                     "frown");
+         if (!posix) {
+            return true;
+         }
 
-      //eyes on left smiles
-      dictionary.put(new RunAutomaton(new RegExp(";[ -o]?[\\)\\]>\\}D]").toAutomaton()), "wink");
+         String user = System.getProperty("user.name");
+         Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path);
+         if (!Files.getOwner(path).getName().equals(user) ||
+             permissions.contains(PosixFilePermission.GROUP_WRITE) ||
+             permissions.contains(PosixFilePermission.OTHERS_WRITE)) {
+            System.err.println("Not caching the emoticons in " + dir +
+                               ", it is not private to " + user);
+            return false;
+         }
 
-      //eyes on right winks
-      dictionary.put(new RunAutomaton(new RegExp("[\\(\\[<\\{][ -o]?;").toAutomaton()), "wink");
+         return true;
+      } catch (IOException ex) {
+         System.err.println("Not caching the emoticons in " + dir + ": " + ex);
+         return false;
+      }
+   }
 
-      //eyes on left smiles
-      dictionary.put(new RunAutomaton(new RegExp("[:8=][ ]?[\\\\/]").toAutomaton()), "slant");
+   private static Map<RunAutomaton, String> readCache(File cacheFile)
+    throws IOException, ClassNotFoundException {
+      Map<RunAutomaton, String> rtn = new LinkedHashMap<RunAutomaton, String>();
 
-      //eyes on right winks
-      dictionary.put(new RunAutomaton(new RegExp("[\\\\/][ ]?[:=8]").toAutomaton()), "slant");
+      ObjectInputStream inputStream = new ObjectInputStream(new FileInputStream(cacheFile));
+      try {
+         inputStream.setObjectInputFilter(CACHE_FILTER);
 
-      //heart
-      dictionary.put(new RunAutomaton(new RegExp("\\<3").toAutomaton()), "heart");
+         int size = inputStream.readInt();
+         for (int ndx = 0; ndx < size; ndx++) {
+            String name = inputStream.readUTF();
+            rtn.put((RunAutomaton)inputStream.readObject(), name);
+         }
+      } finally {
+         inputStream.close();
+      }
 
-      //eastern faces
-      dictionary.put(new RunAutomaton(new RegExp(">.>").toAutomaton()), "shifty");
-      dictionary.put(new RunAutomaton(new RegExp("\\<.\\<").toAutomaton()), "shifty");
+      return rtn;
+   }
 
-      dictionary.put(new RunAutomaton(new RegExp("\\^.\\^").toAutomaton()), "happy");
+   /**
+    * Write the cache to a temp file and move it into place, so that no one
+    *  ever reads half a cache.
+    */
+   private static void writeCache(File cacheFile, Map<RunAutomaton, String> dictionary)
+    throws IOException {
+      File tempFile = File.createTempFile(cacheFile.getName(), ".tmp", cacheFile.getParentFile());
 
-      dictionary.put(new RunAutomaton(new RegExp(">.\\<").toAutomaton()), "doh");
+      try {
+         ObjectOutputStream outputStream =
+          new ObjectOutputStream(new FileOutputStream(tempFile));
+         try {
+            outputStream.writeInt(dictionary.size());
+            for (Map.Entry<RunAutomaton, String> entry : dictionary.entrySet()) {
+               outputStream.writeUTF(entry.getValue());
+               outputStream.writeObject(entry.getKey());
+            }
+         } finally {
+            outputStream.close();
+         }
 
-      return dictionary;
+         Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+      } finally {
+         tempFile.delete();
+      }
    }
 }
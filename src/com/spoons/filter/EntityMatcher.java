@@ -0,0 +1,431 @@
+/*
+ * com.spoons.filter
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.filter;
+
+import com.spoons.control.Logger;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds entities from several named dictionaries (locations, campuses, landmarks,
+ *  movie titles, ...) in a single pass over a post and replaces each one with
+ *  a token for its type ("<$location$>", "<$campus$>", ...).
+ *
+ * All the dictionaries share one trie keyed by word (the same structure that
+ *  LocationFilter uses, but with WordTables so raw posts can be matched without
+ *  making Strings), and every node that ends an entry remembers which
+ *  dictionary it came from. At each word the longest entry from any dictionary
+ *  wins, so adding another dictionary does not add another scan over the post.
+ * If the same entry is in more than one dictionary, the one added first wins.
+ *
+ * Add all the dictionaries before sharing a matcher between threads,
+ *  after that it is read only.
+ * Raw posts are split with the Unicode mode (see SmartSplitString.setUnicodeMode())
+ *  that was on when the matcher was made, so make the matcher and add its
+ *  dictionaries in the same mode.
+ */
+public class EntityMatcher {
+   /**
+    * The first words of every entry.
+    */
+   private WordTable<Node> root;
+
+   /**
+    * The replacement for each type, "<$type$>".
+    */
+   private Map<String, String> replacements;
+
+   /**
+    * The replacement for each type in ASCII, for replace(AsciiWords, HeavyHitters).
+    * Null if any type is not ASCII.
+    */
+   private Map<String, byte[]> replacementBytes;
+
+   /**
+    * The number of distinct entries.
+    */
+   private int size;
+
+   /**
+    * Whether the entries were split in Unicode mode, raw posts are split the same way.
+    */
+   private boolean unicode;
+
+   public EntityMatcher() {
+      root = new WordTable<Node>();
+      replacements = new LinkedHashMap<String, String>();
+      replacementBytes = new HashMap<String, byte[]>();
+      size = 0;
+      unicode = SmartSplitString.isUnicodeMode();
+   }
+
+   /**
+    * If this matcher splits and folds words in Unicode mode.
+    */
+   public boolean isUnicodeMode() {
+      return unicode;
+   }
+
+   /**
+    * Add a dictionary of entries that will be replaced with "<$type$>".
+    * Entries are split with SmartSplitString.split(), so case and punctuation
+    *  do not matter.
+    */
+   public void addDictionary(String type, Collection<String> entries) {
+      replacements.put(type, "<$" + type + "$>");
+      byte[] replacement = replacements.get(type).getBytes(StandardCharsets.UTF_8);
+      if (replacementBytes != null && replacement.length == replacements.get(type).length()) {
+         replacementBytes.put(type, replacement);
+      } else {
+         replacementBytes = null;
+      }
+
+      for (String entry : entries) {
+         String[] words = SmartSplitString.split(entry);
+         if (words.length == 0) {
+            continue;
+         }
+
+         Node node = null;
+         for (String word : words) {
+            WordTable<Node> level = node == null ? root : node.children();
+            Node next = level.get(word);
+            if (next == null) {
+               next = new Node();
+               level.put(word, next);
+            }
+            node = next;
+         }
+
+         if (node.type == null) {
+            node.type = type;
+            node.entry = entry;
+            size++;
+         }
+      }
+   }
+
+   /**
+    * Add a dictionary from a file with one entry per line.
+    */
+   public void addDictionaryFile(String type, String filename) {
+      List<String> entries;
+      try {
+         entries = ReadFile.readFile(filename);
+      } catch (Exception ex) {
+         Logger.logError("Error reading the " + type + " dictionary: " + filename, ex);
+         entries = new ArrayList<String>();
+      }
+
+      addDictionary(type, entries);
+   }
+
+   /**
+    * Replace every entity in words with the replacement for its type.
+    * It is assumed that the given text has been split with SmartSplitString.split().
+    *
+    * @return words itself if nothing matched, otherwise a new array.
+    */
+   public String[] replace(String[] words) {
+      List<String> rtn = null;
+      int ndx = 0;
+
+      while (ndx < words.length) {
+         Node match = null;
+         int matchLen = 0;
+
+         Node node = root.get(words[ndx]);
+         for (int count = 1; node != null; count++) {
+            if (node.type != null) {
+               match = node;
+               matchLen = count;
+            }
+
+            if (ndx + count >= words.length) {
+               break;
+            }
+            node = node.next(words[ndx + count]);
+         }
+
+         if (match == null) {
+            if (rtn != null) {
+               rtn.add(words[ndx]);
+            }
+            ndx++;
+            continue;
+         }
+
+         // First match, copy over everything before it.
+         if (rtn == null) {
+            rtn = new ArrayList<String>(words.length);
+            for (int i = 0; i < ndx; i++) {
+               rtn.add(words[i]);
+            }
+         }
+
+         rtn.add(replacements.get(match.type));
+         ndx += matchLen;
+      }
+
+      if (rtn == null) {
+         return words;
+      }
+
+      return rtn.toArray(new String[0]);
+   }
+
+   /**
+    * replace() for the words of a pure ASCII post that are still bytes
+    *  (see AsciiWords). The words are replaced in place.
+    *
+    * @param counts If not null, every entity replaced is added to it
+    *  (as its words in the post, joined by spaces).
+    * @return false if a type is not ASCII (words is then left alone).
+    */
+   boolean replace(AsciiWords words, HeavyHitters counts) {
+      if (replacementBytes == null) {
+         return false;
+      }
+
+      int numWords = words.size();
+      int numOut = 0;
+      int ndx = 0;
+
+      while (ndx < numWords) {
+         Node match = null;
+         int matchLen = 0;
+
+         Node node = root.get(words.chars, words.start(ndx), words.end(ndx) - words.start(ndx));
+         for (int count = 1; node != null; count++) {
+            if (node.type != null) {
+               match = node;
+               matchLen = count;
+            }
+
+            int next = ndx + count;
+            if (next >= numWords) {
+               break;
+            }
+            node = node.next(words.chars, words.start(next),
+                             words.end(next) - words.start(next));
+         }
+
+         if (match == null) {
+            words.setWord(numOut++, words.start(ndx), words.end(ndx));
+            ndx++;
+            continue;
+         }
+
+         if (counts != null) {
+            counts.add(words.join(ndx, matchLen));
+         }
+
+         int start = words.append(replacementBytes.get(match.type));
+         words.setWord(numOut++, start, words.length());
+         ndx += matchLen;
+      }
+
+      words.truncate(numOut);
+      return true;
+   }
+
+   /**
+    * Find every entity in a raw (unsplit) post without changing it.
+    * The post is split into words the same way SmartSplitString.split() does
+    *  (lowercase a-z runs, apostrophes inside words dropped), but the words are
+    *  looked up straight out of the post, so no Strings are made.
+    * Like replace(), at each word the longest entry wins.
+    *
+    * @param post The post to search.
+    * @param matches Where the matches go, it is cleared first. Reuse it between
+    *  calls: once its buffers are big enough, extracting allocates nothing.
+    *
+    * @return The number of matches.
+    */
+   public int extract(String post, EntityMatches matches) {
+      matches.clear();
+      int numWords = matches.findWords(post, unicode);
+
+      int ndx = 0;
+      while (ndx < numWords) {
+         Node match = null;
+         int matchLen = 0;
+
+         int length = matches.loadWord(post, ndx, unicode);
+         Node node = root.get(matches.wordChars, 0, length);
+         for (int count = 1; node != null; count++) {
+            if (node.type != null) {
+               match = node;
+               matchLen = count;
+            }
+
+            if (ndx + count >= numWords) {
+               break;
+            }
+            length = matches.loadWord(post, ndx + count, unicode);
+            node = node.next(matches.wordChars, 0, length);
+         }
+
+         if (match == null) {
+            ndx++;
+         } else {
+            matches.add(match.type, match.entry, ndx, matchLen);
+            ndx += matchLen;
+         }
+      }
+
+      return matches.size();
+   }
+
+   /**
+    * Check if a raw (unsplit) post has any entity in it at all.
+    * This is a single pass over the post that stops at the first entity, and it
+    *  allocates nothing once scratch has warmed up. Use it to skip the full
+    *  filter on posts that do not matter.
+    *
+    * Words are found like in extract(). Since links and emoticons have not been
+    *  replaced yet, a post may pass because of an entity that the full filter
+    *  would not find (like one inside a link), but a post that the full filter
+    *  would find an entity in always passes.
+    *
+    * @param scratch Reusable buffers, see EntityMatches.
+    */
+   public boolean matchesAny(String post, EntityMatches scratch) {
+      // All the partial matches that the next word may continue.
+      Object[] active = scratch.active;
+      int numActive = 0;
+      int ndx = 0;
+
+      while ((ndx = scratch.nextWord(post, ndx, unicode)) != -1) {
+         int length = scratch.loadLastWord(post, unicode);
+         char[] word = scratch.wordChars;
+
+         int numNext = 0;
+         for (int i = 0; i < numActive; i++) {
+            Node next = ((Node)active[i]).next(word, 0, length);
+            if (next != null) {
+               if (next.type != null) {
+                  return true;
+               }
+               active[numNext++] = next;
+            }
+         }
+
+         Node start = root.get(word, 0, length);
+         if (start != null) {
+            if (start.type != null) {
+               return true;
+            }
+
+            if (numNext == active.length) {
+               active = Arrays.copyOf(active, active.length * 2);
+               scratch.active = active;
+            }
+            active[numNext++] = start;
+         }
+
+         // Clear out the references that are not active anymore.
+         for (int i = numNext; i < numActive; i++) {
+            active[i] = null;
+         }
+         numActive = numNext;
+      }
+
+      for (int i = 0; i < numActive; i++) {
+         active[i] = null;
+      }
+
+      return false;
+   }
+
+   /**
+    * The dictionary types (in priority order) and the number of entries.
+    */
+   public String toString() {
+      return "EntityMatcher" + replacements.keySet() + "(" + size + ")";
+   }
+
+   private static class Node {
+      /**
+       * The dictionary that an entry ending here came from, null if no entry ends here.
+       */
+      public String type;
+
+      /**
+       * The entry (as it was given) that ends here, null if no entry ends here.
+       */
+      public String entry;
+
+      /**
+       * The entries that use this word and continue.
+       * Most nodes are the last word of their entries, so this is null until the
+       *  first next word is added (see children()).
+       */
+      public WordTable<Node> nextWords;
+
+      public Node() {
+         type = null;
+         entry = null;
+         nextWords = null;
+      }
+
+      /**
+       * The next words, made if there are none yet.
+       */
+      public WordTable<Node> children() {
+         if (nextWords == null) {
+            nextWords = new WordTable<Node>();
+         }
+
+         return nextWords;
+      }
+
+      /**
+       * @return The node for the next word, or null if no entry continues with it.
+       */
+      public Node next(String word) {
+         return nextWords == null ? null : nextWords.get(word);
+      }
+
+      public Node next(char[] chars, int offset, int length) {
+         return nextWords == null ? null : nextWords.get(chars, offset, length);
+      }
+
+      public Node next(byte[] bytes, int offset, int length) {
+         return nextWords == null ? null : nextWords.get(bytes, offset, length);
+      }
+   }
+}
@@ -0,0 +1,371 @@
+/*
+ * com.spoons.filter
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.filter;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * The entities found in a post by EntityMatcher.extract().
+ * For each match this has the dictionary type, the dictionary entry, the span of
+ *  words it covers, and the span of chars in the original post.
+ *
+ * Meant to be reused: all the buffers (including the scratch space used while
+ *  matching) only ever grow, so after a few posts extraction does not allocate.
+ * Not thread safe, use one per thread.
+ */
+public class EntityMatches {
+   private static final int INITIAL_SIZE = 16;
+
+   private int size;
+   private String[] types;
+   private String[] entries;
+   private int[] firstWords;
+   private int[] numWords;
+
+   /**
+    * Where every word in the current post starts and ends (exclusive).
+    */
+   private int[] wordStarts;
+   private int[] wordEnds;
+
+   /**
+    * The last word loaded by loadWord() or loadLastWord(), the way
+    *  SmartSplitString.split() would make it. Looked up in EntityMatcher's
+    *  WordTables without making a String.
+    */
+   char[] wordChars;
+
+   /**
+    * wordChars as a CharSequence, see wordView().
+    */
+   private CharBuffer wordView;
+
+   /**
+    * The bounds of the last word found by nextWord().
+    */
+   private int lastStart;
+   private int lastEnd;
+
+   /**
+    * Scratch space for EntityMatcher.matchesAny(): the partial matches in progress.
+    */
+   Object[] active;
+
+   public EntityMatches() {
+      size = 0;
+      types = new String[INITIAL_SIZE];
+      entries = new String[INITIAL_SIZE];
+      firstWords = new int[INITIAL_SIZE];
+      numWords = new int[INITIAL_SIZE];
+      wordStarts = new int[INITIAL_SIZE];
+      wordEnds = new int[INITIAL_SIZE];
+      wordChars = new char[32];
+      active = new Object[INITIAL_SIZE];
+   }
+
+   public int size() {
+      return size;
+   }
+
+   public void clear() {
+      for (int ndx = 0; ndx < size; ndx++) {
+         types[ndx] = null;
+         entries[ndx] = null;
+      }
+      size = 0;
+   }
+
+   /**
+    * The dictionary type of a match ("location", ...).
+    */
+   public String getType(int match) {
+      checkMatch(match);
+      return types[match];
+   }
+
+   /**
+    * The dictionary entry of a match, as it was given to the EntityMatcher
+    *  ("San Luis Obispo" even if the post said "san luis obispo").
+    */
+   public String getEntry(int match) {
+      checkMatch(match);
+      return entries[match];
+   }
+
+   /**
+    * The index of the first word of a match, in SmartSplitString.split() words.
+    */
+   public int getFirstWord(int match) {
+      checkMatch(match);
+      return firstWords[match];
+   }
+
+   public int getNumWords(int match) {
+      checkMatch(match);
+      return numWords[match];
+   }
+
+   /**
+    * The index of the first char of a match in the post.
+    */
+   public int getStart(int match) {
+      checkMatch(match);
+      return wordStarts[firstWords[match]];
+   }
+
+   /**
+    * The index one past the last char of a match in the post.
+    */
+   public int getEnd(int match) {
+      checkMatch(match);
+      return wordEnds[firstWords[match] + numWords[match] - 1];
+   }
+
+   public String toString() {
+      StringBuilder rtn = new StringBuilder("[");
+      for (int ndx = 0; ndx < size; ndx++) {
+         if (ndx > 0) {
+            rtn.append(", ");
+         }
+         rtn.append(types[ndx]).append(":").append(entries[ndx])
+            .append("@").append(getStart(ndx)).append("-").append(getEnd(ndx));
+      }
+
+      return rtn.append("]").toString();
+   }
+
+   void add(String type, String entry, int firstWord, int wordCount) {
+      if (size == types.length) {
+         int newSize = size * 2;
+         types = Arrays.copyOf(types, newSize);
+         entries = Arrays.copyOf(entries, newSize);
+         firstWords = Arrays.copyOf(firstWords, newSize);
+         numWords = Arrays.copyOf(numWords, newSize);
+      }
+
+      types[size] = type;
+      entries[size] = entry;
+      firstWords[size] = firstWord;
+      numWords[size] = wordCount;
+      size++;
+   }
+
+   /**
+    * Find all the words in a post.
+    * Words are runs of lowercase a-z and may have apostrophes in them,
+    *  just like in SmartSplitString.split().
+    * In Unicode mode (see SmartSplitString.setUnicodeMode()) the non-ASCII
+    *  letters are part of words too, and the combining marks that
+    *  UnicodeFolding drops neither start nor end a word.
+    *
+    * @return The number of words.
+    */
+   int findWords(String post, boolean unicode) {
+      int count = 0;
+      int start = -1;
+
+      for (int ndx = 0; ndx < post.length(); ndx++) {
+         char currentChar = Character.toLowerCase(post.charAt(ndx));
+
+         if (isWordChar(currentChar, unicode)) {
+            if (start == -1) {
+               start = ndx;
+            }
+         } else if (start != -1 && currentChar == '\'' && ndx + 1 < post.length() &&
+                    isLetter(post.charAt(ndx + 1))) {
+            // Apostrophes inside of words get dropped, but keep the word going.
+            continue;
+         } else if (isDropped(currentChar, unicode)) {
+            continue;
+         } else if (start != -1) {
+            count = addWord(count, start, ndx);
+            start = -1;
+         }
+      }
+
+      if (start != -1) {
+         count = addWord(count, start, post.length());
+      }
+
+      return count;
+   }
+
+   /**
+    * Find the next word in a post, starting the search at from.
+    * Words are the same as in findWords().
+    * Use loadLastWord() to look the word up.
+    *
+    * @return The index just past the end of the word, or -1 if there are no more words.
+    */
+   int nextWord(String post, int from, boolean unicode) {
+      int start = -1;
+
+      for (int ndx = from; ndx < post.length(); ndx++) {
+         char currentChar = Character.toLowerCase(post.charAt(ndx));
+
+         if (isWordChar(currentChar, unicode)) {
+            if (start == -1) {
+               start = ndx;
+            }
+         } else if (start != -1 && currentChar == '\'' && ndx + 1 < post.length() &&
+                    isLetter(post.charAt(ndx + 1))) {
+            continue;
+         } else if (isDropped(currentChar, unicode)) {
+            continue;
+         } else if (start != -1) {
+            lastStart = start;
+            lastEnd = ndx;
+            return ndx;
+         }
+      }
+
+      if (start == -1) {
+         return -1;
+      }
+
+      lastStart = start;
+      lastEnd = post.length();
+      return lastEnd;
+   }
+
+   /**
+    * Load the last word found by nextWord() into wordChars.
+    *
+    * @return The length of the word.
+    */
+   int loadLastWord(String post, boolean unicode) {
+      return loadWord(post, lastStart, lastEnd, unicode);
+   }
+
+   /**
+    * Load a word found by findWords() into wordChars.
+    *
+    * @return The length of the word.
+    */
+   int loadWord(String post, int word, boolean unicode) {
+      return loadWord(post, wordStarts[word], wordEnds[word], unicode);
+   }
+
+   /**
+    * Lower case (and in Unicode mode, fold) post[start, end) into wordChars,
+    *  dropping the apostrophes.
+    */
+   private int loadWord(String post, int start, int end, boolean unicode) {
+      int length = 0;
+
+      for (int ndx = start; ndx < end; ndx++) {
+         char currentChar = Character.toLowerCase(post.charAt(ndx));
+         if ('a' <= currentChar && currentChar <= 'z') {
+            length = appendWordChar(length, currentChar);
+         } else if (unicode && currentChar >= 0x80) {
+            // Fold it just like SmartSplitString does, marks fold to nothing.
+            String folded = UnicodeFolding.fold(currentChar);
+            if (folded != UnicodeFolding.NOT_LETTER) {
+               for (int i = 0; i < folded.length(); i++) {
+                  length = appendWordChar(length, folded.charAt(i));
+               }
+            }
+         }
+      }
+
+      return length;
+   }
+
+   /**
+    * The last loaded word (wordChars[0, length)) as a CharSequence, for
+    *  SymSpellIndex.mayMatch(). Only made again when wordChars grows.
+    */
+   CharSequence wordView() {
+      if (wordView == null || wordView.array() != wordChars) {
+         wordView = CharBuffer.wrap(wordChars);
+      }
+
+      return wordView;
+   }
+
+   private int appendWordChar(int length, char character) {
+      if (length == wordChars.length) {
+         wordChars = Arrays.copyOf(wordChars, length * 2);
+      }
+
+      wordChars[length] = character;
+      return length + 1;
+   }
+
+   private int addWord(int count, int start, int end) {
+      if (count == wordStarts.length) {
+         wordStarts = Arrays.copyOf(wordStarts, count * 2);
+         wordEnds = Arrays.copyOf(wordEnds, count * 2);
+      }
+
+      wordStarts[count] = start;
+      wordEnds[count] = end;
+      return count + 1;
+   }
+
+   private static boolean isLetter(char character) {
+      char lower = Character.toLowerCase(character);
+      return 'a' <= lower && lower <= 'z';
+   }
+
+   /**
+    * If a lower cased char is part of a word (and not just a dropped mark).
+    */
+   private static boolean isWordChar(char lower, boolean unicode) {
+      if ('a' <= lower && lower <= 'z') {
+         return true;
+      }
+
+      if (!unicode || lower < 0x80) {
+         return false;
+      }
+
+      String folded = UnicodeFolding.fold(lower);
+      return folded != UnicodeFolding.NOT_LETTER && !folded.isEmpty();
+   }
+
+   /**
+    * If a lower cased char is a combining mark that folding drops.
+    */
+   private static boolean isDropped(char lower, boolean unicode) {
+      if (!unicode || lower < 0x80) {
+         return false;
+      }
+
+      String folded = UnicodeFolding.fold(lower);
+      return folded != UnicodeFolding.NOT_LETTER && folded.isEmpty();
+   }
+
+   private void checkMatch(int match) {
+      if (match < 0 || match >= size) {
+         throw new IndexOutOfBoundsException("No match " + match + ", size is " + size);
+      }
+   }
+}
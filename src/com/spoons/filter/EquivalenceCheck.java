@@ -0,0 +1,327 @@
+/*
+ * com.spoons.filter
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.filter;
+
+import com.spoons.control.ParallelGzipInputStream;
+import com.spoons.control.ParallelGzipOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Check that the fast versions of things give exactly what the plain versions
+ *  do, over a file of posts (one per line):
+ *   split:  AsciiSplitString against the scalar SmartSplitString split.
+ *   chain:  the FilterChain from its class comment against EriqFilter.
+ *   staged: EriqFilter's stages in a StagedFilter against EriqFilter.
+ *   corpus: posts written with CorpusWriter (every format) and read back with
+ *            CorpusReader (last post first).
+ *   gzip:   ParallelGzipInputStream against GZIPInputStream, on the file
+ *            compressed a few different ways.
+ * Every difference is printed, and the exit code is 1 if there were any.
+ *
+ * Usage:
+ *  EquivalenceCheck [posts] [checks (default: all of them)]
+ */
+public class EquivalenceCheck {
+   private static final String[] CHECKS = {"split", "chain", "staged", "corpus", "gzip"};
+
+   /**
+    * Private to promote static behavior.
+    */
+   private EquivalenceCheck() {
+   }
+
+   public static void main(String[] args) throws IOException {
+      if (args.length < 1) {
+         System.err.println("USAGE: EquivalenceCheck <posts> [" +
+                            String.join("|", CHECKS) + "]...");
+         System.exit(1);
+      }
+
+      List<String> checks = Arrays.asList(args).subList(1, args.length);
+      if (checks.isEmpty()) {
+         checks = Arrays.asList(CHECKS);
+      }
+
+      List<String> posts = Files.readAllLines(Paths.get(args[0]), StandardCharsets.UTF_8);
+      int different = 0;
+
+      for (String check : checks) {
+         if ("split".equals(check)) {
+            different += checkSplit(posts);
+         } else if ("chain".equals(check)) {
+            different += checkChain(posts);
+         } else if ("staged".equals(check)) {
+            different += checkStaged(posts);
+         } else if ("corpus".equals(check)) {
+            different += checkCorpus(posts);
+         } else if ("gzip".equals(check)) {
+            different += checkGzip(Files.readAllBytes(Paths.get(args[0])));
+         } else {
+            System.err.println("Unknown check: " + check);
+            System.exit(1);
+         }
+      }
+
+      System.exit(different > 0 ? 1 : 0);
+   }
+
+   /**
+    * AsciiSplitString.split() against SmartSplitString.scalarSplit().
+    *
+    * @return The number of different splits.
+    */
+   public static int checkSplit(List<String> posts) {
+      int ascii = 0;
+      int different = 0;
+
+      for (String post : posts) {
+         for (boolean replaceMeta : new boolean[]{false, true}) {
+            String[] fast = AsciiSplitString.split(post, replaceMeta);
+            if (fast == null) {
+               continue;
+            }
+
+            if (replaceMeta) {
+               ascii++;
+            }
+
+            String[] scalar = SmartSplitString.scalarSplit(post, replaceMeta);
+            if (!Arrays.equals(fast, scalar)) {
+               different++;
+               System.out.println("Different (replaceMeta = " + replaceMeta + "): " + post);
+               System.out.println("   ascii:  " + Arrays.toString(fast));
+               System.out.println("   scalar: " + Arrays.toString(scalar));
+            }
+         }
+      }
+
+      System.out.println(String.format("split: %d posts, %d pure ASCII, %d different",
+                                       posts.size(), ascii, different));
+      return different;
+   }
+
+   /**
+    * The chain in FilterChain's class comment against EriqFilter.
+    *
+    * @return The number of different posts.
+    */
+   public static int checkChain(List<String> posts) {
+      TextFilter eriq = new EriqFilter();
+      TextFilter chain = new FilterChain.Builder()
+         .links().emotes().split(true).locations().stopWords(0)
+         .build();
+
+      int different = 0;
+      for (String post : posts) {
+         String[] expected = eriq.splitFilter(post);
+         String[] actual = chain.splitFilter(post);
+         if (!Arrays.equals(expected, actual)) {
+            different++;
+            System.out.println("Different: " + post);
+            System.out.println("   eriq:  " + Arrays.toString(expected));
+            System.out.println("   chain: " + Arrays.toString(actual));
+         }
+      }
+
+      System.out.println(String.format("chain %s: %d posts, %d different from EriqFilter",
+                                       chain, posts.size(), different));
+      return different;
+   }
+
+   /**
+    * EriqFilter.stages() in a StagedFilter (two threads per stage) against
+    *  EriqFilter, including the order of the posts.
+    *
+    * @return The number of different (or missing) posts.
+    */
+   public static int checkStaged(List<String> posts) {
+      EriqFilter eriq = new EriqFilter();
+      List<StagedFilter.Stage> stages = eriq.stages();
+
+      int[] threads = new int[stages.size()];
+      Arrays.fill(threads, 2);
+      StagedFilter staged = new StagedFilter(stages, threads, 64);
+
+      List<String[]> filtered = staged.splitFilter(posts);
+      int different = Math.abs(filtered.size() - posts.size());
+      for (int ndx = 0; ndx < Math.min(filtered.size(), posts.size()); ndx++) {
+         String[] expected = eriq.splitFilter(posts.get(ndx));
+         if (!Arrays.equals(expected, filtered.get(ndx))) {
+            different++;
+            System.out.println("Different (post " + ndx + "): " + posts.get(ndx));
+            System.out.println("   eriq:   " + Arrays.toString(expected));
+            System.out.println("   staged: " + Arrays.toString(filtered.get(ndx)));
+         }
+      }
+
+      System.out.println(String.format("staged %s: %d posts, %d different from EriqFilter",
+                                       staged, posts.size(), different));
+      for (StagedFilter.Stats stats : staged.getStats()) {
+         System.out.println("   " + stats);
+      }
+
+      return different;
+   }
+
+   /**
+    * Write the EriqFilter filtered posts in every format CorpusWriter has, then
+    *  read them back (last post first).
+    *
+    * @return The number of posts that did not come back the same (plus one for
+    *  every corpus with the wrong post count or fingerprint).
+    */
+   public static int checkCorpus(List<String> posts) throws IOException {
+      TextFilter filter = new EriqFilter();
+      List<String[]> filtered = new ArrayList<String[]>();
+      for (String post : posts) {
+         filtered.add(filter.splitFilter(post));
+      }
+
+      int different = 0;
+      for (boolean ids : new boolean[]{true, false}) {
+         for (boolean compress : new boolean[]{false, true}) {
+            File corpus = File.createTempFile("corpus", ".spnf");
+            try {
+               // Small blocks, so there are more of them than are kept inflated.
+               CorpusWriter writer = new CorpusWriter(corpus, filter.fingerprint(),
+                                                      ids ? new Vocabulary() : null,
+                                                      compress, 64);
+               for (String[] words : filtered) {
+                  writer.write(words);
+               }
+               writer.close();
+
+               CorpusReader reader = new CorpusReader(corpus);
+               int wrong = reader.numPosts() == filtered.size() &&
+                           filter.fingerprint().equals(reader.getFingerprint()) ? 0 : 1;
+               for (int ndx = (int)Math.min(reader.numPosts(), filtered.size()) - 1; ndx >= 0;
+                    ndx--) {
+                  if (!Arrays.equals(filtered.get(ndx), reader.getPost(ndx))) {
+                     wrong++;
+                  }
+               }
+               reader.close();
+
+               System.out.println(String.format("corpus %s, %s: %d posts in %d bytes, %d different",
+                                                ids ? "ids" : "utf8",
+                                                compress ? "deflated" : "stored",
+                                                filtered.size(), corpus.length(), wrong));
+               different += wrong;
+            } finally {
+               corpus.delete();
+            }
+         }
+      }
+
+      return different;
+   }
+
+   /**
+    * Compress data a few different ways and check that ParallelGzipInputStream
+    *  and GZIPInputStream both give it back.
+    *
+    * @return The number of compressed files that did not come back the same.
+    */
+   public static int checkGzip(byte[] data) throws IOException {
+      int blockSize = 1 << 16;
+
+      // Sized members, with a flush() in the middle to end a member early.
+      ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+      OutputStream out = new ParallelGzipOutputStream(parallel, 4, blockSize);
+      out.write(data, 0, data.length / 3);
+      out.flush();
+      out.write(data, data.length / 3, data.length - data.length / 3);
+      out.close();
+
+      // A plain gzip file, which has to go through the fallback.
+      ByteArrayOutputStream plain = new ByteArrayOutputStream();
+      out = new GZIPOutputStream(plain);
+      out.write(data);
+      out.close();
+
+      // Sized members followed by a plain one.
+      ByteArrayOutputStream mixed = new ByteArrayOutputStream();
+      out = new ParallelGzipOutputStream(mixed, 4, blockSize);
+      out.write(data, 0, data.length / 2);
+      out.close();
+      out = new GZIPOutputStream(mixed);
+      out.write(data, data.length / 2, data.length - data.length / 2);
+      out.close();
+
+      int different = 0;
+      String[] names = {"parallel", "plain", "mixed"};
+      byte[][] files = {parallel.toByteArray(), plain.toByteArray(), mixed.toByteArray()};
+      for (int ndx = 0; ndx < files.length; ndx++) {
+         boolean gzipSame = Arrays.equals(data, readAll(
+               new GZIPInputStream(new ByteArrayInputStream(files[ndx]))));
+         boolean parallelSame = Arrays.equals(data, readAll(
+               new ParallelGzipInputStream(new ByteArrayInputStream(files[ndx]), 4)));
+
+         System.out.println(String.format("gzip %s: %d bytes, GZIPInputStream %s, " +
+                                          "ParallelGzipInputStream %s", names[ndx],
+                                          files[ndx].length, gzipSame ? "same" : "DIFFERENT",
+                                          parallelSame ? "same" : "DIFFERENT"));
+         if (!gzipSame || !parallelSame) {
+            different++;
+         }
+      }
+
+      return different;
+   }
+
+   private static byte[] readAll(InputStream in) throws IOException {
+      ByteArrayOutputStream rtn = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+
+      try {
+         while ((read = in.read(buffer)) != -1) {
+            rtn.write(buffer, 0, read);
+         }
+      } finally {
+         in.close();
+      }
+
+      return rtn.toByteArray();
+   }
+}
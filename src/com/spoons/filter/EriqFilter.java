@@ -33,16 +33,11 @@ import java.util.ArrayList;
 import java.util.List;
 import java.io.File;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.Writer;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.FileOutputStream;
-import java.io.OutputStreamWriter;
-import java.util.Scanner;
+import java.io.OutputStream;
 /**
  * A Filter that removes stop words, replaces links and emotes, and does stemming.
  * It does pretty much everything but Location replacement, and only because that takes longer.
@@ -57,10 +52,22 @@ import java.util.Scanner;
  * Right now it is called Eriq Filter because I can't think up a better name.
  */
 public class EriqFilter extends TextFilter {
-  private static EmoticonParser emote = new EmoticonParser(" <$emote:%s$> ");
+  /**
+   * Per-thread scratch for splitFilterFeatures().
+   */
+  private static final ThreadLocal<AsciiWords> featureWords = new ThreadLocal<AsciiWords>() {
+    protected AsciiWords initialValue() {
+      return new AsciiWords();
+    }
+  };
 
   private boolean replaceMetaWords;
 
+  /**
+   * If not null, used instead of the LocationFilter.
+   */
+  private EntityMatcher entities;
+
   // Convience main for testing/fun/writing papers.
   public static void main(String[] args) {
     //SingleControl.init("config/empty.properties");
@@ -73,49 +80,42 @@ public class EriqFilter extends TextFilter {
     String inputFilename = "testPosts.txt";
     String outputFilename = "output.txt";
     TextFilter eriqFilter = new EriqFilter();
-    Writer writer = null;
+    OutputStream outputStream = null;
 
     try {
       File outputFile = new File(outputFilename);
       outputFile.createNewFile(); // if file already exists will do nothing
-      FileOutputStream oFile = new FileOutputStream(outputFile, false);
-      writer = new BufferedWriter(new OutputStreamWriter(oFile, "utf-8"));
+      outputStream = new FileOutputStream(outputFile, false);
       FileInputStream inputStream = null;
-      Scanner sc = null;
-      String line = null;
       try {
         inputStream = new FileInputStream(inputFilename);
-        sc = new Scanner(inputStream, "UTF-8");
-
-        while (sc.hasNextLine()) {
-           line = sc.nextLine();
-           writer.write(eriqFilter.filter(line) + "\n");
-          // System.out.println(line);
-        }
-        // note that Scanner suppresses exceptions
-        if (sc.ioException() != null) {
-          throw sc.ioException();
-        }
+        new Utf8LineFilter(eriqFilter).filter(inputStream, outputStream);
       } catch (IOException ex) {
         System.err.println("An error occurred with reading from the file");
       } finally {
         if (inputStream != null) {
           inputStream.close();
         }
-        if (sc != null) {
-          sc.close();
-        }
       }
     } catch (IOException ex) {
       System.err.println("An error occurred with outputting to file");
     } finally {
-      try {writer.close();} catch (Exception ex) {/*ignore*/}
+      try {outputStream.close();} catch (Exception ex) {/*ignore*/}
     }
   }
 
   public EriqFilter(boolean replaceMetaWords) {
+    this(replaceMetaWords, null);
+  }
+
+  /**
+   * Replace the entities found by the given matcher (which may have any number of
+   *  dictionaries) instead of just locations.
+   */
+  public EriqFilter(boolean replaceMetaWords, EntityMatcher entities) {
     super();
     this.replaceMetaWords = replaceMetaWords;
+    this.entities = entities;
   }
 
   public EriqFilter() {
@@ -126,18 +126,142 @@ public class EriqFilter extends TextFilter {
    * @inheritDoc
    */
   public String[] splitFilter(String input) {
-    input = MiscFilters.replaceLinks(input, " <$link$> ");
-    input = emote.parse(input);
+    return StopWordUtils.removeStopWords(splitFilterWithStopWords(input), 0);
+  }
+
+  /**
+   * splitFilter() on the bytes of a pure ASCII line, for Utf8LineFilter.
+   * The split, the locations (or entities) and the stop words are all done on
+   *  the bytes, and no String is made unless a location is counted.
+   * Lines that may have a link or an emoticon (see TriggerMask), or a word that
+   *  may fuzzy match a location, still go through splitFilter().
+   */
+  boolean splitFilterAscii(byte[] bytes, int offset, int length, AsciiWords words) {
+    int mask = TriggerMask.scan(bytes, offset, length);
+    if (TriggerMask.mayHaveLinks(mask) ||
+        TriggerMask.mayHaveEmotes(mask, FilterRuntime.getEmoticonParser())) {
+      return false;
+    }
+
+    if (!AsciiSplitString.split(bytes, offset, length, replaceMetaWords, words)) {
+      return false;
+    }
+
+    if (entities != null) {
+      if (!entities.replace(words, null)) {
+        return false;
+      }
+    } else {
+      LocationFilter.init();
+      if (!LocationFilter.replaceLocations(words)) {
+        return false;
+      }
+    }
+
+    StopWordUtils.removeStopWords(words, 0);
+    return true;
+  }
+
+  /**
+   * Filter a string straight into a hashed feature vector.
+   * A pure ASCII post goes through splitFilterAscii() and its words are hashed
+   *  straight from the bytes, so no word (and no String[]) is made.
+   * Any other post (or one that splitFilterAscii() turns down) is split into a
+   *  String[] as usual, and only the final stop word filtered array is skipped.
+   */
+  public SparseVector splitFilterFeatures(String input, FeatureHasher hasher) {
+    FeatureHasher.Accumulator accumulator = hasher.newAccumulator();
+
+    AsciiWords words = featureWords.get();
+    if (words.loadLine(input) && splitFilterAscii(words.line, 0, input.length(), words)) {
+      for (int ndx = 0; ndx < words.size(); ndx++) {
+        accumulator.add(words.chars, words.start(ndx), words.end(ndx));
+      }
+
+      return accumulator.toVector();
+    }
+
+    for (String word : splitFilterWithStopWords(input)) {
+      if (!StopWordUtils.isStopWord(word, 0)) {
+        accumulator.add(word.trim());
+      }
+    }
+
+    return accumulator.toVector();
+  }
+
+  /**
+   * The steps of splitFilter() as separate stages, for a StagedFilter.
+   * Running them in order gives exactly what splitFilter() does.
+   */
+  public List<StagedFilter.Stage> stages() {
+    List<StagedFilter.Stage> rtn = new ArrayList<StagedFilter.Stage>();
+
+    rtn.add(new StagedFilter.Stage("links") {
+      public Object process(Object input) {
+        return TriggerMask.replaceLinks((String)input, " <$link$> ",
+                                        TriggerMask.scan((String)input));
+      }
+    });
+
+    rtn.add(new StagedFilter.Stage("emotes") {
+      public Object process(Object input) {
+        String text = (String)input;
+        EmoticonParser emote = FilterRuntime.getEmoticonParser();
+        if (!TriggerMask.mayHaveEmotes(TriggerMask.scan(text), emote)) {
+          return text;
+        }
+
+        return emote.parse(text);
+      }
+    });
+
+    rtn.add(new StagedFilter.Stage("split") {
+      public Object process(Object input) {
+        return SmartSplitString.split((String)input, replaceMetaWords);
+      }
+    });
+
+    rtn.add(new StagedFilter.Stage(entities != null ? "entities" : "locations") {
+      public Object process(Object input) {
+        if (entities != null) {
+          return entities.replace((String[])input);
+        }
+
+        LocationFilter.init();
+        return LocationFilter.replaceLocations((String[])input);
+      }
+    });
+
+    rtn.add(new StagedFilter.Stage("stopwords") {
+      public Object process(Object input) {
+        return StopWordUtils.removeStopWords((String[])input, 0);
+      }
+    });
+
+    return rtn;
+  }
+
+  /**
+   * Everything but removing the stop words.
+   */
+  private String[] splitFilterWithStopWords(String input) {
+    input = TriggerMask.replaceLinksAndEmotes(input, " <$link$> ",
+                                              FilterRuntime.getEmoticonParser());
 
     String[] allWords = SmartSplitString.split(input, replaceMetaWords);
-    LocationFilter.init();
-    allWords = LocationFilter.replaceLocations(allWords);
-    allWords = StopWordUtils.removeStopWords(allWords, 0);
+    if (entities != null) {
+      allWords = entities.replace(allWords);
+    } else {
+      LocationFilter.init();
+      allWords = LocationFilter.replaceLocations(allWords);
+    }
 
     return allWords;
   }
 
   public String toString() {
-    return super.toString() + "{Replace Meta Words = " + replaceMetaWords + "}";
+    return super.toString() + "{Replace Meta Words = " + replaceMetaWords +
+           (entities != null ? ", Entities = " + entities : "") + "}";
   }
 }
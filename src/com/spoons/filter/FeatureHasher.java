@@ -0,0 +1,220 @@
+/*
+ * com.spoons.filter
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.filter;
+
+import java.util.Arrays;
+
+/**
+ * Turns words into a hashed bag of n-grams (the "hashing trick").
+ *
+ * Every n-gram (from unigrams up to order) is hashed into one of 2^hashBits
+ *  buckets, and one more bit of the hash picks whether it adds +1 or -1 so that
+ *  collisions tend to cancel out instead of piling up.
+ * Words go in one at a time through an Accumulator, so they can be fed straight
+ *  out of a filter without ever building a String[]
+ *  (see EriqFilter.splitFilterFeatures()).
+ *
+ * A FeatureHasher is immutable and can be shared between threads,
+ *  but Accumulators cannot.
+ */
+public class FeatureHasher {
+   private int order;
+   private int hashBits;
+   private int mask;
+
+   /**
+    * @param order The longest n-gram to use (1 for just words, 2 for words and bigrams, ...).
+    * @param hashBits The vectors will have 2^hashBits dimensions.
+    */
+   public FeatureHasher(int order, int hashBits) {
+      if (order < 1) {
+         throw new IllegalArgumentException("order must be positive.");
+      }
+
+      if (hashBits < 1 || hashBits > 30) {
+         throw new IllegalArgumentException("hashBits must be in [1, 30].");
+      }
+
+      this.order = order;
+      this.hashBits = hashBits;
+      mask = (1 << hashBits) - 1;
+   }
+
+   public int getOrder() {
+      return order;
+   }
+
+   /**
+    * The number of dimensions in the vectors.
+    */
+   public int getDimensions() {
+      return mask + 1;
+   }
+
+   public Accumulator newAccumulator() {
+      return new Accumulator();
+   }
+
+   /**
+    * Hash a list of words.
+    */
+   public SparseVector vectorize(String[] words) {
+      Accumulator accumulator = new Accumulator();
+      for (String word : words) {
+         accumulator.add(word);
+      }
+
+      return accumulator.toVector();
+   }
+
+   public String toString() {
+      return "FeatureHasher{order = " + order + ", hashBits = " + hashBits + "}";
+   }
+
+   /**
+    * The finalizer from MurmurHash3, spreads the bits of a hash around.
+    */
+   private static int mix(int hash) {
+      hash ^= hash >>> 16;
+      hash *= 0x85EBCA6B;
+      hash ^= hash >>> 13;
+      hash *= 0xC2B2AE35;
+      hash ^= hash >>> 16;
+      return hash;
+   }
+
+   /**
+    * Collects the features of one post, one word at a time.
+    */
+   public class Accumulator {
+      /**
+       * The hashes of the last (order - 1) words, most recent last.
+       */
+      private int[] history;
+      private int historySize;
+
+      /**
+       * The features so far, unsorted and possibly repeated.
+       * Each is the index in the high 32 bits and the sign (1 for negative) in the low bit,
+       *  so that sorting them groups them by index.
+       */
+      private long[] features;
+      private int size;
+
+      private Accumulator() {
+         history = new int[order];
+         features = new long[32];
+         reset();
+      }
+
+      /**
+       * Forget everything and start on a new post.
+       */
+      public void reset() {
+         historySize = 0;
+         size = 0;
+      }
+
+      /**
+       * Add the next word in the post.
+       */
+      public void add(String word) {
+         addHash(mix(word.hashCode()));
+      }
+
+      /**
+       * add() for the ASCII word chars[start, end), without making it a String.
+       */
+      void add(byte[] chars, int start, int end) {
+         // The same hash as String.hashCode().
+         int hash = 0;
+         for (int ndx = start; ndx < end; ndx++) {
+            hash = 31 * hash + (chars[ndx] & 0xFF);
+         }
+
+         addHash(mix(hash));
+      }
+
+      private void addHash(int wordHash) {
+         // Shift the history over to make room for this word.
+         if (historySize == order) {
+            System.arraycopy(history, 1, history, 0, order - 1);
+            historySize--;
+         }
+         history[historySize++] = wordHash;
+
+         // Every n-gram that ends in this word.
+         int hash = 0;
+         for (int n = 1; n <= historySize; n++) {
+            hash = mix(hash * 31 + history[historySize - n] + n);
+            addFeature(hash);
+         }
+      }
+
+      private void addFeature(int hash) {
+         if (size == features.length) {
+            features = Arrays.copyOf(features, size * 2);
+         }
+
+         // Use a bit that is not part of the index for the sign.
+         features[size++] = ((long)(hash & mask) << 32) | (hash >>> 31);
+      }
+
+      /**
+       * Get the vector for all the words added since the last reset().
+       * Features that cancel out to zero are left out.
+       */
+      public SparseVector toVector() {
+         Arrays.sort(features, 0, size);
+
+         int[] indices = new int[size];
+         float[] values = new float[size];
+         int distinct = 0;
+
+         int ndx = 0;
+         while (ndx < size) {
+            int index = (int)(features[ndx] >>> 32);
+            float value = 0;
+
+            for (; ndx < size && (int)(features[ndx] >>> 32) == index; ndx++) {
+               value += (features[ndx] & 1) == 0 ? 1.0f : -1.0f;
+            }
+
+            if (value != 0) {
+               indices[distinct] = index;
+               values[distinct] = value;
+               distinct++;
+            }
+         }
+
+         return new SparseVector(Arrays.copyOf(indices, distinct),
+                                 Arrays.copyOf(values, distinct));
+      }
+   }
+}
@@ -0,0 +1,341 @@
+/*
+ * com.spoons.filter
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A filter put together from stages instead of hardcoded in a subclass.
+ *
+ *  TextFilter eriqWithLocations = new FilterChain.Builder()
+ *     .links().emotes().split(true).locations().stopWords(0)
+ *     .build();
+ *
+ * Stages that work on the raw text (location screen, links, emotes) must come
+ *  before the split, and stages that work on the words (locations, entities,
+ *  stop words, stemming) come after it. If no split is added, a default one
+ *  (no meta words) is.
+ *
+ * The stages are not objects behind an interface. Each one is an opcode, and
+ *  splitFilter() runs them through a switch where every case calls the stage
+ *  directly, so every call site only ever sees one target and the JIT can
+ *  inline all of them, no matter how many different chains are in use.
+ */
+public class FilterChain extends TextFilter {
+   private static final int LINKS = 0;
+   private static final int EMOTES = 1;
+   private static final int LOCATIONS = 2;
+   private static final int ENTITIES = 3;
+   private static final int STOP_WORDS = 4;
+   private static final int STEM = 5;
+   private static final int NEAR_DUPLICATES = 6;
+   private static final int LOCATION_SCREEN = 7;
+
+   private static final String[] NO_WORDS = new String[0];
+
+   /**
+    * The stemmer is not thread safe.
+    */
+   private static final ThreadLocal<Stemmer> stemmers = new ThreadLocal<Stemmer>() {
+      protected Stemmer initialValue() {
+         return new Stemmer();
+      }
+   };
+
+   private final int[] textStages;
+   private final int[] wordStages;
+   private final String description;
+
+   private final String linkReplacement;
+   private final EmoticonParser emote;
+   private final boolean replaceMeta;
+   private final EntityMatcher entities;
+   private final int stopLevel;
+   private final NearDuplicateIndex duplicates;
+
+   private FilterChain(Builder builder) {
+      textStages = toArray(builder.textStages);
+      wordStages = toArray(builder.wordStages);
+      description = builder.description.toString();
+
+      linkReplacement = builder.linkReplacement;
+      emote = builder.emote;
+      replaceMeta = builder.replaceMeta;
+      entities = builder.entities;
+      stopLevel = builder.stopLevel;
+      duplicates = builder.duplicates;
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public String[] splitFilter(String input) {
+      // Which of the link and emoticon trigger characters are in the text.
+      int mask = textStages.length > 0 ? TriggerMask.scan(input) : 0;
+
+      for (int stage : textStages) {
+         switch (stage) {
+            case LINKS:
+               if (TriggerMask.mayHaveLinks(mask)) {
+                  String replaced = MiscFilters.replaceLinks(input, linkReplacement);
+                  if (!replaced.equals(input)) {
+                     mask = TriggerMask.scan(replaced);
+                  }
+                  input = replaced;
+               }
+               break;
+            case EMOTES:
+               if (TriggerMask.mayHaveEmotes(mask, emote)) {
+                  input = emote.parse(input);
+               }
+               break;
+            case LOCATION_SCREEN:
+               if (!LocationFilter.mentionsLocation(input)) {
+                  // Nothing left to do for the later stages.
+                  return NO_WORDS;
+               }
+               break;
+            default:
+               throw new IllegalStateException("Unknown text stage: " + stage);
+         }
+      }
+
+      String[] words = SmartSplitString.split(input, replaceMeta);
+
+      for (int stage : wordStages) {
+         switch (stage) {
+            case LOCATIONS:
+               LocationFilter.init();
+               words = LocationFilter.replaceLocations(words);
+               break;
+            case ENTITIES:
+               words = entities.replace(words);
+               break;
+            case STOP_WORDS:
+               words = StopWordUtils.removeStopWords(words, stopLevel);
+               break;
+            case STEM:
+               Stemmer stemmer = stemmers.get();
+               for (int ndx = 0; ndx < words.length; ndx++) {
+                  // Leave the meta words ("<$link$>") alone.
+                  if (!words[ndx].startsWith("<$")) {
+                     words[ndx] = stemmer.stem(words[ndx]);
+                  }
+               }
+               break;
+            case NEAR_DUPLICATES:
+               if (duplicates.isNearDuplicate(words)) {
+                  // Nothing left to do for the later stages.
+                  return NO_WORDS;
+               }
+               break;
+            default:
+               throw new IllegalStateException("Unknown word stage: " + stage);
+         }
+      }
+
+      return words;
+   }
+
+   /**
+    * True if the chain has a near-duplicate stage, whose index remembers the posts.
+    */
+   public boolean isStateful() {
+      return duplicates != null;
+   }
+
+   public String toString() {
+      return super.toString() + "{" + description + "}";
+   }
+
+   private static int[] toArray(List<Integer> list) {
+      int[] rtn = new int[list.size()];
+      for (int ndx = 0; ndx < rtn.length; ndx++) {
+         rtn[ndx] = list.get(ndx);
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Puts the stages of a FilterChain together, in the order they are added.
+    */
+   public static class Builder {
+      private List<Integer> textStages = new ArrayList<Integer>();
+      private List<Integer> wordStages = new ArrayList<Integer>();
+      private StringBuilder description = new StringBuilder();
+      private boolean split = false;
+
+      private String linkReplacement = null;
+      private EmoticonParser emote = null;
+      private boolean replaceMeta = false;
+      private EntityMatcher entities = null;
+      private int stopLevel = 0;
+      private NearDuplicateIndex duplicates = null;
+
+      /**
+       * Replace links with "<$link$>".
+       */
+      public Builder links() {
+         return links(" <$link$> ");
+      }
+
+      /**
+       * Replace links, see MiscFilters.replaceLinks().
+       */
+      public Builder links(String replacement) {
+         linkReplacement = replacement;
+         return addText(LINKS, "links");
+      }
+
+      /**
+       * Replace emoticons with "<$emote:...$>", using the shared parser.
+       */
+      public Builder emotes() {
+         return emotes(FilterRuntime.getEmoticonParser());
+      }
+
+      public Builder emotes(EmoticonParser parser) {
+         emote = parser;
+         return addText(EMOTES, "emotes");
+      }
+
+      /**
+       * Drop (return no words for) posts that do not mention a known location,
+       *  see LocationFilter.mentionsLocation().
+       * The screen looks at the raw post, so it has to be the first stage.
+       */
+      public Builder locationScreen() {
+         if (!textStages.isEmpty() || split) {
+            throw new IllegalStateException("locationScreen has to be the first stage.");
+         }
+
+         return addText(LOCATION_SCREEN, "locationScreen");
+      }
+
+      /**
+       * Split the text into words, see SmartSplitString.split().
+       */
+      public Builder split(boolean replaceMeta) {
+         if (split) {
+            throw new IllegalStateException("The text can only be split once.");
+         }
+
+         this.replaceMeta = replaceMeta;
+         split = true;
+         return describe("split(" + replaceMeta + ")");
+      }
+
+      /**
+       * Replace locations, see LocationFilter.
+       */
+      public Builder locations() {
+         return addWord(LOCATIONS, "locations");
+      }
+
+      /**
+       * Replace entities from an EntityMatcher.
+       */
+      public Builder entities(EntityMatcher matcher) {
+         entities = matcher;
+         return addWord(ENTITIES, "entities(" + matcher + ")");
+      }
+
+      /**
+       * Remove stop words, see StopWordUtils.removeStopWords().
+       */
+      public Builder stopWords(int level) {
+         stopLevel = level;
+         return addWord(STOP_WORDS, "stopWords(" + level + ")");
+      }
+
+      /**
+       * Drop (return no words for) posts that are near-duplicates of a recent post.
+       * Put this as early as possible so duplicates skip the later stages.
+       * This makes the chain stateful (see isStateful()): what it gives for a post
+       *  depends on the posts the index has seen, which is not in toString() or
+       *  fingerprint(). So StreamingRunner and ShardedBatchRunner refuse it.
+       */
+      public Builder nearDuplicates(NearDuplicateIndex index) {
+         duplicates = index;
+         return addWord(NEAR_DUPLICATES, "nearDuplicates(" + index + ")");
+      }
+
+      /**
+       * Stem every word.
+       */
+      public Builder stem() {
+         return addWord(STEM, "stem");
+      }
+
+      public FilterChain build() {
+         if (!split) {
+            split(false);
+         }
+
+         return new FilterChain(this);
+      }
+
+      private Builder addText(int stage, String name) {
+         if (split) {
+            throw new IllegalStateException(name + " has to come before the split.");
+         }
+
+         if (textStages.contains(stage)) {
+            throw new IllegalStateException(name + " was already added.");
+         }
+
+         textStages.add(stage);
+         return describe(name);
+      }
+
+      private Builder addWord(int stage, String name) {
+         if (!split) {
+            split(false);
+         }
+
+         if (wordStages.contains(stage)) {
+            throw new IllegalStateException(name + " was already added.");
+         }
+
+         wordStages.add(stage);
+         return describe(name);
+      }
+
+      private Builder describe(String name) {
+         if (description.length() > 0) {
+            description.append(", ");
+         }
+         description.append(name);
+
+         return this;
+      }
+   }
+}
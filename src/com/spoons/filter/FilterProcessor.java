@@ -0,0 +1,338 @@
+/*
+ * com.spoons.filter
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.filter;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A Flow.Processor that runs posts through a TextFilter.
+ * Get one from TextFilter.processor() or TextFilter.splitProcessor().
+ *
+ * Back-pressure:
+ *  At most bufferSize posts are ever requested from upstream that have not been
+ *   handed to the downstream subscriber yet, so a fast publisher can never overrun
+ *   the filter. More posts are only requested as the downstream subscriber takes
+ *   (requests) the filtered ones.
+ *
+ * Posts are filtered on parallelism worker threads.
+ * When ordered, results are emitted in the same order as the posts came in,
+ *  otherwise they are emitted as soon as they are done.
+ *
+ * Only a single downstream subscriber is supported.
+ */
+public abstract class FilterProcessor<R> implements Flow.Processor<String, R> {
+   private final int parallelism;
+   private final boolean ordered;
+   private final int bufferSize;
+
+   private ExecutorService workers;
+
+   private volatile Flow.Subscription upstream;
+   private volatile Flow.Subscriber<? super R> downstream;
+
+   /**
+    * Finished results waiting for the downstream subscriber.
+    * Ordered processors use the ring (indexed by post sequence number),
+    *  unordered ones use the queue.
+    */
+   private final AtomicReferenceArray<R> ring;
+   private final Queue<R> queue;
+
+   /**
+    * Number of posts received from upstream.
+    */
+   private final AtomicLong received = new AtomicLong();
+
+   /**
+    * Number of results sent downstream, only touched inside of drain().
+    */
+   private long emitted = 0;
+
+   /**
+    * Results that downstream has requested but not gotten yet.
+    */
+   private final AtomicLong requested = new AtomicLong();
+
+   /**
+    * Makes sure only one thread is in drain() at a time.
+    */
+   private final AtomicInteger wip = new AtomicInteger();
+
+   private volatile boolean done = false;
+   private volatile boolean cancelled = false;
+   private volatile Throwable error = null;
+   private boolean terminated = false;
+
+   /**
+    * @param parallelism The number of threads to filter on.
+    * @param ordered Whether to emit results in the same order that the posts arrived.
+    * @param bufferSize The most posts that will be in flight or waiting for downstream.
+    */
+   protected FilterProcessor(int parallelism, boolean ordered, int bufferSize) {
+      if (parallelism < 1 || bufferSize < 1) {
+         throw new IllegalArgumentException("parallelism and bufferSize must be positive.");
+      }
+
+      this.parallelism = parallelism;
+      this.ordered = ordered;
+      this.bufferSize = bufferSize;
+
+      if (ordered) {
+         ring = new AtomicReferenceArray<R>(bufferSize);
+         queue = null;
+      } else {
+         ring = null;
+         queue = new ConcurrentLinkedQueue<R>();
+      }
+   }
+
+   /**
+    * Filter a single post.
+    * This will be called on the worker threads.
+    */
+   protected abstract R apply(String post);
+
+   public void subscribe(Flow.Subscriber<? super R> subscriber) {
+      if (subscriber == null) {
+         throw new NullPointerException();
+      }
+
+      synchronized (this) {
+         if (downstream != null) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+               public void request(long count) {}
+               public void cancel() {}
+            });
+            subscriber.onError(new IllegalStateException(
+                  "Only one subscriber is supported."));
+            return;
+         }
+
+         downstream = subscriber;
+      }
+
+      subscriber.onSubscribe(new DownstreamSubscription());
+      drain();
+   }
+
+   public void onSubscribe(Flow.Subscription subscription) {
+      if (upstream != null) {
+         subscription.cancel();
+         return;
+      }
+
+      workers = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+         public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "FilterProcessor");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+
+      upstream = subscription;
+      subscription.request(bufferSize);
+   }
+
+   public void onNext(final String post) {
+      if (done || cancelled) {
+         return;
+      }
+
+      final long sequence = received.getAndIncrement();
+      try {
+         workers.execute(new Runnable() {
+            public void run() {
+               try {
+                  R result = apply(post);
+                  if (ordered) {
+                     ring.set((int)(sequence % bufferSize), result);
+                  } else {
+                     queue.offer(result);
+                  }
+               } catch (Throwable ex) {
+                  fail(ex);
+               }
+
+               drain();
+            }
+         });
+      } catch (RejectedExecutionException ex) {
+         // Already failed or cancelled, nobody wants this result.
+      }
+   }
+
+   public void onError(Throwable throwable) {
+      fail(throwable);
+   }
+
+   public void onComplete() {
+      done = true;
+      drain();
+   }
+
+   private void fail(Throwable throwable) {
+      if (error == null) {
+         error = throwable;
+      }
+
+      done = true;
+      if (upstream != null) {
+         upstream.cancel();
+      }
+
+      drain();
+   }
+
+   /**
+    * Hand as many results downstream as have been requested, then ask upstream to
+    *  replace them.
+    */
+   private void drain() {
+      if (wip.getAndIncrement() != 0) {
+         return;
+      }
+
+      int missed = 1;
+      do {
+         Flow.Subscriber<? super R> subscriber = downstream;
+
+         if (cancelled || terminated) {
+            clear();
+         } else if (subscriber != null) {
+            if (error != null) {
+               terminate();
+               clear();
+               subscriber.onError(error);
+            } else {
+               long wanted = requested.get();
+               long sent = 0;
+
+               while (sent < wanted && !cancelled) {
+                  R result = next();
+                  if (result == null) {
+                     break;
+                  }
+
+                  subscriber.onNext(result);
+                  emitted++;
+                  sent++;
+               }
+
+               if (sent > 0) {
+                  if (wanted != Long.MAX_VALUE) {
+                     requested.addAndGet(-sent);
+                  }
+
+                  if (!done && !cancelled) {
+                     upstream.request(sent);
+                  }
+               }
+
+               if (done && error == null && emitted == received.get()) {
+                  terminate();
+                  subscriber.onComplete();
+               }
+            }
+         }
+
+         missed = wip.addAndGet(-missed);
+      } while (missed != 0);
+   }
+
+   /**
+    * Take the next result to send downstream, or null if it is not ready yet.
+    */
+   private R next() {
+      if (!ordered) {
+         return queue.poll();
+      }
+
+      int slot = (int)(emitted % bufferSize);
+      R result = ring.get(slot);
+      if (result != null) {
+         ring.set(slot, null);
+      }
+
+      return result;
+   }
+
+   private void terminate() {
+      terminated = true;
+      if (workers != null) {
+         workers.shutdown();
+      }
+   }
+
+   private void clear() {
+      if (queue != null) {
+         queue.clear();
+      }
+   }
+
+   private class DownstreamSubscription implements Flow.Subscription {
+      public void request(long count) {
+         if (count <= 0) {
+            fail(new IllegalArgumentException("Must request a positive number of items."));
+            return;
+         }
+
+         long current;
+         long next;
+         do {
+            current = requested.get();
+            next = current + count;
+            if (next < 0) {
+               next = Long.MAX_VALUE;
+            }
+         } while (!requested.compareAndSet(current, next));
+
+         drain();
+      }
+
+      public void cancel() {
+         cancelled = true;
+         if (upstream != null) {
+            upstream.cancel();
+         }
+         if (workers != null) {
+            workers.shutdownNow();
+         }
+         drain();
+      }
+   }
+}
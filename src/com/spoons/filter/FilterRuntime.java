@@ -0,0 +1,283 @@
+/*
+ * com.spoons.filter
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.filter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Control over when the shared filter structures get built.
+ *
+ * By default everything is lazy: each structure is built by the first post that
+ *  needs it (which is what makes the first posts slow).
+ * A long running process should call loadAll() (or load() with just what it
+ *  needs) before taking posts, and then warmUp() its filters so that the JIT has
+ *  already compiled the hot paths.
+ *
+ * Every structure reports how long it took to build, whether it was loaded
+ *  eagerly here or lazily by a filter, see getLoadTimes().
+ */
+public final class FilterRuntime {
+   /**
+    * The emoticon automata shared by the filters, see getEmoticonParser().
+    */
+   public static final String EMOTICONS = "emoticons";
+
+   /**
+    * The stop word tables, see StopWordUtils.
+    */
+   public static final String STOP_WORDS = "stopwords";
+
+   /**
+    * The location structure used for replacement, see LocationFilter.init().
+    */
+   public static final String LOCATIONS = "locations";
+
+   /**
+    * The location EntityMatcher used for screening and extraction,
+    *  see LocationFilter.getMatcher().
+    */
+   public static final String LOCATION_MATCHER = "locationMatcher";
+
+   /**
+    * The folding tables for SmartSplitString's Unicode mode, see UnicodeFolding.
+    */
+   public static final String UNICODE_FOLDING = "unicodeFolding";
+
+   public static final String[] RESOURCES =
+      {EMOTICONS, STOP_WORDS, LOCATIONS, LOCATION_MATCHER, UNICODE_FOLDING};
+
+   /**
+    * The number of times to run the corpus if not told otherwise.
+    * Enough calls for the hot methods to get past C2's compile threshold.
+    */
+   public static final int DEFAULT_WARM_UP_PASSES = 2000;
+
+   /**
+    * The corpus to warm up with if none is given.
+    * A little bit of everything the filters look for.
+    */
+   private static final List<String> DEFAULT_WARM_UP_CORPUS = Arrays.asList(
+      "RT @someone: Just landed in Oakland, heading to Santa Cruz next :) http://bit.ly/abc",
+      "can't wait for the weekend!!! <3 #excited",
+      "Traffic on the 880 through Alameda County is terrible >.< www.example.com",
+      "I am not sure that this is what we were looking for ;) going running tomorrow",
+      "just a plain post with no links or emotes or places in it at all"
+   );
+
+   private static final Map<String, Long> loadTimes = new LinkedHashMap<String, Long>();
+
+   private static volatile EmoticonParser emoticonParser = null;
+
+   /**
+    * Private to promote static behavior.
+    */
+   private FilterRuntime() {
+   }
+
+   /**
+    * Load every shared structure now.
+    */
+   public static void loadAll() {
+      load(RESOURCES);
+   }
+
+   /**
+    * Load the named structures (see RESOURCES) now.
+    * Structures that are already loaded are skipped.
+    */
+   public static void load(String... resources) {
+      for (String resource : resources) {
+         if (EMOTICONS.equals(resource)) {
+            getEmoticonParser();
+         } else if (STOP_WORDS.equals(resource)) {
+            StopWordUtils.init();
+         } else if (LOCATIONS.equals(resource)) {
+            LocationFilter.init();
+         } else if (LOCATION_MATCHER.equals(resource)) {
+            LocationFilter.getMatcher();
+         } else if (UNICODE_FOLDING.equals(resource)) {
+            UnicodeFolding.init();
+         } else {
+            throw new IllegalArgumentException("Unknown resource: " + resource +
+                                               ". Expected one of " + Arrays.toString(RESOURCES));
+         }
+      }
+   }
+
+   /**
+    * Whether the named structure has been built (eagerly or lazily).
+    */
+   public static boolean isLoaded(String resource) {
+      synchronized (loadTimes) {
+         return loadTimes.containsKey(resource);
+      }
+   }
+
+   /**
+    * How long (in nanoseconds) each structure that has been built took,
+    *  in the order they were built.
+    */
+   public static Map<String, Long> getLoadTimes() {
+      synchronized (loadTimes) {
+         return new LinkedHashMap<String, Long>(loadTimes);
+      }
+   }
+
+   /**
+    * The emoticon parser (with the " <$emote:%s$> " format) that the filters share.
+    * Compiling all the automata is slow, so there should only ever be one.
+    */
+   public static EmoticonParser getEmoticonParser() {
+      EmoticonParser rtn = emoticonParser;
+      if (rtn == null) {
+         synchronized (FilterRuntime.class) {
+            rtn = emoticonParser;
+            if (rtn == null) {
+               long start = System.nanoTime();
+               rtn = new EmoticonParser(" <$emote:%s$> ");
+               recordLoad(EMOTICONS, System.nanoTime() - start);
+               emoticonParser = rtn;
+            }
+         }
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Run the default corpus through the filter DEFAULT_WARM_UP_PASSES times.
+    *
+    * @return The time taken in nanoseconds.
+    */
+   public static long warmUp(TextFilter filter) {
+      return warmUp(filter, DEFAULT_WARM_UP_CORPUS, DEFAULT_WARM_UP_PASSES);
+   }
+
+   /**
+    * Run a corpus file (one UTF-8 post per line) through the filter.
+    *
+    * @return The time taken in nanoseconds.
+    */
+   public static long warmUp(TextFilter filter, File corpus, int passes) throws IOException {
+      return warmUp(filter, Files.readAllLines(corpus.toPath(), StandardCharsets.UTF_8), passes);
+   }
+
+   /**
+    * Run every post in the corpus through the filter, passes times.
+    * Any structures the filter needs that are not loaded will get loaded.
+    *
+    * @return The time taken in nanoseconds.
+    */
+   public static long warmUp(TextFilter filter, List<String> corpus, int passes) {
+      long start = System.nanoTime();
+      long words = 0;
+
+      for (int pass = 0; pass < passes; pass++) {
+         for (String post : corpus) {
+            words += filter.splitFilter(post).length;
+         }
+      }
+
+      long rtn = System.nanoTime() - start;
+      if (words < 0) {
+         // Never true, but it keeps the JIT from throwing the work away.
+         System.err.println(words);
+      }
+
+      return rtn;
+   }
+
+   /**
+    * The global modes and a digest of every resource that the filters read,
+    *  as space separated "name=value" pairs. Part of TextFilter.fingerprint().
+    * The resources are read but not built, so this works before loadAll().
+    */
+   public static String describe() {
+      return "unicode=" + SmartSplitString.isUnicodeMode() +
+             " fuzzyDistance=" + LocationFilter.getFuzzyDistance() +
+             " locationsOffHeap=" + LocationFilter.isOffHeap() +
+             " stopWordsOffHeap=" + StopWordUtils.isOffHeap() +
+             " " + EMOTICONS + "=" + EmoticonParser.getDefaultDictionaryDigest() +
+             " " + STOP_WORDS + "=" + StopWordUtils.getDigest() +
+             " " + LOCATIONS + "=" + LocationFilter.getLocationsDigest();
+   }
+
+   /**
+    * A line per loaded structure with how long it took.
+    */
+   public static String report() {
+      StringBuilder rtn = new StringBuilder();
+
+      for (Map.Entry<String, Long> entry : getLoadTimes().entrySet()) {
+         rtn.append(String.format("%s: %.1f ms\n", entry.getKey(), entry.getValue() / 1000000.0));
+      }
+
+      return rtn.toString();
+   }
+
+   /**
+    * CRC32 of some bytes, as 8 hex digits.
+    */
+   static String digest(byte[] bytes) {
+      CRC32 crc = new CRC32();
+      crc.update(bytes);
+
+      return String.format("%08x", crc.getValue());
+   }
+
+   /**
+    * CRC32 of some lines (each one ending in a newline), as 8 hex digits.
+    */
+   static String digest(List<String> lines) {
+      CRC32 crc = new CRC32();
+      for (String line : lines) {
+         crc.update(line.getBytes(StandardCharsets.UTF_8));
+         crc.update('\n');
+      }
+
+      return String.format("%08x", crc.getValue());
+   }
+
+   /**
+    * Called by the structures when they finish building.
+    */
+   static void recordLoad(String resource, long nanos) {
+      synchronized (loadTimes) {
+         loadTimes.put(resource, nanos);
+      }
+   }
+}
@@ -0,0 +1,440 @@
+/*
+ * com.spoons.filter
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.filter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe, constant memory counts of the most common items in a stream
+ *  (like the locations that the LocationFilter replaces).
+ *
+ * Two structures are fed by every add():
+ *  A Count-Min Sketch, for the (over) estimated count of any item.
+ *   It is striped by thread: each stripe is a full sketch, and an estimate
+ *   sums the stripes. So hot items do not have every filter thread fighting
+ *   over the same few counters.
+ *  Space-Saving, for the top items.
+ *   It is striped by item, so each stripe is a small independent summary
+ *   behind its own lock, and its min-heap keeps updates at O(log k).
+ *
+ * Every window, all counts are multiplied by the decay factor, so old mentions
+ *  fade out. The decay is done by whichever add() first notices the window
+ *  ended. Reads never lock more than one stripe at a time.
+ */
+public class HeavyHitters {
+   public static final int DEFAULT_TOP_K = 100;
+   public static final int DEFAULT_WIDTH = 1 << 13;
+   public static final int DEFAULT_DEPTH = 4;
+   public static final int DEFAULT_STRIPES = 8;
+   public static final long DEFAULT_WINDOW_MS = 60 * 60 * 1000;
+   public static final double DEFAULT_DECAY = 0.5;
+
+   private final int topK;
+   private final int width;
+   private final int depth;
+   private final long windowMillis;
+   private final double decay;
+
+   /**
+    * Count-Min stripes, each [depth * width] counters and then the stripe's total.
+    */
+   private final AtomicLongArray[] sketches;
+
+   private final Summary[] summaries;
+
+   /**
+    * When the current window ends.
+    */
+   private final AtomicLong nextDecay;
+
+   public HeavyHitters() {
+      this(DEFAULT_TOP_K, DEFAULT_WIDTH, DEFAULT_DEPTH, DEFAULT_STRIPES,
+           DEFAULT_WINDOW_MS, DEFAULT_DECAY);
+   }
+
+   /**
+    * @param topK The number of top items to keep track of.
+    * @param width Counters per sketch row, rounded up to a power of two.
+    * @param depth Sketch rows (independent hashes).
+    * @param stripes The number of stripes, rounded up to a power of two.
+    * @param windowMillis The length of a decay window, zero for no decay.
+    * @param decay What every count is multiplied by at the end of each window.
+    */
+   public HeavyHitters(int topK, int width, int depth, int stripes,
+                       long windowMillis, double decay) {
+      if (topK < 1 || width < 1 || depth < 1 || stripes < 1) {
+         throw new IllegalArgumentException("Sizes must be positive.");
+      }
+
+      if (windowMillis < 0 || decay < 0 || decay > 1) {
+         throw new IllegalArgumentException("Bad decay: " + windowMillis + "ms, " + decay);
+      }
+
+      this.topK = topK;
+      this.width = powerOfTwo(width);
+      this.depth = depth;
+      this.windowMillis = windowMillis;
+      this.decay = decay;
+
+      stripes = powerOfTwo(stripes);
+
+      sketches = new AtomicLongArray[stripes];
+      summaries = new Summary[stripes];
+      for (int ndx = 0; ndx < stripes; ndx++) {
+         sketches[ndx] = new AtomicLongArray(this.width * depth + 1);
+         summaries[ndx] = new Summary(topK);
+      }
+
+      nextDecay = new AtomicLong(System.currentTimeMillis() + windowMillis);
+   }
+
+   /**
+    * Count one occurrence of the item.
+    */
+   public void add(String item) {
+      if (windowMillis > 0) {
+         maybeDecay(System.currentTimeMillis());
+      }
+
+      long hash = hash(item);
+
+      AtomicLongArray sketch =
+         sketches[(int)Thread.currentThread().getId() & (sketches.length - 1)];
+      for (int row = 0; row < depth; row++) {
+         sketch.incrementAndGet(cell(hash, row));
+      }
+      sketch.incrementAndGet(depth * width);
+
+      Summary summary = summaries[(int)(hash >>> 48) & (summaries.length - 1)];
+      synchronized (summary) {
+         summary.add(item);
+      }
+   }
+
+   /**
+    * The estimated count of an item.
+    * It is never lower than the true (decayed) count.
+    */
+   public long estimate(String item) {
+      long hash = hash(item);
+      long rtn = Long.MAX_VALUE;
+
+      for (int row = 0; row < depth; row++) {
+         int cell = cell(hash, row);
+         long sum = 0;
+         for (AtomicLongArray sketch : sketches) {
+            sum += sketch.get(cell);
+         }
+         rtn = Math.min(rtn, sum);
+      }
+
+      return rtn;
+   }
+
+   /**
+    * The (decayed) number of items added.
+    */
+   public long getTotal() {
+      long rtn = 0;
+      for (AtomicLongArray sketch : sketches) {
+         rtn += sketch.get(depth * width);
+      }
+
+      return rtn;
+   }
+
+   /**
+    * A snapshot of the top items, most common first.
+    */
+   public List<Entry> top() {
+      List<Entry> rtn = new ArrayList<Entry>();
+
+      for (Summary summary : summaries) {
+         synchronized (summary) {
+            for (int ndx = 0; ndx < summary.size; ndx++) {
+               Counter counter = summary.heap[ndx];
+               if (counter.count > 0) {
+                  rtn.add(new Entry(counter.item, counter.count, counter.error));
+               }
+            }
+         }
+      }
+
+      // The sketch may give a tighter bound.
+      for (Entry entry : rtn) {
+         long estimate = estimate(entry.item);
+         if (estimate < entry.count) {
+            entry.error = Math.max(0, entry.error - (entry.count - estimate));
+            entry.count = estimate;
+         }
+      }
+
+      Collections.sort(rtn, new Comparator<Entry>() {
+         public int compare(Entry a, Entry b) {
+            return Long.compare(b.count, a.count);
+         }
+      });
+
+      if (rtn.size() > topK) {
+         rtn = new ArrayList<Entry>(rtn.subList(0, topK));
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Forget everything.
+    */
+   public void clear() {
+      for (AtomicLongArray sketch : sketches) {
+         for (int ndx = 0; ndx < sketch.length(); ndx++) {
+            sketch.set(ndx, 0);
+         }
+      }
+
+      for (Summary summary : summaries) {
+         synchronized (summary) {
+            summary.clear();
+         }
+      }
+   }
+
+   public String toString() {
+      return "HeavyHitters[top " + topK + ", " + depth + "x" + width + " x" +
+             sketches.length + "](" + getTotal() + ")";
+   }
+
+   private void maybeDecay(long now) {
+      long end = nextDecay.get();
+      if (now < end) {
+         return;
+      }
+
+      long windows = (now - end) / windowMillis + 1;
+      if (!nextDecay.compareAndSet(end, end + windows * windowMillis)) {
+         // Someone else got it.
+         return;
+      }
+
+      double factor = Math.pow(decay, windows);
+
+      for (AtomicLongArray sketch : sketches) {
+         for (int ndx = 0; ndx < sketch.length(); ndx++) {
+            long count;
+            do {
+               count = sketch.get(ndx);
+            } while (count != 0 && !sketch.compareAndSet(ndx, count, (long)(count * factor)));
+         }
+      }
+
+      for (Summary summary : summaries) {
+         synchronized (summary) {
+            summary.scale(factor);
+         }
+      }
+   }
+
+   private int cell(long hash, int row) {
+      // Kirsch-Mitzenmacher: the rows only need two real hashes.
+      int hash1 = (int)hash;
+      int hash2 = (int)(hash >>> 32) | 1;
+
+      return row * width + ((hash1 + row * hash2) & (width - 1));
+   }
+
+   private static long hash(String item) {
+      // The finalizer from MurmurHash3.
+      long rtn = item.hashCode() * 0x9E3779B97F4A7C15L;
+      rtn ^= rtn >>> 33;
+      rtn *= 0xFF51AFD7ED558CCDL;
+      rtn ^= rtn >>> 33;
+      rtn *= 0xC4CEB9FE1A85EC53L;
+      rtn ^= rtn >>> 33;
+
+      return rtn;
+   }
+
+   private static int powerOfTwo(int value) {
+      int rtn = Integer.highestOneBit(value);
+      return rtn == value ? rtn : rtn << 1;
+   }
+
+   /**
+    * An item in the top list.
+    * The true count is between getCount() - getError() and getCount().
+    */
+   public static class Entry {
+      private String item;
+      private long count;
+      private long error;
+
+      private Entry(String item, long count, long error) {
+         this.item = item;
+         this.count = count;
+         this.error = error;
+      }
+
+      public String getItem() {
+         return item;
+      }
+
+      public long getCount() {
+         return count;
+      }
+
+      public long getError() {
+         return error;
+      }
+
+      public String toString() {
+         return item + "=" + count + (error > 0 ? "(+-" + error + ")" : "");
+      }
+   }
+
+   private static class Counter {
+      public String item;
+      public long count;
+      public long error;
+      public int heapNdx;
+   }
+
+   /**
+    * A Space-Saving summary: at most capacity counters in a min-heap by count.
+    * A new item takes over the smallest counter, and inherits its count as error.
+    * Not thread safe, lock it.
+    */
+   private static class Summary {
+      private Map<String, Counter> counters;
+      private Counter[] heap;
+      private int size;
+
+      public Summary(int capacity) {
+         counters = new HashMap<String, Counter>(capacity * 2);
+         heap = new Counter[capacity];
+         size = 0;
+      }
+
+      public void add(String item) {
+         Counter counter = counters.get(item);
+
+         if (counter == null) {
+            if (size < heap.length) {
+               // A new leaf, it only ever has to move up.
+               counter = new Counter();
+               counter.item = item;
+               counter.count = 1;
+               counters.put(item, counter);
+               counter.heapNdx = size;
+               heap[size++] = counter;
+               siftUp(counter.heapNdx);
+               return;
+            } else {
+               counter = heap[0];
+               counters.remove(counter.item);
+               counter.error = counter.count;
+            }
+
+            counter.item = item;
+            counters.put(item, counter);
+         }
+
+         counter.count++;
+         siftDown(counter.heapNdx);
+      }
+
+      /**
+       * Scaling every count by the same factor keeps the heap in order.
+       */
+      public void scale(double factor) {
+         for (int ndx = 0; ndx < size; ndx++) {
+            heap[ndx].count = (long)(heap[ndx].count * factor);
+            heap[ndx].error = (long)(heap[ndx].error * factor);
+         }
+      }
+
+      public void clear() {
+         counters.clear();
+         for (int ndx = 0; ndx < size; ndx++) {
+            heap[ndx] = null;
+         }
+         size = 0;
+      }
+
+      private void siftUp(int ndx) {
+         Counter counter = heap[ndx];
+
+         while (ndx > 0) {
+            int parent = (ndx - 1) / 2;
+            if (heap[parent].count <= counter.count) {
+               break;
+            }
+
+            heap[ndx] = heap[parent];
+            heap[ndx].heapNdx = ndx;
+            ndx = parent;
+         }
+
+         heap[ndx] = counter;
+         counter.heapNdx = ndx;
+      }
+
+      private void siftDown(int ndx) {
+         Counter counter = heap[ndx];
+
+         while (true) {
+            int child = ndx * 2 + 1;
+            if (child >= size) {
+               break;
+            }
+
+            if (child + 1 < size && heap[child + 1].count < heap[child].count) {
+               child++;
+            }
+
+            if (heap[child].count >= counter.count) {
+               break;
+            }
+
+            heap[ndx] = heap[child];
+            heap[ndx].heapNdx = ndx;
+            ndx = child;
+         }
+
+         heap[ndx] = counter;
+         counter.heapNdx = ndx;
+      }
+   }
+}
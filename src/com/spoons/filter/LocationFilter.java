@@ -32,11 +32,17 @@ package com.spoons.filter;
 import com.spoons.control.Logger;
 //import com.spoons.control.MasterControl;
 //import com.spoons.util.Query;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * This class is capable of parsing movie/show locations from a String and
@@ -77,6 +83,8 @@ public class LocationFilter {
     * The default replacement string.
     */
    private static final String DEFAULT_REPLACE = "<$location$>";
+   private static final byte[] DEFAULT_REPLACE_BYTES =
+    DEFAULT_REPLACE.getBytes(StandardCharsets.ISO_8859_1);
 
    /**
     * The minimum frequency necessary to not include for single location.
@@ -84,53 +92,273 @@ public class LocationFilter {
    private static final int MIN_location_FREQ = 5000;
 
    /**
-    * The structure that holds all the locations.
+    * Everything built from the locations, for the current settings.
+    * Replaced as a whole (never changed) when the settings change, so a filter
+    *  that is running always sees one consistent set of structures.
     */
-   private static Map<String, Node> locationsStruct = null;
+   private static volatile Structures structures = null;
 
-    /**
-    * The structure that holds all replacedLocations
+   /**
+    * Whether to keep the locations off the heap, see setOffHeap().
+    */
+   private static volatile boolean offHeap = false;
+
+   /**
+    * The maximum edit distance for fuzzy matching, zero for exact matching only.
+    */
+   private static volatile int fuzzyDistance = 0;
+
+   /**
+    * Tokens shorter than this are never fuzzy matched, they are too easy to confuse.
     */
-   private static ArrayList<String> replacedLocations = null;
+   private static final int MIN_FUZZY_LENGTH = 4;
+
+   /**
+    * Counts of the locations that have been replaced, for the most mentioned ones.
+    * Unlike the structures, it is not reset by init().
+    */
+   private static final HeavyHitters replacedLocations = new HeavyHitters();
 
    /**
     * Just a testing main.
+    * With a file of posts (one per line) it compares how long replacing the
+    *  locations takes with exact matching and with fuzzy matching:
+    *  LocationFilter [posts] [passes]
     */
-   public static void main(String[] args) {
+   public static void main(String[] args) throws IOException {
         // MasterControl.init("config/empty.properties");
-      init();
+      if (args.length == 0) {
+         init();
+
+         //Print the entire Location structure.
+         System.out.println(locationsToString());
+         return;
+      }
+
+      List<String[]> posts = new ArrayList<String[]>();
+      for (String post : Files.readAllLines(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+         posts.add(SmartSplitString.split(post));
+      }
+      int passes = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+      for (int distance = 0; distance <= 2; distance++) {
+         setFuzzyDistance(distance);
+         init();
+
+         // The first pass is just to warm up.
+         long nanos = 0;
+         long replaced = 0;
+         for (int pass = 0; pass <= passes; pass++) {
+            long start = System.nanoTime();
+            replaced = 0;
+            for (String[] words : posts) {
+               if (replaceLocations(words) != words) {
+                  replaced++;
+               }
+            }
+
+            if (pass > 0) {
+               nanos += System.nanoTime() - start;
+            }
+         }
 
-      //Print the entire Location structure.
-      System.out.println(locationsToString());
+         System.out.println(String.format("fuzzy distance %d: %.2f us/post, %d posts changed",
+                                          distance, nanos / 1000.0 / passes / posts.size(),
+                                          replaced));
+      }
+      setFuzzyDistance(0);
    }
 
    /**
     * Call this before using the LocationFilter.
     * This will initialize the location structure.
+    * It is cheap (and takes no lock) when the structure is already built for the
+    *  current settings.
+    */
+   public static void init() {
+      Structures current = structures;
+      if (current != null && current.isCurrent()) {
+         return;
+      }
+
+      synchronized (LocationFilter.class) {
+         current = structures;
+         if (current != null && current.isCurrent()) {
+            return;
+         }
+
+         long start = System.nanoTime();
+         structures = new Structures(current);
+         FilterRuntime.recordLoad(FilterRuntime.LOCATIONS, System.nanoTime() - start);
+      }
+   }
+
+   /**
+    * Get the structures for the current settings, building them if needed.
+    * Read it once and use it for the whole post.
     */
-   public static synchronized void init() {
-      if (locationsStruct == null) {
-         locationsStruct = createLocationsStructure();
+   private static Structures current() {
+      Structures rtn = structures;
+      if (rtn == null || !rtn.isCurrent()) {
+         init();
+         rtn = structures;
       }
-        replacedLocations = new ArrayList<String>();
+
+      return rtn;
+   }
+
+   /**
+    * Keep the location structure in direct memory (see OffHeapTrie) instead of
+    *  on the heap, so a large location list does not grow the heap.
+    * The structure is rebuilt on the next init() (or the next use). Filters that
+    *  are already running keep using the old one until then.
+    */
+   public static synchronized void setOffHeap(boolean useOffHeap) {
+      offHeap = useOffHeap;
+   }
+
+   public static boolean isOffHeap() {
+      return offHeap;
+   }
+
+   /**
+    * Turn on fuzzy matching: a word in a post will match a word in a location if it
+    *  is within maxDistance edits (insert, delete, substitute, or swap two adjacent
+    *  characters) of it, and at least four characters long.
+    * Exact matches are always preferred.
+    * Zero turns fuzzy matching back off.
+    * Like setOffHeap(), this takes effect on the next init() (or the next use).
+    */
+   public static synchronized void setFuzzyDistance(int maxDistance) {
+      if (maxDistance < 0) {
+         throw new IllegalArgumentException("maxDistance cannot be negative.");
+      }
+
+      fuzzyDistance = maxDistance;
+   }
+
+   public static int getFuzzyDistance() {
+      return fuzzyDistance;
    }
 
    /**
     * Get the entire location structure as a String.
     */
    public static String locationsToString() {
+      Structures current = current();
+      if (current.offHeapStruct != null) {
+         return current.offHeapStruct.toString();
+      }
+
       String rtn = "";
 
-      for (Map.Entry<String, Node> entry : locationsStruct.entrySet()) {
+      for (Map.Entry<String, Node> entry : current.locationsStruct.entrySet()) {
          rtn += (entry.getKey() + "(" + entry.getValue().isLocation + ")\n");
          rtn += nodeToString(entry.getValue(), "   ");
       }
 
       return rtn;
    }
-  public static ArrayList<String> getReplacedLocations(){
-    return replacedLocations;
-  }
+   /**
+    * Find the locations in a raw post, without replacing them.
+    * Each match has the location (as it is written in the location list), the
+    *  words it covers, and where it is in the post.
+    * Only exact matches are found, even with fuzzy matching on.
+    * This is safe to call from many threads (as long as each has its own
+    *  EntityMatches).
+    *
+    * @return The number of locations found.
+    */
+   public static int extractLocations(String post, EntityMatches matches) {
+      return getMatcher().extract(post, matches);
+   }
+
+   /**
+    * Per-thread scratch space for mentionsLocation().
+    */
+   private static final ThreadLocal<EntityMatches> screenScratch =
+    new ThreadLocal<EntityMatches>() {
+      protected EntityMatches initialValue() {
+         return new EntityMatches();
+      }
+   };
+
+   /**
+    * Cheap check for whether a raw post mentions any known location.
+    * Posts that fail this will never get a location replaced by the full filter,
+    *  so they can be dropped before filtering.
+    * See EntityMatcher.matchesAny().
+    * With fuzzy matching on, a post passes if any of its words passes the fuzzy
+    *  index's gate (SymSpellIndex.mayMatch()). Every word of an exact or fuzzy
+    *  match does, so this is still never wrong about a post that has a location,
+    *  but lets through some posts that do not.
+    * FilterChain.Builder.locationScreen() runs this before the rest of a chain.
+    */
+   public static boolean mentionsLocation(String post) {
+      Structures current = current();
+      if (current.fuzzyIndex != null) {
+         return mayMentionLocation(current, post, screenScratch.get());
+      }
+
+      return current.getMatcher().matchesAny(post, screenScratch.get());
+   }
+
+   /**
+    * The fuzzy mentionsLocation(): walk the words of the post the way the
+    *  location matcher does and run each one through the fuzzy index's gate.
+    */
+   private static boolean mayMentionLocation(Structures current, String post,
+                                             EntityMatches scratch) {
+      int ndx = 0;
+      while ((ndx = scratch.nextWord(post, ndx, current.unicode)) != -1) {
+         int length = scratch.loadLastWord(post, current.unicode);
+         if (current.fuzzyIndex.mayMatch(scratch.wordView(), 0, length)) {
+            return true;
+         }
+      }
+
+      return false;
+   }
+
+   /**
+    * Get all the locations in an EntityMatcher (with the type "location").
+    * It is split the same way as the location structure, so it is rebuilt along
+    *  with it when the settings change.
+    */
+   public static EntityMatcher getMatcher() {
+      return current().getMatcher();
+   }
+
+   /**
+    * A digest of the location list, see FilterRuntime.describe().
+    * The list is read again, nothing gets built.
+    */
+   public static String getLocationsDigest() {
+      return FilterRuntime.digest(getlocations());
+   }
+
+   /**
+    * The running counts of the replaced locations.
+    * Safe to read while filtering.
+    */
+   public static HeavyHitters getLocationStats() {
+      return replacedLocations;
+   }
+
+   /**
+    * The most mentioned locations, most mentioned first.
+    *
+    * @deprecated Only keeps the top locations now, use getLocationStats().
+    */
+   @Deprecated
+   public static ArrayList<String> getReplacedLocations() {
+      ArrayList<String> rtn = new ArrayList<String>();
+      for (HeavyHitters.Entry entry : replacedLocations.top()) {
+         rtn.add(entry.getItem());
+      }
+
+      return rtn;
+   }
    /**
     * Recursive toString for Nodes.
     */
@@ -165,22 +393,97 @@ public class LocationFilter {
     * Parse the text for locations and replace them with the given String.
     * It is assumed that the given text has been split with SmartSplitString.split().
     * If you want a less accurate but faster method, try singlePassReplacelocations().
+    *
+    * This is one pass: after a replacement the search picks up right after it.
+    * Nothing before a replacement could have started a location (it was already
+    *  checked), so this is the same as making the first replacement over and over.
+    *
+    * @return words itself if nothing was replaced.
     */
    public static String[] replacelocations(String[] words, String replace) {
-      while (true) {
-         String[] tempWords = singlePassReplacelocations(words, replace);
-         if (tempWords == null) {
-             if(!replacedLocations.isEmpty()){
-                 System.out.println("Replaced: ");
-                 for (String s : replacedLocations){
-                    System.out.println(s);
-                 }
-             }
-             return words;
+      Structures current = current();
+      List<String> rtn = null;
+      int ndx = 0;
+
+      while (ndx < words.length) {
+         int matchLen = longestMatch(current, words, ndx);
+         if (matchLen == 0) {
+            if (rtn != null) {
+               rtn.add(words[ndx]);
+            }
+            ndx++;
+            continue;
+         }
+
+         // First match, copy over everything before it.
+         if (rtn == null) {
+            rtn = new ArrayList<String>(words.length);
+            for (int i = 0; i < ndx; i++) {
+               rtn.add(words[i]);
+            }
+         }
+
+         replacedLocations.add(canonicalLocation(current, words, ndx, matchLen));
+         rtn.add(replace);
+         ndx += matchLen;
+      }
+
+      if (rtn == null) {
+         return words;
+      }
+
+      return rtn.toArray(new String[0]);
+   }
+
+   /**
+    * replaceLocations() for the words of a pure ASCII post that are still bytes
+    *  (see AsciiWords). The words are replaced in place.
+    * The words are looked up in the off heap trie when the locations are off the
+    *  heap, and otherwise in the location matcher (see getMatcher()), which has
+    *  the same words but can be looked up with bytes.
+    * With fuzzy matching on, the words are only run through the fuzzy index's
+    *  gate (SymSpellIndex.mayMatch()), which every exact and fuzzy match passes.
+    *
+    * @return false if a word may match with fuzzy matching on, the words are then
+    *  left alone and replaceLocations(String[]) has to be used.
+    */
+   static boolean replaceLocations(AsciiWords words) {
+      Structures current = current();
+
+      if (current.fuzzyIndex != null) {
+         for (int ndx = 0; ndx < words.size(); ndx++) {
+            if (current.fuzzyIndex.mayMatch(words, words.start(ndx), words.end(ndx))) {
+               return false;
+            }
+         }
+
+         return true;
+      }
+
+      OffHeapTrie trie = current.offHeapStruct;
+      if (trie == null) {
+         return current.getMatcher().replace(words, replacedLocations);
+      }
+
+      int numWords = words.size();
+      int numOut = 0;
+      int ndx = 0;
+      while (ndx < numWords) {
+         int matchLen = trie.longestMatch(words, words.starts, words.ends, ndx, numWords);
+         if (matchLen == 0) {
+            words.setWord(numOut++, words.start(ndx), words.end(ndx));
+            ndx++;
+            continue;
          }
 
-         words = tempWords;
+         replacedLocations.add(words.join(ndx, matchLen));
+         int start = words.append(DEFAULT_REPLACE_BYTES);
+         words.setWord(numOut++, start, words.length());
+         ndx += matchLen;
       }
+      words.truncate(numOut);
+
+      return true;
    }
 
    /**
@@ -192,13 +495,16 @@ public class LocationFilter {
     * @return The Strings with a single location replace, or null.
     */
    public static String[] singlePassReplacelocations(String[] words, String replace) {
+      return singlePassReplacelocations(current(), words, replace);
+   }
+
+   private static String[] singlePassReplacelocations(Structures current, String[] words,
+                                                      String replace) {
       int matchLen = 0;
       int matchNdx = -1;
 
-      StringBuilder replacedLocation = new StringBuilder();
-
       for (int i = 0; i < words.length; i++) {
-         matchLen = longestMatch(words, i);
+         matchLen = longestMatch(current, words, i);
          if (matchLen != 0) {
             matchNdx = i;
             break;
@@ -208,14 +514,7 @@ public class LocationFilter {
       if (matchLen == 0) {
          return null;
       }
-      //A location does begin with a word
-      for(int numOfWords = matchNdx; numOfWords < matchLen + matchNdx; numOfWords++) {
-         if (replacedLocation.length() > 0) {
-            replacedLocation.append(" ");
-         }
-         replacedLocation.append(words[numOfWords]);
-      }
-        replacedLocations.add(replacedLocation.toString());
+      replacedLocations.add(canonicalLocation(current, words, matchNdx, matchLen));
 
       String[] rtn = new String[words.length - matchLen + 1];
       int j = 0;
@@ -239,14 +538,28 @@ public class LocationFilter {
     *
     * @return the length of the longest location, 0 if no match.
     */
-   private static int longestMatch(String[] words, int ndx) {
+   private static int longestMatch(Structures current, String[] words, int ndx) {
       if (ndx >= words.length) {
          return 0;
       }
 
+      SymSpellIndex index = current.fuzzyIndex;
+      OffHeapTrie trie = current.offHeapStruct;
+      if (trie != null) {
+         if (index != null) {
+            return longestFuzzyMatch(index, trie, OffHeapTrie.ROOT, words, ndx, 0);
+         }
+
+         return trie.longestMatch(words, ndx);
+      }
+
+      if (index != null) {
+         return longestFuzzyMatch(index, current.locationsStruct, words, ndx, 0);
+      }
+
       int count = 0;
       int longestMatch = 0;
-      Node currentNode = locationsStruct.get(words[ndx]);
+      Node currentNode = current.locationsStruct.get(words[ndx]);
 
       //Print the entire location structure.
       //System.out.println(locationsToString());
@@ -267,6 +580,191 @@ public class LocationFilter {
       return longestMatch;
 }
 
+/**
+ * Like longestMatch(), but words that are not in the structure may fuzzy match
+ *  words that are.
+ * Every fuzzy candidate at a level is followed, and the longest location wins.
+ *
+ * @param level The words that can come next.
+ * @param count The number of words already matched.
+ */
+private static int longestFuzzyMatch(SymSpellIndex index, Map<String, Node> level,
+                                     String[] words, int ndx, int count) {
+    if (ndx >= words.length) {
+        return 0;
+    }
+
+    Node exact = level.get(words[ndx]);
+    if (exact != null) {
+        return longestMatchFrom(index, exact, words, ndx, count);
+    }
+
+    if (words[ndx].length() < MIN_FUZZY_LENGTH) {
+        return 0;
+    }
+
+    int longestMatch = 0;
+    for (String candidate : index.lookup(words[ndx])) {
+        Node node = level.get(candidate);
+        if (node != null) {
+            longestMatch = Math.max(longestMatch,
+                                    longestMatchFrom(index, node, words, ndx, count));
+        }
+    }
+
+    return longestMatch;
+}
+
+/**
+ * longestFuzzyMatch() for the off heap structure.
+ *
+ * @param node The node that the words so far lead to.
+ */
+private static int longestFuzzyMatch(SymSpellIndex index, OffHeapTrie trie, int node,
+                                     String[] words, int ndx, int count) {
+    if (ndx >= words.length) {
+        return 0;
+    }
+
+    int exact = trie.child(node, words[ndx]);
+    if (exact != -1) {
+        return longestMatchFrom(index, trie, exact, words, ndx, count);
+    }
+
+    if (words[ndx].length() < MIN_FUZZY_LENGTH) {
+        return 0;
+    }
+
+    int longestMatch = 0;
+    for (String candidate : index.lookup(words[ndx])) {
+        int next = trie.child(node, candidate);
+        if (next != -1) {
+            longestMatch = Math.max(longestMatch,
+                                    longestMatchFrom(index, trie, next, words, ndx, count));
+        }
+    }
+
+    return longestMatch;
+}
+
+private static int longestMatchFrom(SymSpellIndex index, OffHeapTrie trie, int node,
+                                    String[] words, int ndx, int count) {
+    int longestMatch = trie.isTerminal(node) ? count + 1 : 0;
+    return Math.max(longestMatch,
+                    longestFuzzyMatch(index, trie, node, words, ndx + 1, count + 1));
+}
+
+/**
+ * The longest match that goes through node, which matched words[ndx].
+ */
+private static int longestMatchFrom(SymSpellIndex index, Node node, String[] words,
+                                    int ndx, int count) {
+    int longestMatch = node.isLocation ? count + 1 : 0;
+    return Math.max(longestMatch,
+                    longestFuzzyMatch(index, node.nextWords, words, ndx + 1, count + 1));
+}
+
+/**
+ * The location that words[ndx, ndx + matchLen) matched, as it is in the structure.
+ * Without fuzzy matching that is just the words, with it a typo is counted as
+ *  the location it matched (so "oaklnd" counts as "oakland").
+ */
+private static String canonicalLocation(Structures current, String[] words, int ndx,
+                                        int matchLen) {
+    String[] path = new String[matchLen];
+    boolean found = false;
+
+    if (current.fuzzyIndex != null) {
+        if (current.offHeapStruct != null) {
+            found = findPath(current.fuzzyIndex, current.offHeapStruct, OffHeapTrie.ROOT,
+                             words, ndx, path, 0);
+        } else {
+            found = findPath(current.fuzzyIndex, current.locationsStruct, words, ndx, path, 0);
+        }
+    }
+
+    if (!found) {
+        System.arraycopy(words, ndx, path, 0, matchLen);
+    }
+
+    return String.join(" ", path);
+}
+
+/**
+ * The words at a level that words[ndx] can match: just itself if it is there
+ *  (exact matches always win, like in longestFuzzyMatch()), otherwise the fuzzy candidates.
+ */
+private static List<String> pathCandidates(SymSpellIndex index, boolean exact, String word) {
+    if (exact) {
+        return Arrays.asList(word);
+    }
+
+    if (word.length() < MIN_FUZZY_LENGTH) {
+        return new ArrayList<String>();
+    }
+
+    return index.lookup(word);
+}
+
+/**
+ * Fill in path with the location words that words[ndx + depth, ndx + path.length)
+ *  fuzzy matched.
+ *
+ * @return false if no location of exactly path.length words matches there.
+ */
+private static boolean findPath(SymSpellIndex index, Map<String, Node> level, String[] words,
+                                int ndx, String[] path, int depth) {
+    String word = words[ndx + depth];
+
+    for (String candidate : pathCandidates(index, level.containsKey(word), word)) {
+        Node node = level.get(candidate);
+        if (node == null) {
+            continue;
+        }
+
+        path[depth] = candidate;
+        if (depth + 1 == path.length ? node.isLocation :
+            findPath(index, node.nextWords, words, ndx, path, depth + 1)) {
+            return true;
+        }
+    }
+
+    return false;
+}
+
+/**
+ * findPath() for the off heap structure.
+ */
+private static boolean findPath(SymSpellIndex index, OffHeapTrie trie, int node, String[] words,
+                                int ndx, String[] path, int depth) {
+    String word = words[ndx + depth];
+
+    for (String candidate : pathCandidates(index, trie.child(node, word) != -1, word)) {
+        int next = trie.child(node, candidate);
+        if (next == -1) {
+            continue;
+        }
+
+        path[depth] = candidate;
+        if (depth + 1 == path.length ? trie.isTerminal(next) :
+            findPath(index, trie, next, words, ndx, path, depth + 1)) {
+            return true;
+        }
+    }
+
+    return false;
+}
+
+/**
+ * Collect every word used anywhere in the location structure.
+ */
+private static void collectWords(Map<String, Node> level, Set<String> words) {
+    for (Map.Entry<String, Node> entry : level.entrySet()) {
+        words.add(entry.getKey());
+        collectWords(entry.getValue().nextWords, words);
+    }
+}
+
 /**
  * Create the structure that holds all the locations and fill it up.
  */
@@ -291,6 +789,22 @@ private static Map<String, Node> createLocationsStructure() {
     return rtn;
 }
 
+/**
+ * Like createLocationsStructure(), but off the heap.
+ */
+private static OffHeapTrie createOffHeapStructure() {
+    OffHeapTrie rtn = new OffHeapTrie();
+    List<String> locations = getlocations();
+    if (locations.isEmpty()) {
+        System.err.println("No locations loaded");
+    }
+    for (String location : locations) {
+        rtn.add(SmartSplitString.split(location));
+    }
+
+    return rtn;
+}
+
 /**
  * Insert the location into the structure starting at the word with the given index.
  */
@@ -357,6 +871,112 @@ private static List<String> getlocations() {
     return rtn;
 }
 
+/**
+ * The structures built from the locations for one set of settings.
+ * Never changed once built, except that the EntityMatcher is only built the
+ *  first time it is needed.
+ */
+private static class Structures {
+    /**
+     * The settings these were built for.
+     */
+    public final boolean unicode;
+    public final boolean offHeap;
+    public final int fuzzyDistance;
+
+    /**
+     * The structure that holds all the locations, null when they are off the heap.
+     */
+    public final Map<String, Node> locationsStruct;
+
+    /**
+     * The structure that holds all the locations when they are kept off the heap.
+     * Only one of this and locationsStruct is ever built.
+     */
+    public final OffHeapTrie offHeapStruct;
+
+    /**
+     * Index of every word used in a location, for fuzzy matching.
+     * Only built when fuzzyDistance is non-zero.
+     */
+    public final SymSpellIndex fuzzyIndex;
+
+    /**
+     * The locations in an EntityMatcher, for extractLocations() and mentionsLocation().
+     */
+    private volatile EntityMatcher matcher;
+
+    /**
+     * Build the structures for the current settings, reusing what can be reused
+     *  from the previous ones (which may be null).
+     */
+    public Structures(Structures previous) {
+        unicode = SmartSplitString.isUnicodeMode();
+        offHeap = LocationFilter.offHeap;
+        fuzzyDistance = LocationFilter.fuzzyDistance;
+        matcher = previous != null && previous.unicode == unicode ? previous.matcher : null;
+
+        boolean sameWords = previous != null && previous.unicode == unicode &&
+                            previous.offHeap == offHeap;
+
+        if (offHeap) {
+            locationsStruct = null;
+            offHeapStruct = sameWords ? previous.offHeapStruct : createOffHeapStructure();
+        } else {
+            locationsStruct = sameWords ? previous.locationsStruct : createLocationsStructure();
+            offHeapStruct = null;
+        }
+
+        if (fuzzyDistance == 0) {
+            fuzzyIndex = null;
+        } else if (sameWords && previous.fuzzyDistance == fuzzyDistance) {
+            fuzzyIndex = previous.fuzzyIndex;
+        } else {
+            Set<String> vocabulary = new HashSet<String>();
+            if (offHeap) {
+                OffHeapStringTable words = offHeapStruct.getWords();
+                for (int id = 0; id < words.size(); id++) {
+                    vocabulary.add(words.get(id));
+                }
+            } else {
+                collectWords(locationsStruct, vocabulary);
+            }
+            fuzzyIndex = new SymSpellIndex(vocabulary, fuzzyDistance);
+        }
+    }
+
+    /**
+     * Get the matcher, building it the first time.
+     */
+    public EntityMatcher getMatcher() {
+        EntityMatcher rtn = matcher;
+        if (rtn == null) {
+            synchronized (this) {
+                rtn = matcher;
+                if (rtn == null) {
+                    long start = System.nanoTime();
+                    rtn = new EntityMatcher();
+                    rtn.addDictionary("location", getlocations());
+                    FilterRuntime.recordLoad(FilterRuntime.LOCATION_MATCHER,
+                                             System.nanoTime() - start);
+                    matcher = rtn;
+                }
+            }
+        }
+
+        return rtn;
+    }
+
+    /**
+     * If these were built for the settings in use now.
+     */
+    public boolean isCurrent() {
+        return unicode == SmartSplitString.isUnicodeMode() &&
+               offHeap == LocationFilter.offHeap &&
+               fuzzyDistance == LocationFilter.fuzzyDistance;
+    }
+}
+
 private static class Node {
     /**
      * Whether or not this specific Node is a location.
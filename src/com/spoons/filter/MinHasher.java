@@ -0,0 +1,135 @@
+/*
+ * com.spoons.filter
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.filter;
+
+/**
+ * MinHash signatures of filtered posts (the words from splitFilter()).
+ * The fraction of positions where two signatures agree estimates the Jaccard
+ *  similarity of the two posts' shingle sets.
+ *
+ * A shingle is shingleSize words in a row, hashed from the words' (cached)
+ *  hash codes, so no Strings are made.
+ * Instead of numHashes independent hash functions, hash i is h1 + i * h2
+ *  (Kirsch-Mitzenmacher) run through a finalizer.
+ *
+ * Stateless, so one can be shared by every thread.
+ */
+public class MinHasher {
+   private final int numHashes;
+   private final int shingleSize;
+
+   public MinHasher(int numHashes, int shingleSize) {
+      if (numHashes < 1 || shingleSize < 1) {
+         throw new IllegalArgumentException("numHashes and shingleSize must be positive.");
+      }
+
+      this.numHashes = numHashes;
+      this.shingleSize = shingleSize;
+   }
+
+   public int getNumHashes() {
+      return numHashes;
+   }
+
+   public int getShingleSize() {
+      return shingleSize;
+   }
+
+   public int[] signature(String[] words) {
+      int[] rtn = new int[numHashes];
+      signature(words, rtn, 0);
+      return rtn;
+   }
+
+   /**
+    * Put the signature into out[offset, offset + numHashes).
+    * Posts with fewer words than a shingle use all of their words as one shingle.
+    *
+    * @return false if there are no words (and so no signature).
+    */
+   public boolean signature(String[] words, int[] out, int offset) {
+      if (words.length == 0) {
+         return false;
+      }
+
+      for (int ndx = 0; ndx < numHashes; ndx++) {
+         out[offset + ndx] = Integer.MAX_VALUE;
+      }
+
+      int numShingles = Math.max(1, words.length - shingleSize + 1);
+      for (int start = 0; start < numShingles; start++) {
+         long shingle = 0;
+         int end = Math.min(words.length, start + shingleSize);
+         for (int ndx = start; ndx < end; ndx++) {
+            shingle = shingle * 0x9E3779B97F4A7C15L + words[ndx].hashCode();
+         }
+
+         long hash = mix(shingle);
+         long hash1 = hash;
+         long hash2 = (hash >>> 32) | 1;
+
+         for (int ndx = 0; ndx < numHashes; ndx++) {
+            // Positive, so the unsigned compare is just a compare.
+            int value = (int)(mix(hash1 + ndx * hash2) >>> 33);
+            if (value < out[offset + ndx]) {
+               out[offset + ndx] = value;
+            }
+         }
+      }
+
+      return true;
+   }
+
+   /**
+    * The estimated Jaccard similarity of two signatures.
+    */
+   public static double similarity(int[] a, int aOffset, int[] b, int bOffset, int length) {
+      int same = 0;
+      for (int ndx = 0; ndx < length; ndx++) {
+         if (a[aOffset + ndx] == b[bOffset + ndx]) {
+            same++;
+         }
+      }
+
+      return (double)same / length;
+   }
+
+   /**
+    * The finalizer from MurmurHash3.
+    */
+   static long mix(long hash) {
+      hash ^= hash >>> 33;
+      hash *= 0xFF51AFD7ED558CCDL;
+      hash ^= hash >>> 33;
+      hash *= 0xC4CEB9FE1A85EC53L;
+      hash ^= hash >>> 33;
+
+      return hash;
+   }
+}
@@ -0,0 +1,296 @@
+/*
+ * com.spoons.filter
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.filter;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Flags posts that are near-duplicates (by MinHash, see MinHasher) of one of
+ *  the last window posts, like the same ride share offer reposted with a small edit.
+ *
+ * Banded LSH: the signature is cut into bands of rows, and two posts are
+ *  candidates if any whole band is the same. Each band is a fixed size, open
+ *  addressed table of longs: the high half is a fingerprint of the band, and
+ *  the low half is the sequence number of the latest post with that band.
+ *  Entries older than the window are just overwritten, so memory is constant.
+ * Candidates are checked against their full signature (kept in a ring of the
+ *  last window signatures) before being called duplicates.
+ *
+ * Lock free, so every filter thread can share one index. Under races a
+ *  duplicate may occasionally be missed, never made up: a candidate's signature
+ *  can be written over (by the post a window after it) while it is compared, so
+ *  a match only counts if that post had not been started yet (see isUnchanged()).
+ */
+public class NearDuplicateIndex {
+   public static final int DEFAULT_BANDS = 16;
+   public static final int DEFAULT_ROWS = 4;
+   public static final int DEFAULT_WINDOW = 100000;
+   public static final double DEFAULT_THRESHOLD = 0.7;
+
+   /**
+    * The number of slots looked at per band.
+    */
+   private static final int PROBES = 4;
+
+   private final MinHasher hasher;
+   private final int bands;
+   private final int rows;
+   private final int window;
+   private final double threshold;
+
+   private final AtomicLongArray[] tables;
+   private final int tableMask;
+
+   /**
+    * The signatures of the last window posts, by sequence number % window.
+    */
+   private final int[] signatures;
+
+   /**
+    * The sequence number of the last post, they start at 1 (0 is an empty slot).
+    */
+   private final AtomicInteger sequence;
+
+   private final LongAdder checked;
+   private final LongAdder duplicates;
+
+   public NearDuplicateIndex() {
+      this(DEFAULT_BANDS, DEFAULT_ROWS, DEFAULT_WINDOW, DEFAULT_THRESHOLD, 1);
+   }
+
+   /**
+    * @param bands The number of bands, more finds less similar candidates.
+    * @param rows The number of rows in a band, more finds fewer (but closer) candidates.
+    * @param window How many of the most recent posts to compare against.
+    * @param threshold The estimated Jaccard similarity that makes a duplicate.
+    * @param shingleSize The number of words in a shingle.
+    */
+   public NearDuplicateIndex(int bands, int rows, int window, double threshold, int shingleSize) {
+      if (bands < 1 || rows < 1 || window < 1) {
+         throw new IllegalArgumentException("bands, rows, and window must be positive.");
+      }
+
+      hasher = new MinHasher(bands * rows, shingleSize);
+      this.bands = bands;
+      this.rows = rows;
+      this.window = window;
+      this.threshold = threshold;
+
+      int capacity = Integer.highestOneBit(Math.max(window, PROBES) * 2 - 1) * 2;
+      tables = new AtomicLongArray[bands];
+      for (int ndx = 0; ndx < bands; ndx++) {
+         tables[ndx] = new AtomicLongArray(capacity);
+      }
+      tableMask = capacity - 1;
+
+      signatures = new int[window * bands * rows];
+      sequence = new AtomicInteger(0);
+
+      checked = new LongAdder();
+      duplicates = new LongAdder();
+   }
+
+   /**
+    * Add a post (its filtered words), and check it against the window.
+    *
+    * @return The sequence number of the post it duplicates, or -1.
+    *  A post is added either way, so a chain of reposts keeps matching.
+    */
+   public int add(String[] words) {
+      int numHashes = bands * rows;
+      int[] signature = new int[numHashes];
+      if (!hasher.signature(words, signature, 0)) {
+         return -1;
+      }
+
+      checked.increment();
+
+      int seq = sequence.incrementAndGet();
+      if (seq == 0) {
+         // Wrapped all the way around, 0 means empty.
+         seq = sequence.incrementAndGet();
+      }
+
+      int best = -1;
+      for (int band = 0; band < bands; band++) {
+         long key = bandKey(signature, band);
+         int candidate = find(tables[band], key, seq);
+
+         if (candidate != -1 &&
+             MinHasher.similarity(signature, 0, signatures, slot(candidate), numHashes) >= threshold &&
+             isInWindow(candidate, seq) && isUnchanged(candidate)) {
+            best = candidate;
+            break;
+         }
+      }
+
+      System.arraycopy(signature, 0, signatures, slot(seq), numHashes);
+      // The tables are written after the signature, so anyone who finds seq sees it.
+      for (int band = 0; band < bands; band++) {
+         insert(tables[band], bandKey(signature, band), seq);
+      }
+
+      if (best != -1) {
+         duplicates.increment();
+      }
+
+      return best;
+   }
+
+   public boolean isNearDuplicate(String[] words) {
+      return add(words) != -1;
+   }
+
+   /**
+    * The number of (non-empty) posts checked.
+    */
+   public long getChecked() {
+      return checked.sum();
+   }
+
+   public long getDuplicates() {
+      return duplicates.sum();
+   }
+
+   /**
+    * Just the settings, so that it can be part of a filter's fingerprint.
+    */
+   public String toString() {
+      return "NearDuplicateIndex[" + bands + "x" + rows + ", window " + window +
+             ", threshold " + threshold + ", shingle " + hasher.getShingleSize() + "]";
+   }
+
+   private int slot(int seq) {
+      return (int)((seq & 0xFFFFFFFFL) % window) * bands * rows;
+   }
+
+   /**
+    * Whether candidate is one of the window posts before seq.
+    */
+   private boolean isInWindow(int candidate, int seq) {
+      int age = seq - candidate;
+      return age > 0 && age < window;
+   }
+
+   /**
+    * Whether the signature of candidate was still there for the whole compare.
+    * Like a seqlock: a post takes its sequence number before it writes its
+    *  signature, so if no post has gotten a window past candidate yet, nothing
+    *  has been written over candidate's slot.
+    */
+   private boolean isUnchanged(int candidate) {
+      // The reads of the signature must not move after the read of sequence.
+      VarHandle.acquireFence();
+      return sequence.get() - candidate < window;
+   }
+
+   /**
+    * The latest post in the window with this band, or -1.
+    */
+   private int find(AtomicLongArray table, long key, int seq) {
+      int fingerprint = (int)(key >>> 32);
+      int start = (int)key & tableMask;
+
+      for (int probe = 0; probe < PROBES; probe++) {
+         long entry = table.get((start + probe) & tableMask);
+         if (entry != 0 && (int)(entry >>> 32) == fingerprint &&
+             isInWindow((int)entry, seq)) {
+            return (int)entry;
+         }
+      }
+
+      return -1;
+   }
+
+   /**
+    * Put seq in the slot with the same band, or an empty, stale, or the oldest slot.
+    */
+   private void insert(AtomicLongArray table, long key, int seq) {
+      int fingerprint = (int)(key >>> 32);
+      int start = (int)key & tableMask;
+      long newEntry = ((long)fingerprint << 32) | (seq & 0xFFFFFFFFL);
+
+      while (true) {
+         int victim = -1;
+         long victimEntry = 0;
+         int oldestAge = -1;
+
+         for (int probe = 0; probe < PROBES; probe++) {
+            int slot = (start + probe) & tableMask;
+            long entry = table.get(slot);
+
+            if (entry == 0 || (int)(entry >>> 32) == fingerprint) {
+               victim = slot;
+               victimEntry = entry;
+               break;
+            }
+
+            int age = seq - (int)entry;
+            if (age < 0) {
+               // Newer than us (another thread), never take it.
+               continue;
+            }
+
+            if (age > oldestAge) {
+               oldestAge = age;
+               victim = slot;
+               victimEntry = entry;
+            }
+         }
+
+         if (victim == -1) {
+            return;
+         }
+
+         // Do not replace a newer post with the same band.
+         if (victimEntry != 0 && (int)(victimEntry >>> 32) == fingerprint &&
+             seq - (int)victimEntry < 0) {
+            return;
+         }
+
+         if (table.compareAndSet(victim, victimEntry, newEntry)) {
+            return;
+         }
+      }
+   }
+
+   private long bandKey(int[] signature, int band) {
+      long rtn = band;
+      for (int ndx = band * rows; ndx < (band + 1) * rows; ndx++) {
+         rtn = rtn * 0x9E3779B97F4A7C15L + signature[ndx];
+      }
+
+      rtn = MinHasher.mix(rtn);
+      // Keep 0 free for empty slots.
+      return (rtn >>> 32) == 0 ? rtn | (1L << 32) : rtn;
+   }
+}
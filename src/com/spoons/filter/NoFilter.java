@@ -41,4 +41,8 @@ public class NoFilter extends TextFilter {
    public String[] splitFilter(String input) {
       return SmartSplitString.split(input);
    }
+
+   boolean splitFilterAscii(byte[] bytes, int offset, int length, AsciiWords words) {
+      return AsciiSplitString.split(bytes, offset, length, false, words);
+   }
 }
@@ -0,0 +1,344 @@
+/*
+ * com.spoons.filter
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.filter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * A set of strings, each with a dense int ID (in the order they were added),
+ *  that keeps everything in direct buffers instead of on the heap.
+ * Heap usage is a handful of objects no matter how many strings are in it, so a
+ *  large dictionary does not make for longer GC pauses.
+ *
+ * Lookups can be done on a slice of a CharSequence, char[], or byte[] (ISO-8859-1,
+ *  like the ASCII lines from Utf8LineFilter), and never create a String.
+ *
+ * Layout:
+ *  chars: the UTF-16 characters of every string, one after another.
+ *  starts: where each string starts in chars (starts[id + 1] is where it ends).
+ *  hashes: each string's String.hashCode().
+ *  slots: an open addressed (linear probing) hash table of ID + 1 (0 is empty).
+ *
+ * add() is synchronized. Lookups take no locks. A lookup that races with the
+ *  add() of the same string may miss it.
+ */
+public class OffHeapStringTable {
+   private static final int INITIAL_CAPACITY = 1024;
+
+   private volatile State state;
+   private volatile int size;
+
+   public OffHeapStringTable() {
+      this(INITIAL_CAPACITY);
+   }
+
+   public OffHeapStringTable(int expectedSize) {
+      int capacity = Integer.highestOneBit(Math.max(expectedSize, 16) * 2 - 1) * 2;
+      state = new State(capacity, capacity * 8);
+      size = 0;
+   }
+
+   /**
+    * Get the ID of a string, adding it if it is not already in the table.
+    */
+   public int add(CharSequence text) {
+      return add(text, 0, text.length());
+   }
+
+   public synchronized int add(CharSequence text, int start, int end) {
+      int rtn = lookup(text, start, end);
+      if (rtn != -1) {
+         return rtn;
+      }
+
+      int length = end - start;
+      State current = state;
+      int id = size;
+
+      if (id + 1 >= current.capacity || current.charsUsed + length > current.chars.capacity()) {
+         current = current.grow(id, id + 2, current.charsUsed + length);
+         state = current;
+      }
+
+      int offset = current.charsUsed;
+      for (int ndx = 0; ndx < length; ndx++) {
+         current.chars.put(offset + ndx, text.charAt(start + ndx));
+      }
+      current.charsUsed += length;
+      current.starts.put(id + 1, current.charsUsed);
+
+      int hash = hash(text, start, end);
+      current.hashes.put(id, hash);
+      current.insert(id, hash);
+
+      // Publish.
+      size = id + 1;
+
+      return id;
+   }
+
+   /**
+    * @return The ID of the string, or -1 if it is not in the table.
+    */
+   public int lookup(CharSequence text) {
+      return lookup(text, 0, text.length());
+   }
+
+   public int lookup(CharSequence text, int start, int end) {
+      State current = state;
+      int hash = hash(text, start, end);
+
+      for (int slot = mix(hash) & current.mask; ; slot = (slot + 1) & current.mask) {
+         int id = current.slots.get(slot) - 1;
+         if (id < 0) {
+            return -1;
+         }
+
+         if (current.hashes.get(id) == hash && current.matches(id, text, start, end)) {
+            return id;
+         }
+      }
+   }
+
+   public int lookup(char[] text, int start, int end) {
+      State current = state;
+      int hash = 0;
+      for (int ndx = start; ndx < end; ndx++) {
+         hash = 31 * hash + text[ndx];
+      }
+
+      for (int slot = mix(hash) & current.mask; ; slot = (slot + 1) & current.mask) {
+         int id = current.slots.get(slot) - 1;
+         if (id < 0) {
+            return -1;
+         }
+
+         if (current.hashes.get(id) == hash && current.matches(id, text, start, end)) {
+            return id;
+         }
+      }
+   }
+
+   /**
+    * Look up an ISO-8859-1 (or ASCII) slice of bytes.
+    */
+   public int lookup(byte[] text, int start, int end) {
+      State current = state;
+      int hash = 0;
+      for (int ndx = start; ndx < end; ndx++) {
+         hash = 31 * hash + (text[ndx] & 0xFF);
+      }
+
+      for (int slot = mix(hash) & current.mask; ; slot = (slot + 1) & current.mask) {
+         int id = current.slots.get(slot) - 1;
+         if (id < 0) {
+            return -1;
+         }
+
+         if (current.hashes.get(id) == hash && current.matches(id, text, start, end)) {
+            return id;
+         }
+      }
+   }
+
+   /**
+    * Get the string for an ID.
+    * This is the only call that creates a String.
+    */
+   public String get(int id) {
+      if (id < 0 || id >= size) {
+         throw new IndexOutOfBoundsException("Unknown ID: " + id);
+      }
+
+      State current = state;
+      int start = current.starts.get(id);
+      int end = current.starts.get(id + 1);
+
+      char[] rtn = new char[end - start];
+      for (int ndx = 0; ndx < rtn.length; ndx++) {
+         rtn[ndx] = current.chars.get(start + ndx);
+      }
+
+      return new String(rtn);
+   }
+
+   public int size() {
+      return size;
+   }
+
+   /**
+    * The number of bytes of direct memory being used.
+    */
+   public long offHeapBytes() {
+      State current = state;
+      return current.chars.capacity() * 2L + current.capacity * 8L + current.slots.capacity() * 4L;
+   }
+
+   public String toString() {
+      return "OffHeapStringTable(" + size + ", " + offHeapBytes() + " bytes)";
+   }
+
+   private static int hash(CharSequence text, int start, int end) {
+      int rtn = 0;
+      for (int ndx = start; ndx < end; ndx++) {
+         rtn = 31 * rtn + text.charAt(ndx);
+      }
+
+      return rtn;
+   }
+
+   /**
+    * String hashes are weak in the low bits.
+    */
+   private static int mix(int hash) {
+      hash *= 0x9E3779B9;
+      return hash ^ (hash >>> 16);
+   }
+
+   private static IntBuffer allocateInts(int size) {
+      return ByteBuffer.allocateDirect(size * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+   }
+
+   private static CharBuffer allocateChars(int size) {
+      return ByteBuffer.allocateDirect(size * 2).order(ByteOrder.nativeOrder()).asCharBuffer();
+   }
+
+   /**
+    * All the buffers, swapped out all together when the table grows.
+    */
+   private static class State {
+      public final int capacity;
+      public final int mask;
+      public final CharBuffer chars;
+      public final IntBuffer starts;
+      public final IntBuffer hashes;
+      public final IntBuffer slots;
+      public int charsUsed;
+
+      public State(int capacity, int numChars) {
+         this.capacity = capacity;
+         // Keep the table at most half full.
+         mask = capacity * 2 - 1;
+         chars = allocateChars(numChars);
+         starts = allocateInts(capacity + 1);
+         hashes = allocateInts(capacity);
+         slots = allocateInts(capacity * 2);
+         charsUsed = 0;
+      }
+
+      /**
+       * Make a bigger copy with room for the given number of IDs and chars.
+       *
+       * @param numIds The number of IDs in use.
+       */
+      public State grow(int numIds, int minCapacity, int minChars) {
+         int newCapacity = capacity;
+         while (newCapacity < minCapacity) {
+            newCapacity *= 2;
+         }
+
+         int newChars = chars.capacity();
+         while (newChars < minChars) {
+            newChars *= 2;
+         }
+
+         State rtn = new State(newCapacity, newChars);
+
+         for (int ndx = 0; ndx < charsUsed; ndx++) {
+            rtn.chars.put(ndx, chars.get(ndx));
+         }
+         rtn.charsUsed = charsUsed;
+
+         for (int id = 0; id < numIds; id++) {
+            rtn.starts.put(id + 1, starts.get(id + 1));
+            rtn.hashes.put(id, hashes.get(id));
+            rtn.insert(id, hashes.get(id));
+         }
+
+         return rtn;
+      }
+
+      public void insert(int id, int hash) {
+         int slot = mix(hash) & mask;
+         while (slots.get(slot) != 0) {
+            slot = (slot + 1) & mask;
+         }
+
+         slots.put(slot, id + 1);
+      }
+
+      public boolean matches(int id, CharSequence text, int start, int end) {
+         int offset = starts.get(id);
+         if (starts.get(id + 1) - offset != end - start) {
+            return false;
+         }
+
+         for (int ndx = start; ndx < end; ndx++, offset++) {
+            if (chars.get(offset) != text.charAt(ndx)) {
+               return false;
+            }
+         }
+
+         return true;
+      }
+
+      public boolean matches(int id, char[] text, int start, int end) {
+         int offset = starts.get(id);
+         if (starts.get(id + 1) - offset != end - start) {
+            return false;
+         }
+
+         for (int ndx = start; ndx < end; ndx++, offset++) {
+            if (chars.get(offset) != text[ndx]) {
+               return false;
+            }
+         }
+
+         return true;
+      }
+
+      public boolean matches(int id, byte[] text, int start, int end) {
+         int offset = starts.get(id);
+         if (starts.get(id + 1) - offset != end - start) {
+            return false;
+         }
+
+         for (int ndx = start; ndx < end; ndx++, offset++) {
+            if (chars.get(offset) != (char)(text[ndx] & 0xFF)) {
+               return false;
+            }
+         }
+
+         return true;
+      }
+   }
+}
@@ -0,0 +1,259 @@
+/*
+ * com.spoons.filter
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.filter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * A word trie (like the LocationFilter structure) that lives in direct buffers.
+ *
+ * The words are kept in an OffHeapStringTable, nodes are just ints (ROOT is 0),
+ *  and the edges are an open addressed hash table keyed by (node, word ID).
+ * Walking the trie can be done with the words of a String[], or with word
+ *  slices of the raw text so no Strings are made at all.
+ *
+ * Build it on one thread, then share it for reading.
+ */
+public class OffHeapTrie {
+   public static final int ROOT = 0;
+
+   private static final int INITIAL_CAPACITY = 1024;
+
+   private final OffHeapStringTable words;
+
+   /**
+    * The edges: ((node + 1) << 32 | word ID), 0 for an empty slot.
+    */
+   private LongBuffer edgeKeys;
+   private IntBuffer edgeChildren;
+   private int edgeMask;
+   private int numEdges;
+
+   /**
+    * One byte per node, non-zero if the node ends an entry.
+    */
+   private ByteBuffer terminal;
+   private int numNodes;
+
+   public OffHeapTrie() {
+      words = new OffHeapStringTable();
+
+      allocateEdges(INITIAL_CAPACITY * 2);
+      numEdges = 0;
+
+      terminal = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+      numNodes = 1;
+   }
+
+   /**
+    * Add an entry, already split into words.
+    */
+   public void add(String[] entry) {
+      if (entry.length == 0) {
+         return;
+      }
+
+      int node = ROOT;
+      for (String word : entry) {
+         int wordId = words.add(word);
+         int next = child(node, wordId);
+
+         if (next == -1) {
+            next = newNode();
+            addEdge(node, wordId, next);
+         }
+
+         node = next;
+      }
+
+      terminal.put(node, (byte)1);
+   }
+
+   /**
+    * @return The child of node along wordId, or -1.
+    */
+   public int child(int node, int wordId) {
+      if (wordId < 0) {
+         return -1;
+      }
+
+      long key = edgeKey(node, wordId);
+      for (int slot = mix(key) & edgeMask; ; slot = (slot + 1) & edgeMask) {
+         long current = edgeKeys.get(slot);
+         if (current == 0) {
+            return -1;
+         }
+
+         if (current == key) {
+            return edgeChildren.get(slot);
+         }
+      }
+   }
+
+   public int child(int node, String word) {
+      return child(node, words.lookup(word));
+   }
+
+   public int child(int node, CharSequence text, int start, int end) {
+      return child(node, words.lookup(text, start, end));
+   }
+
+   /**
+    * Whether the path to node is a whole entry.
+    */
+   public boolean isTerminal(int node) {
+      return terminal.get(node) != 0;
+   }
+
+   /**
+    * The number of words in the longest entry that starts at words[ndx],
+    *  0 if there is none.
+    */
+   public int longestMatch(String[] words, int ndx) {
+      int rtn = 0;
+      int node = ROOT;
+
+      for (int count = 1; ndx < words.length; ndx++, count++) {
+         node = child(node, words[ndx]);
+         if (node == -1) {
+            break;
+         }
+
+         if (isTerminal(node)) {
+            rtn = count;
+         }
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Like longestMatch(String[], int), but the words are slices of text.
+    *
+    * @param numWords The number of words in starts/ends.
+    */
+   public int longestMatch(CharSequence text, int[] starts, int[] ends,
+                           int ndx, int numWords) {
+      int rtn = 0;
+      int node = ROOT;
+
+      for (int count = 1; ndx < numWords; ndx++, count++) {
+         node = child(node, text, starts[ndx], ends[ndx]);
+         if (node == -1) {
+            break;
+         }
+
+         if (isTerminal(node)) {
+            rtn = count;
+         }
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Every distinct word used in the trie.
+    */
+   public OffHeapStringTable getWords() {
+      return words;
+   }
+
+   public int getNumNodes() {
+      return numNodes;
+   }
+
+   /**
+    * The number of bytes of direct memory being used.
+    */
+   public long offHeapBytes() {
+      return words.offHeapBytes() + edgeKeys.capacity() * 12L + terminal.capacity();
+   }
+
+   public String toString() {
+      return "OffHeapTrie(" + numNodes + " nodes, " + words.size() + " words, " +
+             offHeapBytes() + " bytes)";
+   }
+
+   private int newNode() {
+      if (numNodes == terminal.capacity()) {
+         ByteBuffer newTerminal = ByteBuffer.allocateDirect(numNodes * 2);
+         terminal.rewind();
+         newTerminal.put(terminal);
+         terminal = newTerminal;
+      }
+
+      return numNodes++;
+   }
+
+   private void addEdge(int node, int wordId, int child) {
+      // Keep the table at most half full.
+      if ((numEdges + 1) * 2 > edgeKeys.capacity()) {
+         LongBuffer oldKeys = edgeKeys;
+         IntBuffer oldChildren = edgeChildren;
+
+         allocateEdges(oldKeys.capacity() * 2);
+         for (int slot = 0; slot < oldKeys.capacity(); slot++) {
+            if (oldKeys.get(slot) != 0) {
+               insertEdge(oldKeys.get(slot), oldChildren.get(slot));
+            }
+         }
+      }
+
+      insertEdge(edgeKey(node, wordId), child);
+      numEdges++;
+   }
+
+   private void insertEdge(long key, int child) {
+      int slot = mix(key) & edgeMask;
+      while (edgeKeys.get(slot) != 0) {
+         slot = (slot + 1) & edgeMask;
+      }
+
+      edgeKeys.put(slot, key);
+      edgeChildren.put(slot, child);
+   }
+
+   private void allocateEdges(int capacity) {
+      edgeKeys = ByteBuffer.allocateDirect(capacity * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+      edgeChildren = ByteBuffer.allocateDirect(capacity * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+      edgeMask = capacity - 1;
+   }
+
+   private static long edgeKey(int node, int wordId) {
+      return ((long)(node + 1) << 32) | (wordId & 0xFFFFFFFFL);
+   }
+
+   private static int mix(long key) {
+      key *= 0x9E3779B97F4A7C15L;
+      return (int)(key ^ (key >>> 32));
+   }
+}
@@ -40,6 +40,16 @@ import java.util.List;
  * The sole purpose of this class is to split a string along what we define as a word.
  */
 public class SmartSplitString {
+   /**
+    * Whether or not to try the ASCII fast path (AsciiSplitString) first.
+    */
+   private static volatile boolean asciiFastPath = false;
+
+   /**
+    * Whether non-ASCII letters are folded (see UnicodeFolding) and kept,
+    *  instead of splitting words apart.
+    */
+   private static volatile boolean unicodeMode = false;
 
    /**
     * Construct a new SmartSplitString.
@@ -48,6 +58,33 @@ public class SmartSplitString {
    private SmartSplitString() {
    }
 
+   /**
+    * Turn the ASCII fast path on or off.
+    * The results of split() are the same either way.
+    */
+   public static void setAsciiFastPath(boolean enabled) {
+      asciiFastPath = enabled;
+   }
+
+   public static boolean isAsciiFastPath() {
+      return asciiFastPath;
+   }
+
+   /**
+    * Turn Unicode mode on or off.
+    * In Unicode mode, non-ASCII letters are kept, with their case and
+    *  diacritics folded ("San Jos\u00E9" -> "san", "jose"), and combining marks are
+    *  dropped without ending the word. ASCII text splits the same either way.
+    * The LocationFilter rebuilds its structure on the next init() after this changes.
+    */
+   public static void setUnicodeMode(boolean enabled) {
+      unicodeMode = enabled;
+   }
+
+   public static boolean isUnicodeMode() {
+      return unicodeMode;
+   }
+
    /**
     * Default split that ignores meta words.
     */
@@ -60,18 +97,35 @@ public class SmartSplitString {
     * No Stemming will occur, but all non-alpha characters will
     *  be taken out.
     * Preserve words inside unescaped "<$$>".
+    * When replacing meta words, emoji (see EmojiTable) become "<$emote:...$>".
     *
     * @param text The String to split up. This will be modified.
     *
     * @return The list of words in text.
     */
    public static String[] split(String text, boolean replaceMeta) {
+      if (asciiFastPath) {
+         String[] rtn = AsciiSplitString.split(text, replaceMeta);
+         if (rtn != null) {
+            return rtn;
+         }
+      }
+
+      return scalarSplit(text, replaceMeta);
+   }
+
+   /**
+    * The char at a time split that handles all of Unicode.
+    */
+   static String[] scalarSplit(String text, boolean replaceMeta) {
       List<String> tempWords = new ArrayList<String>();
+      boolean unicode = unicodeMode;
 
       int index = 0;
       boolean inMeta = false;
       boolean inWord = false;
       String word = "";
+      int emoji = 0;
 
       while (index < text.length()) {
          char currentChar = Character.toLowerCase(text.charAt(index));
@@ -135,6 +189,32 @@ public class SmartSplitString {
             inMeta = false;
             // Move an extra step ahead
             index++;
+         } else if (replaceMeta && !inMeta &&
+                    (currentChar >= EmojiTable.MIN_CHAR ||
+                     EmojiTable.isKeycapStart(currentChar, nextChar)) &&
+                    (emoji = EmojiTable.match(text, index)) != 0) {
+            if (inWord) {
+               addWord(tempWords, word, replaceMeta);
+               word = "";
+               inWord = false;
+            }
+
+            addWord(tempWords, EmojiTable.matchToken(emoji), replaceMeta);
+            // Move past the rest of the emoji
+            index += EmojiTable.matchLength(emoji) - 1;
+         } else if (unicode && !inMeta && currentChar >= 0x80) {
+            String folded = UnicodeFolding.fold(currentChar);
+            if (folded != UnicodeFolding.NOT_LETTER) {
+               // A dropped mark neither starts nor ends a word.
+               if (!folded.isEmpty()) {
+                  word += folded;
+                  inWord = true;
+               }
+            } else if (inWord) {
+               addWord(tempWords, word, replaceMeta);
+               word = "";
+               inWord = false;
+            }
          } else {
             if (inMeta || ('a' <= currentChar && currentChar <= 'z')) {
                word += currentChar;
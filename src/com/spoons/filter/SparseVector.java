@@ -0,0 +1,87 @@
+/*
+ * com.spoons.filter
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.filter;
+
+import java.util.Arrays;
+
+/**
+ * A sparse vector of floats: parallel arrays of (sorted, distinct) indices and values.
+ * Made by FeatureHasher.
+ */
+public class SparseVector {
+   private int[] indices;
+   private float[] values;
+
+   /**
+    * The arrays are used as is, indices must be sorted and distinct.
+    */
+   public SparseVector(int[] indices, float[] values) {
+      if (indices.length != values.length) {
+         throw new IllegalArgumentException("indices and values must be the same length.");
+      }
+
+      this.indices = indices;
+      this.values = values;
+   }
+
+   /**
+    * The number of non-zero entries.
+    */
+   public int size() {
+      return indices.length;
+   }
+
+   public int[] getIndices() {
+      return indices;
+   }
+
+   public float[] getValues() {
+      return values;
+   }
+
+   /**
+    * Get the value at an index (zero if it is not set).
+    */
+   public float get(int index) {
+      int ndx = Arrays.binarySearch(indices, index);
+      return ndx < 0 ? 0 : values[ndx];
+   }
+
+   public String toString() {
+      StringBuilder rtn = new StringBuilder("{");
+      for (int ndx = 0; ndx < indices.length; ndx++) {
+         if (ndx > 0) {
+            rtn.append(", ");
+         }
+         rtn.append(indices[ndx]).append(":").append(values[ndx]);
+      }
+
+      return rtn.append("}").toString();
+   }
+}
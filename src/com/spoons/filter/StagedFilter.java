@@ -0,0 +1,611 @@
+/*
+ * com.spoons.filter
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.filter;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs posts through a filter one stage at a time (SEDA style) instead of one
+ *  post at a time.
+ * Every stage (see EriqFilter.stages()) has its own group of worker threads, and
+ *  the stages are connected by bounded, lock free rings. So an expensive stage
+ *  (locations, emoticons) can get more threads than a cheap one (splitting), and
+ *  one slow post only holds up one worker of one stage instead of a whole
+ *  post-level worker.
+ *
+ * Every stage keeps count of how busy its workers are and how deep its input
+ *  ring is, see getStats(). Stats.suggestThreads() turns that into a better
+ *  split of the threads for the next run.
+ *
+ * Results always come out in the same order the posts went in.
+ * Posts that finish early wait in a fixed size reorder ring (indexed by their
+ *  sequence number), and the feeder never lets a post in that is more than the
+ *  ring's size ahead of the next post to come out. So one slow post holds up
+ *  the feeder instead of growing the reorder buffer.
+ */
+public class StagedFilter {
+   private static final int SPINS = 100;
+   private static final long PARK_NANOS = 20000;
+
+   /**
+    * Passed down the rings after the last post.
+    */
+   private static final Object END = new Object();
+
+   private final List<Stage> stages;
+   private final int[] threads;
+   private final int ringSize;
+
+   /**
+    * The most posts that can be between the feeder and the output.
+    * Enough to fill every ring and keep every worker busy.
+    */
+   private final int window;
+
+   private final StageStats[] stats;
+
+   /**
+    * One step of a filter.
+    * Must be safe to call from many threads at once.
+    */
+   public abstract static class Stage {
+      private final String name;
+
+      public Stage(String name) {
+         this.name = name;
+      }
+
+      public String getName() {
+         return name;
+      }
+
+      /**
+       * Take the output of the stage before (the post for the first stage) and
+       *  give the input of the next stage (the filtered words for the last stage).
+       */
+      public abstract Object process(Object input);
+   }
+
+   /**
+    * Gets the results, in order, on the thread that called filter().
+    */
+   public interface Output {
+      public void filtered(long ndx, String[] words) throws Exception;
+   }
+
+   /**
+    * @param stages The stages, in order. The last one has to give a String[].
+    * @param threads The number of workers for each stage.
+    * @param ringSize The size of the ring in front of each stage.
+    */
+   public StagedFilter(List<Stage> stages, int[] threads, int ringSize) {
+      if (stages.isEmpty() || stages.size() != threads.length) {
+         throw new IllegalArgumentException("Need a thread count for every stage.");
+      }
+
+      for (int count : threads) {
+         if (count < 1) {
+            throw new IllegalArgumentException("Every stage needs at least one thread.");
+         }
+      }
+
+      this.stages = new ArrayList<Stage>(stages);
+      this.threads = threads.clone();
+      this.ringSize = Integer.highestOneBit(Math.max(ringSize, 2) * 2 - 1);
+
+      int totalThreads = 0;
+      for (int count : threads) {
+         totalThreads += count;
+      }
+      window = this.ringSize * (stages.size() + 1) + totalThreads;
+
+      stats = new StageStats[stages.size()];
+      for (int ndx = 0; ndx < stats.length; ndx++) {
+         stats[ndx] = new StageStats();
+      }
+   }
+
+   /**
+    * Filter all of the posts.
+    * The stages are started for this call and stopped before it returns.
+    *
+    * @throws RuntimeException If a stage or the output threw.
+    */
+   public void filter(final Iterator<String> posts, Output output) {
+      final int numStages = stages.size();
+      final Ring[] rings = new Ring[numStages + 1];
+      for (int ndx = 0; ndx < rings.length; ndx++) {
+         rings[ndx] = new Ring(ringSize);
+      }
+
+      final Run run = new Run();
+      List<Thread> workers = new ArrayList<Thread>();
+
+      for (int stageNdx = 0; stageNdx < numStages; stageNdx++) {
+         final int currentStage = stageNdx;
+         final AtomicInteger running = new AtomicInteger(threads[stageNdx]);
+
+         for (int worker = 0; worker < threads[stageNdx]; worker++) {
+            Thread thread = new Thread("StagedFilter-" + stages.get(stageNdx).getName() + "-" + worker) {
+               public void run() {
+                  work(currentStage, rings[currentStage], rings[currentStage + 1], running, run);
+               }
+            };
+            thread.setDaemon(true);
+            workers.add(thread);
+         }
+      }
+
+      Thread feeder = new Thread("StagedFilter-feeder") {
+         public void run() {
+            long ndx = 0;
+            try {
+               while (posts.hasNext() && run.failure == null) {
+                  if (!awaitWindow(ndx, run) ||
+                      !put(rings[0], new Item(ndx++, posts.next()), run)) {
+                     return;
+                  }
+               }
+            } catch (Throwable ex) {
+               run.fail(ex);
+            }
+
+            for (int count = 0; count < threads[0]; count++) {
+               put(rings[0], END, run);
+            }
+         }
+      };
+      feeder.setDaemon(true);
+      workers.add(feeder);
+
+      long start = System.nanoTime();
+      for (Thread thread : workers) {
+         thread.start();
+      }
+
+      try {
+         collect(rings[numStages], output, run);
+      } catch (Throwable ex) {
+         run.fail(ex);
+      }
+
+      for (Thread thread : workers) {
+         try {
+            thread.join();
+         } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            run.fail(ex);
+         }
+      }
+
+      long elapsed = System.nanoTime() - start;
+      for (int ndx = 0; ndx < numStages; ndx++) {
+         stats[ndx].wallNanos.add(elapsed * threads[ndx]);
+      }
+
+      if (run.failure != null) {
+         throw new RuntimeException("Staged filtering failed.", run.failure);
+      }
+   }
+
+   /**
+    * Filter a list of posts.
+    */
+   public List<String[]> splitFilter(List<String> posts) {
+      final List<String[]> rtn = new ArrayList<String[]>(posts.size());
+
+      filter(posts.iterator(), new Output() {
+         public void filtered(long ndx, String[] words) {
+            rtn.add(words);
+         }
+      });
+
+      return rtn;
+   }
+
+   /**
+    * The stats for every stage, added up over every call to filter().
+    */
+   public List<Stats> getStats() {
+      List<Stats> rtn = new ArrayList<Stats>();
+      for (int ndx = 0; ndx < stages.size(); ndx++) {
+         rtn.add(new Stats(stages.get(ndx).getName(), threads[ndx], stats[ndx]));
+      }
+
+      return rtn;
+   }
+
+   public String toString() {
+      StringBuilder rtn = new StringBuilder("StagedFilter[");
+      for (int ndx = 0; ndx < stages.size(); ndx++) {
+         if (ndx > 0) {
+            rtn.append(", ");
+         }
+         rtn.append(stages.get(ndx).getName()).append("x").append(threads[ndx]);
+      }
+
+      return rtn.append("]").toString();
+   }
+
+   private void work(int stageNdx, Ring in, Ring out, AtomicInteger running, Run run) {
+      Stage stage = stages.get(stageNdx);
+      StageStats stageStats = stats[stageNdx];
+
+      try {
+         while (true) {
+            Object next = take(in, run);
+            if (next == null) {
+               // Failed somewhere else.
+               return;
+            }
+
+            if (next == END) {
+               break;
+            }
+
+            stageStats.depthTotal.add(in.size());
+
+            Item item = (Item)next;
+            long start = System.nanoTime();
+            item.value = stage.process(item.value);
+            stageStats.busyNanos.add(System.nanoTime() - start);
+            stageStats.processed.increment();
+
+            if (!put(out, item, run)) {
+               return;
+            }
+         }
+      } catch (Throwable ex) {
+         run.fail(ex);
+         return;
+      }
+
+      // The last worker out tells every worker of the next stage.
+      if (running.decrementAndGet() == 0) {
+         int nextThreads = stageNdx + 1 < threads.length ? threads[stageNdx + 1] : 1;
+         for (int count = 0; count < nextThreads; count++) {
+            put(out, END, run);
+         }
+      }
+   }
+
+   /**
+    * Hand the results to output, in order.
+    * Every post in flight is within window of the next one to go out (see
+    *  awaitWindow()), so the reorder ring never has two posts for one slot.
+    */
+   private void collect(Ring in, Output output, Run run) throws Exception {
+      Item[] waiting = new Item[window];
+      long nextNdx = 0;
+
+      while (true) {
+         Object next = take(in, run);
+         if (next == null || next == END) {
+            return;
+         }
+
+         Item item = (Item)next;
+         waiting[(int)(item.ndx % window)] = item;
+
+         int slot;
+         while (waiting[slot = (int)(nextNdx % window)] != null) {
+            String[] words = (String[])waiting[slot].value;
+            waiting[slot] = null;
+            output.filtered(nextNdx++, words);
+         }
+         run.collected = nextNdx;
+      }
+   }
+
+   /**
+    * Spin, then park, until the post ndx is within window of the next post to
+    *  go out.
+    *
+    * @return false if the run failed first.
+    */
+   private boolean awaitWindow(long ndx, Run run) {
+      for (int tries = 0; ndx - run.collected >= window; tries++) {
+         if (run.failure != null) {
+            return false;
+         }
+
+         if (tries < SPINS) {
+            Thread.onSpinWait();
+         } else {
+            LockSupport.parkNanos(PARK_NANOS);
+         }
+      }
+
+      return true;
+   }
+
+   /**
+    * Spin, then park, until there is room.
+    *
+    * @return false if the run failed first.
+    */
+   private static boolean put(Ring ring, Object item, Run run) {
+      for (int tries = 0; !ring.offer(item); tries++) {
+         if (run.failure != null) {
+            return false;
+         }
+
+         if (tries < SPINS) {
+            Thread.onSpinWait();
+         } else {
+            LockSupport.parkNanos(PARK_NANOS);
+         }
+      }
+
+      return true;
+   }
+
+   /**
+    * Spin, then park, until there is something.
+    *
+    * @return null if the run failed first.
+    */
+   private static Object take(Ring ring, Run run) {
+      Object rtn;
+      for (int tries = 0; (rtn = ring.poll()) == null; tries++) {
+         if (run.failure != null) {
+            return null;
+         }
+
+         if (tries < SPINS) {
+            Thread.onSpinWait();
+         } else {
+            LockSupport.parkNanos(PARK_NANOS);
+         }
+      }
+
+      return rtn;
+   }
+
+   /**
+    * The state of one call to filter().
+    */
+   private static class Run {
+      public volatile Throwable failure = null;
+
+      /**
+       * The number of posts handed to the output so far.
+       */
+      public volatile long collected = 0;
+
+      public synchronized void fail(Throwable ex) {
+         if (failure == null) {
+            failure = ex;
+         }
+      }
+   }
+
+   /**
+    * A post on its way through the stages.
+    */
+   private static class Item {
+      public final long ndx;
+      public Object value;
+
+      public Item(long ndx, Object value) {
+         this.ndx = ndx;
+         this.value = value;
+      }
+   }
+
+   private static class StageStats {
+      public final LongAdder processed = new LongAdder();
+      public final LongAdder busyNanos = new LongAdder();
+      public final LongAdder wallNanos = new LongAdder();
+      public final LongAdder depthTotal = new LongAdder();
+   }
+
+   /**
+    * A snapshot of how one stage did.
+    */
+   public static class Stats {
+      private final String name;
+      private final int threads;
+      private final long processed;
+      private final long busyNanos;
+      private final long wallNanos;
+      private final long depthTotal;
+
+      private Stats(String name, int threads, StageStats stats) {
+         this.name = name;
+         this.threads = threads;
+         processed = stats.processed.sum();
+         busyNanos = stats.busyNanos.sum();
+         wallNanos = stats.wallNanos.sum();
+         depthTotal = stats.depthTotal.sum();
+      }
+
+      public String getName() {
+         return name;
+      }
+
+      public int getThreads() {
+         return threads;
+      }
+
+      public long getProcessed() {
+         return processed;
+      }
+
+      /**
+       * The time spent in the stage, over all of its threads.
+       */
+      public long getBusyNanos() {
+         return busyNanos;
+      }
+
+      /**
+       * The fraction of the time the stage's threads were working
+       *  (instead of waiting on the rings).
+       */
+      public double getUtilization() {
+         return wallNanos == 0 ? 0 : (double)busyNanos / wallNanos;
+      }
+
+      /**
+       * The average number of posts waiting in front of the stage.
+       * A deep queue in front of a stage means it needs more threads.
+       */
+      public double getAverageQueueDepth() {
+         return processed == 0 ? 0 : (double)depthTotal / processed;
+      }
+
+      public String toString() {
+         return String.format("%s: %d threads, %d posts, %.0f%% busy, %.1f queued",
+                              name, threads, processed, getUtilization() * 100,
+                              getAverageQueueDepth());
+      }
+
+      /**
+       * Split totalThreads between the stages by how much work each one did
+       *  (at least one each).
+       */
+      public static int[] suggestThreads(List<Stats> stats, int totalThreads) {
+         int[] rtn = new int[stats.size()];
+         long totalBusy = 0;
+         for (Stats stage : stats) {
+            totalBusy += stage.busyNanos;
+         }
+
+         int spare = totalThreads - stats.size();
+         int given = 0;
+         for (int ndx = 0; ndx < rtn.length; ndx++) {
+            rtn[ndx] = 1;
+            if (totalBusy > 0 && spare > 0) {
+               int extra = (int)(spare * stats.get(ndx).busyNanos / totalBusy);
+               rtn[ndx] += extra;
+               given += extra;
+            }
+         }
+
+         // Rounding leftovers go to the busiest stages.
+         while (spare > 0 && given < spare) {
+            int busiest = 0;
+            for (int ndx = 1; ndx < rtn.length; ndx++) {
+               if ((double)stats.get(ndx).busyNanos / rtn[ndx] >
+                   (double)stats.get(busiest).busyNanos / rtn[busiest]) {
+                  busiest = ndx;
+               }
+            }
+            rtn[busiest]++;
+            given++;
+         }
+
+         return rtn;
+      }
+   }
+
+   /**
+    * A bounded, lock free, multi-producer multi-consumer ring (Vyukov's queue).
+    * Every slot has a sequence number that says whether it is ready to be
+    *  written (== position) or read (== position + 1) for the current lap.
+    */
+   private static class Ring {
+      private final AtomicReferenceArray<Object> slots;
+      private final AtomicLongArray sequences;
+      private final int mask;
+
+      private final AtomicLong head = new AtomicLong();
+      private final AtomicLong tail = new AtomicLong();
+
+      public Ring(int size) {
+         slots = new AtomicReferenceArray<Object>(size);
+         sequences = new AtomicLongArray(size);
+         mask = size - 1;
+
+         for (int ndx = 0; ndx < size; ndx++) {
+            sequences.set(ndx, ndx);
+         }
+      }
+
+      public boolean offer(Object item) {
+         long position = tail.get();
+
+         while (true) {
+            int ndx = (int)position & mask;
+            long difference = sequences.get(ndx) - position;
+
+            if (difference == 0) {
+               if (tail.compareAndSet(position, position + 1)) {
+                  slots.set(ndx, item);
+                  sequences.set(ndx, position + 1);
+                  return true;
+               }
+               position = tail.get();
+            } else if (difference < 0) {
+               // Full.
+               return false;
+            } else {
+               position = tail.get();
+            }
+         }
+      }
+
+      public Object poll() {
+         long position = head.get();
+
+         while (true) {
+            int ndx = (int)position & mask;
+            long difference = sequences.get(ndx) - (position + 1);
+
+            if (difference == 0) {
+               if (head.compareAndSet(position, position + 1)) {
+                  Object rtn = slots.get(ndx);
+                  slots.set(ndx, null);
+                  sequences.set(ndx, position + mask + 1);
+                  return rtn;
+               }
+               position = head.get();
+            } else if (difference < 0) {
+               // Empty.
+               return null;
+            } else {
+               position = head.get();
+            }
+         }
+      }
+
+      public int size() {
+         return (int)Math.max(0, tail.get() - head.get());
+      }
+   }
+}
@@ -31,12 +31,15 @@ package com.spoons.filter;
 //import com.spoons.control.Logger;
 //import com.spoons.util.Query;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 /**
  * A class to handle stop word related activities like removing all the
@@ -59,12 +62,10 @@ public final class StopWordUtils {
    private static final String REPLACE_PLACEHOLDER = "!";
 
    /**
-    * The stopwords table.
-    * Each inner Set is just a presence HashMap representing a different stop level.
-    * Stopword levels decrease in importance from zero. (Zero is the most
-    *  important/frequent stopwords).
+    * The loaded stopwords, null until init().
+    * Replaced as a whole (never modified) so readers always see one consistent table.
     */
-   private static Map<Integer, Set<String>> stopwords = loadStopWords();
+   private static volatile StopWords stopwords = null;
 
    /**
     * Construct a new StopWordFilter.
@@ -73,12 +74,36 @@ public final class StopWordUtils {
    private StopWordUtils() {
    }
 
+   /**
+    * Load the stopwords now instead of on first use, see FilterRuntime.loadAll().
+    * Does nothing if they are already loaded.
+    */
+   public static synchronized void init() {
+      if (stopwords == null) {
+         stopwords = new StopWords(loadStopWords(), null);
+      }
+   }
+
+   /**
+    * The stopwords, loaded the first time they are needed.
+    */
+   private static StopWords getTable() {
+      StopWords rtn = stopwords;
+      if (rtn == null) {
+         init();
+         rtn = stopwords;
+      }
+
+      return rtn;
+   }
+
    /**
     * Load the stopwords from the database into memory.
     *
     * @return A HashMap representing the stopword table.
     */
    private static Map<Integer, Set<String>> loadStopWords() {
+      long start = System.nanoTime();
       Map<Integer, Set<String>> rtn =
        new HashMap<Integer, Set<String>>();
 
@@ -113,6 +138,8 @@ public final class StopWordUtils {
          rtn.get(levels.get(ndx)).add(stemmer.stem(words.get(ndx)));
       }
 
+      FilterRuntime.recordLoad(FilterRuntime.STOP_WORDS, System.nanoTime() - start);
+
       return rtn;
    }
 
@@ -135,25 +162,12 @@ public final class StopWordUtils {
     */
    public static String[] removeStopWords(String[] input, int level) {
       List<String> rtn = new ArrayList<String>();
-      boolean isStop;
-      Set<String> levelStopWords = getStopWords(level);
 
       for (String word : input) {
          word = word.trim();
 
-         isStop = false;
-
-         if (word.length() > 2) {
-            for (int ndx = 0; ndx <= level; ndx++) {
-               if (levelStopWords.contains(word)) {
-                  isStop = true;
-                  break;
-               }
-            }
-
-            if (!isStop) {
-               rtn.add(word);
-            }
+         if (!isStopWord(word, level)) {
+            rtn.add(word);
          }
       }
 
@@ -208,11 +222,149 @@ public final class StopWordUtils {
       return rtn;
    }
 
+   /**
+    * Check a single word the same way removeStopWords() does,
+    *  without building a set of all the stopwords first.
+    * Words of length two or less are automatically considered stopwords.
+    */
+   public static boolean isStopWord(String word, int level) {
+      word = word.trim();
+      if (word.length() <= 2) {
+         return true;
+      }
+
+      StopWords table = getTable();
+      if (table.offHeap != null) {
+         return table.offHeap.isStopWord(word, 0, word.length(), level);
+      }
+
+      for (int ndx = 0; ndx <= level; ndx++) {
+         Set<String> levelWords = table.levels.get(ndx);
+         if (levelWords != null && levelWords.contains(word)) {
+            return true;
+         }
+      }
+
+      return false;
+   }
+
+   /**
+    * isStopWord() for the word text[start, end).
+    * When the stopwords are off the heap, no String is made.
+    */
+   public static boolean isStopWord(CharSequence text, int start, int end, int level) {
+      while (start < end && text.charAt(start) <= ' ') {
+         start++;
+      }
+
+      while (end > start && text.charAt(end - 1) <= ' ') {
+         end--;
+      }
+
+      if (end - start <= 2) {
+         return true;
+      }
+
+      OffHeapStopWords offHeapWords = getTable().offHeap;
+      if (offHeapWords != null) {
+         return offHeapWords.isStopWord(text, start, end, level);
+      }
+
+      return isStopWord(text.subSequence(start, end).toString(), level);
+   }
+
+   /**
+    * removeStopWords() for the words of a pure ASCII post that are still bytes
+    *  (see AsciiWords), in place. The words are trimmed the same way, and are
+    *  looked up straight from the bytes whether the stopwords are on the heap or off it.
+    */
+   static void removeStopWords(AsciiWords words, int level) {
+      StopWords table = getTable();
+      int numOut = 0;
+
+      for (int ndx = 0; ndx < words.size(); ndx++) {
+         int start = words.start(ndx);
+         int end = words.end(ndx);
+         while (start < end && words.chars[start] <= ' ') {
+            start++;
+         }
+         while (end > start && words.chars[end - 1] <= ' ') {
+            end--;
+         }
+
+         if (!table.isStopWord(words.chars, start, end, level)) {
+            words.setWord(numOut++, start, end);
+         }
+      }
+
+      words.truncate(numOut);
+   }
+
+   /**
+    * Move the stopwords into direct memory (or back onto the heap).
+    * The new table is built completely before it replaces the old one.
+    */
+   public static synchronized void setOffHeap(boolean offHeap) {
+      StopWords current = getTable();
+      if (offHeap == (current.offHeap != null)) {
+         return;
+      }
+
+      if (offHeap) {
+         stopwords = new StopWords(null, new OffHeapStopWords(current.levels));
+      } else {
+         stopwords = new StopWords(current.offHeap.toMap(), null);
+      }
+   }
+
+   public static boolean isOffHeap() {
+      StopWords current = stopwords;
+      return current != null && current.offHeap != null;
+   }
+
+   /**
+    * A digest of every stopword and its (lowest) level, see FilterRuntime.describe().
+    */
+   public static String getDigest() {
+      StopWords table = getTable();
+      Map<Integer, Set<String>> levels =
+       table.offHeap != null ? table.offHeap.toMap() : table.levels;
+
+      Map<String, Integer> lowest = new TreeMap<String, Integer>();
+      for (Map.Entry<Integer, Set<String>> entry : levels.entrySet()) {
+         for (String word : entry.getValue()) {
+            Integer level = lowest.get(word);
+            if (level == null || entry.getKey() < level) {
+               lowest.put(word, entry.getKey());
+            }
+         }
+      }
+
+      List<String> lines = new ArrayList<String>();
+      for (Map.Entry<String, Integer> entry : lowest.entrySet()) {
+         lines.add(entry.getKey() + "\t" + entry.getValue());
+      }
+
+      return FilterRuntime.digest(lines);
+   }
+
    public static Set<String> getStopWords(int maxLevel) {
       Set<String> stopWordsForLevel = new HashSet<String>();
 
+      StopWords table = getTable();
+      OffHeapStopWords offHeapWords = table.offHeap;
+      if (offHeapWords != null) {
+         for (int id = 0; id < offHeapWords.words.size(); id++) {
+            if (offHeapWords.levels.get(id) <= maxLevel) {
+               stopWordsForLevel.add(offHeapWords.words.get(id));
+            }
+         }
+
+         return stopWordsForLevel;
+      }
+
       for (int level = 0; level <= maxLevel; level++) {
-         Set<String> levelMap = stopwords.get(level);
+         Set<String> levelMap = table.levels.get(level);
 
          if (levelMap != null) {
             stopWordsForLevel.addAll(levelMap);
@@ -221,4 +373,121 @@ public final class StopWordUtils {
 
       return stopWordsForLevel;
    }
+
+   /**
+    * The stopwords either on the heap or off it (exactly one of the two is non-null).
+    * Each inner Set is just a presence HashMap representing a different stop level.
+    * Stopword levels decrease in importance from zero. (Zero is the most
+    *  important/frequent stopwords).
+    */
+   private static class StopWords {
+      public final Map<Integer, Set<String>> levels;
+      public final OffHeapStopWords offHeap;
+
+      /**
+       * The lowest level of each on heap stopword, for looking words up by their bytes.
+       */
+      private final WordTable<Integer> lowest;
+
+      public StopWords(Map<Integer, Set<String>> levels, OffHeapStopWords offHeap) {
+         if (levels != null) {
+            Map<Integer, Set<String>> copy = new HashMap<Integer, Set<String>>();
+            for (Map.Entry<Integer, Set<String>> entry : levels.entrySet()) {
+               copy.put(entry.getKey(), Collections.unmodifiableSet(entry.getValue()));
+            }
+            levels = Collections.unmodifiableMap(copy);
+         }
+
+         this.levels = levels;
+         this.offHeap = offHeap;
+
+         lowest = new WordTable<Integer>();
+         if (levels != null) {
+            for (Map.Entry<Integer, Set<String>> entry : levels.entrySet()) {
+               // Like isStopWord(String, int), negative levels never match.
+               if (entry.getKey() < 0) {
+                  continue;
+               }
+
+               for (String word : entry.getValue()) {
+                  Integer level = lowest.get(word);
+                  if (level == null || entry.getKey() < level) {
+                     lowest.put(word, entry.getKey());
+                  }
+               }
+            }
+         }
+      }
+
+      /**
+       * isStopWord() for the (already trimmed) ASCII word bytes[start, end).
+       */
+      public boolean isStopWord(byte[] bytes, int start, int end, int level) {
+         if (end - start <= 2) {
+            return true;
+         }
+
+         if (offHeap != null) {
+            return offHeap.isStopWord(bytes, start, end, level);
+         }
+
+         Integer wordLevel = lowest.get(bytes, start, end - start);
+         return wordLevel != null && wordLevel <= level;
+      }
+   }
+
+   /**
+    * All the stopwords in one table, with the lowest level each one is at.
+    */
+   private static class OffHeapStopWords {
+      public final OffHeapStringTable words;
+      public final ByteBuffer levels;
+
+      public OffHeapStopWords(Map<Integer, Set<String>> stopwords) {
+         words = new OffHeapStringTable();
+         for (Set<String> levelWords : stopwords.values()) {
+            for (String word : levelWords) {
+               words.add(word);
+            }
+         }
+
+         levels = ByteBuffer.allocateDirect(Math.max(1, words.size()));
+         for (int ndx = 0; ndx < words.size(); ndx++) {
+            levels.put(ndx, Byte.MAX_VALUE);
+         }
+
+         for (Map.Entry<Integer, Set<String>> entry : stopwords.entrySet()) {
+            byte level = (byte)Math.min(entry.getKey().intValue(), Byte.MAX_VALUE);
+            for (String word : entry.getValue()) {
+               int id = words.lookup(word);
+               if (level < levels.get(id)) {
+                  levels.put(id, level);
+               }
+            }
+         }
+      }
+
+      public boolean isStopWord(CharSequence text, int start, int end, int level) {
+         int id = words.lookup(text, start, end);
+         return id != -1 && levels.get(id) >= 0 && levels.get(id) <= level;
+      }
+
+      public boolean isStopWord(byte[] bytes, int start, int end, int level) {
+         int id = words.lookup(bytes, start, end);
+         return id != -1 && levels.get(id) >= 0 && levels.get(id) <= level;
+      }
+
+      public Map<Integer, Set<String>> toMap() {
+         Map<Integer, Set<String>> rtn = new HashMap<Integer, Set<String>>();
+         for (int id = 0; id < words.size(); id++) {
+            Integer level = Integer.valueOf(levels.get(id));
+            if (!rtn.containsKey(level)) {
+               rtn.put(level, new HashSet<String>());
+            }
+            rtn.get(level).add(words.get(id));
+         }
+
+         return rtn;
+      }
+   }
 }
@@ -0,0 +1,274 @@
+/*
+ * com.spoons.filter
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.filter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A SymSpell style index for finding the words in a vocabulary that are within a
+ *  small edit distance of a given word.
+ *
+ * Every vocabulary word is stored under every string that can be made by deleting
+ *  up to maxDistance characters from it.
+ * A lookup generates the deletes of the query word (there are only about
+ *  length^maxDistance of them) and checks them against the index, so the cost
+ *  does not depend on the size of the vocabulary.
+ * Candidates are then verified with the optimal string alignment distance
+ *  (Levenshtein plus adjacent transpositions, so "curz" is one edit from "cruz").
+ *
+ * Most words looked up are not near any vocabulary word, so lookups are gated:
+ *  words too short or too long to be near anything are skipped, and then the
+ *  hashes of the deletes are checked against a table of the hashes of all the
+ *  index's keys. Only if one of them is there are the deletes actually made.
+ */
+public class SymSpellIndex {
+   private int maxDistance;
+
+   /**
+    * Delete variant -> the vocabulary words that produce it.
+    */
+   private Map<String, List<String>> deletes;
+
+   /**
+    * The shortest and longest vocabulary words.
+    */
+   private int minLength;
+   private int maxLength;
+
+   /**
+    * The hashCode() of every key in deletes, open addressing with 0 as empty.
+    * A key that really hashes to 0 is stored as 1 (and looked up as 1).
+    */
+   private int[] keyHashes;
+
+   public SymSpellIndex(Collection<String> vocabulary, int maxDistance) {
+      if (maxDistance < 1) {
+         throw new IllegalArgumentException("maxDistance must be positive.");
+      }
+
+      this.maxDistance = maxDistance;
+      deletes = new HashMap<String, List<String>>();
+      minLength = Integer.MAX_VALUE;
+      maxLength = 0;
+
+      for (String word : vocabulary) {
+         minLength = Math.min(minLength, word.length());
+         maxLength = Math.max(maxLength, word.length());
+
+         Set<String> variants = new HashSet<String>();
+         variants.add(word);
+         addDeletes(word, maxDistance, variants);
+
+         for (String variant : variants) {
+            List<String> words = deletes.get(variant);
+            if (words == null) {
+               words = new ArrayList<String>(1);
+               deletes.put(variant, words);
+            }
+            words.add(word);
+         }
+      }
+
+      keyHashes = new int[Integer.highestOneBit(Math.max(1, deletes.size())) * 4];
+      for (String key : deletes.keySet()) {
+         int hash = nonZero(key.hashCode());
+         int slot = hash & (keyHashes.length - 1);
+         while (keyHashes[slot] != 0 && keyHashes[slot] != hash) {
+            slot = (slot + 1) & (keyHashes.length - 1);
+         }
+         keyHashes[slot] = hash;
+      }
+   }
+
+   public int getMaxDistance() {
+      return maxDistance;
+   }
+
+   /**
+    * Get all the vocabulary words within maxDistance edits of word
+    *  (including word itself if it is in the vocabulary).
+    *
+    * @return The matching words, an empty list if there are none.
+    */
+   public List<String> lookup(String word) {
+      if (!mayMatch(word)) {
+         return Collections.<String>emptyList();
+      }
+
+      List<String> rtn = new ArrayList<String>();
+      Set<String> variants = new HashSet<String>();
+      variants.add(word);
+      addDeletes(word, maxDistance, variants);
+
+      Set<String> seen = new HashSet<String>();
+      for (String variant : variants) {
+         List<String> candidates = deletes.get(variant);
+         if (candidates == null) {
+            continue;
+         }
+
+         for (String candidate : candidates) {
+            if (seen.add(candidate) && distance(word, candidate, maxDistance) <= maxDistance) {
+               rtn.add(candidate);
+            }
+         }
+      }
+
+      return rtn;
+   }
+
+   /**
+    * The cheap check before a lookup: false if no vocabulary word can be within
+    *  maxDistance of word. Allocates nothing.
+    */
+   public boolean mayMatch(String word) {
+      return mayMatch(word, 0, word.length());
+   }
+
+   /**
+    * mayMatch() for the word text[start, end).
+    */
+   public boolean mayMatch(CharSequence text, int start, int end) {
+      int length = end - start;
+      if (length + maxDistance < minLength || length - maxDistance > maxLength) {
+         return false;
+      }
+
+      return mayMatch(text, start, end, start, 0, 0);
+   }
+
+   /**
+    * Walk every way of deleting up to maxDistance chars from text[start, end) (the same
+    *  variants that addDeletes() makes), building up String.hashCode() of each
+    *  one, and check the hashes of the finished variants.
+    *
+    * @param ndx The next char to keep or delete.
+    * @param hash The hash of the chars kept so far.
+    * @param numDeleted The number of chars deleted so far.
+    */
+   private boolean mayMatch(CharSequence text, int start, int end, int ndx, int hash,
+                            int numDeleted) {
+      if (ndx == end) {
+         return hasKeyHash(hash);
+      }
+
+      if (mayMatch(text, start, end, ndx + 1, 31 * hash + text.charAt(ndx), numDeleted)) {
+         return true;
+      }
+
+      return numDeleted < maxDistance && end - start - numDeleted > 1 &&
+             mayMatch(text, start, end, ndx + 1, hash, numDeleted + 1);
+   }
+
+   private boolean hasKeyHash(int hash) {
+      hash = nonZero(hash);
+      int slot = hash & (keyHashes.length - 1);
+      while (keyHashes[slot] != 0) {
+         if (keyHashes[slot] == hash) {
+            return true;
+         }
+         slot = (slot + 1) & (keyHashes.length - 1);
+      }
+
+      return false;
+   }
+
+   private static int nonZero(int hash) {
+      return hash == 0 ? 1 : hash;
+   }
+
+   /**
+    * Add every string that can be made by deleting up to depth characters from word.
+    */
+   private static void addDeletes(String word, int depth, Set<String> variants) {
+      if (depth == 0 || word.length() <= 1) {
+         return;
+      }
+
+      for (int ndx = 0; ndx < word.length(); ndx++) {
+         String variant = word.substring(0, ndx) + word.substring(ndx + 1);
+         if (variants.add(variant)) {
+            addDeletes(variant, depth - 1, variants);
+         }
+      }
+   }
+
+   /**
+    * The optimal string alignment distance between a and b.
+    * Gives up early and returns max + 1 once the distance is known to be over max.
+    */
+   public static int distance(String a, String b, int max) {
+      if (Math.abs(a.length() - b.length()) > max) {
+         return max + 1;
+      }
+
+      int[] prevPrev = new int[b.length() + 1];
+      int[] prev = new int[b.length() + 1];
+      int[] current = new int[b.length() + 1];
+
+      for (int j = 0; j <= b.length(); j++) {
+         prev[j] = j;
+      }
+
+      for (int i = 1; i <= a.length(); i++) {
+         current[0] = i;
+         int rowMin = current[0];
+
+         for (int j = 1; j <= b.length(); j++) {
+            int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+            current[j] = Math.min(Math.min(prev[j] + 1, current[j - 1] + 1), prev[j - 1] + cost);
+
+            if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) &&
+                a.charAt(i - 2) == b.charAt(j - 1)) {
+               current[j] = Math.min(current[j], prevPrev[j - 2] + 1);
+            }
+
+            rowMin = Math.min(rowMin, current[j]);
+         }
+
+         if (rowMin > max) {
+            return max + 1;
+         }
+
+         int[] temp = prevPrev;
+         prevPrev = prev;
+         prev = current;
+         current = temp;
+      }
+
+      return prev[b.length()];
+   }
+}
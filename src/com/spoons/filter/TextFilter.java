@@ -28,8 +28,12 @@
  */
 package com.spoons.filter;
 
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.zip.CRC32;
 
 /**
  * Interface for a text filter.
@@ -37,6 +41,23 @@ import java.util.List;
  *  filtered.
  */
 public abstract class TextFilter {
+   /**
+    * Get a new filter by its short name: "none", "basic", or "eriq".
+    *
+    * @return The filter, or null if there is no filter with that name.
+    */
+   public static TextFilter forName(String name) {
+      if ("none".equals(name)) {
+         return new NoFilter();
+      } else if ("basic".equals(name)) {
+         return new BasicFilter();
+      } else if ("eriq".equals(name)) {
+         return new EriqFilter();
+      }
+
+      return null;
+   }
+
    /**
     * Filter a string.
     */
@@ -57,6 +78,34 @@ public abstract class TextFilter {
     */
    public abstract String[] splitFilter(String input);
 
+   /**
+    * splitFilter() for a line of pure ASCII bytes, leaving the words as slices
+    *  of bytes in words instead of making Strings (see Utf8LineFilter).
+    * By default no line can be done this way.
+    *
+    * @return false if the line has to go through splitFilter() after all
+    *  (words is then in no useful state).
+    */
+   boolean splitFilterAscii(byte[] bytes, int offset, int length, AsciiWords words) {
+      return false;
+   }
+
+   /**
+    * Filter and split a string, and give back the IDs of the words instead of the words.
+    */
+   public int[] splitFilterIds(String input, Vocabulary vocabulary) {
+      return vocabulary.encode(splitFilter(input));
+   }
+
+   /**
+    * Filter and split a string, and put the IDs of the words into out.
+    *
+    * @return The number of IDs put into out.
+    */
+   public int splitFilterIds(String input, Vocabulary vocabulary, IntBuffer out) {
+      return vocabulary.encode(splitFilter(input), out);
+   }
+
    /**
     * Filter many strings.
     */
@@ -80,6 +129,62 @@ public abstract class TextFilter {
       return rtn;
    }
 
+   /**
+    * Get a Flow.Processor that filters posts into Strings (like filter()).
+    * See FilterProcessor for details on back-pressure and ordering.
+    *
+    * @param parallelism The number of threads to filter on.
+    * @param ordered Whether to emit results in the same order that the posts arrived.
+    * @param bufferSize The most posts that will be in flight or waiting for downstream.
+    */
+   public Flow.Processor<String, String> processor(int parallelism, boolean ordered,
+                                                   int bufferSize) {
+      return new FilterProcessor<String>(parallelism, ordered, bufferSize) {
+         protected String apply(String post) {
+            return filter(post);
+         }
+      };
+   }
+
+   /**
+    * Get a Flow.Processor that filters posts into words (like splitFilter()).
+    */
+   public Flow.Processor<String, String[]> splitProcessor(int parallelism, boolean ordered,
+                                                          int bufferSize) {
+      return new FilterProcessor<String[]>(parallelism, ordered, bufferSize) {
+         protected String[] apply(String post) {
+            return splitFilter(post);
+         }
+      };
+   }
+
+   /**
+    * Whether what this filter gives for a post depends on the posts it was given
+    *  before (see FilterChain.Builder.nearDuplicates()).
+    * That state is not part of fingerprint(), so the output of a stateful filter
+    *  cannot be resumed or split up between processes.
+    */
+   public boolean isStateful() {
+      return false;
+   }
+
+   /**
+    * A short hash that identifies this filter and its configuration, along with
+    *  the global modes and resources (locations, stopwords, emoticons) that
+    *  every filter shares (see FilterRuntime.describe()).
+    * Anything written by one filter should only be resumed or read
+    *  by a filter with the same fingerprint.
+    * The resources are read each time, so keep the result instead of calling
+    *  this per post.
+    */
+   public String fingerprint() {
+      CRC32 crc = new CRC32();
+      crc.update(toString().getBytes(StandardCharsets.UTF_8));
+      crc.update(FilterRuntime.describe().getBytes(StandardCharsets.UTF_8));
+
+      return String.format("%08x", crc.getValue());
+   }
+
    public String toString() {
       return this.getClass().getCanonicalName();
    }
@@ -0,0 +1,195 @@
+/*
+ * com.spoons.filter
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.filter;
+
+/**
+ * A single cheap pass over a post that records which of the characters the
+ *  link regex and the emoticon automata key off of are present.
+ * A filter scans once and then skips MiscFilters.replaceLinks() and
+ *  EmoticonParser.parse() when the mask says they cannot match.
+ *
+ * Every link alternative in MiscFilters needs a '.' followed by something other
+ *  than whitespace, so DOT is only set for one of those (not for the end of a sentence).
+ * Every emoticon in the bundled dictionary needs eyes (':', ';', '=', '8'),
+ *  a '<' or '>', or a '^'. A dictionary loaded from a file could have anything,
+ *  so the emoticons are never skipped for one.
+ */
+public class TriggerMask {
+   public static final int DOT = 1 << 0;
+   public static final int COLON = 1 << 1;
+   public static final int SEMICOLON = 1 << 2;
+   public static final int EQUALS = 1 << 3;
+   public static final int EIGHT = 1 << 4;
+   public static final int LESS_THAN = 1 << 5;
+   public static final int GREATER_THAN = 1 << 6;
+   public static final int CARET = 1 << 7;
+
+   public static final int LINK_TRIGGERS = DOT;
+   public static final int EMOTE_TRIGGERS =
+      COLON | SEMICOLON | EQUALS | EIGHT | LESS_THAN | GREATER_THAN | CARET;
+
+   /**
+    * The trigger bit for every ASCII character (0 for most).
+    * None of the triggers are outside of ASCII.
+    */
+   private static final int[] BITS = new int[128];
+
+   static {
+      BITS['.'] = DOT;
+      BITS[':'] = COLON;
+      BITS[';'] = SEMICOLON;
+      BITS['='] = EQUALS;
+      BITS['8'] = EIGHT;
+      BITS['<'] = LESS_THAN;
+      BITS['>'] = GREATER_THAN;
+      BITS['^'] = CARET;
+   }
+
+   /**
+    * Private to promote static behavior.
+    */
+   private TriggerMask() {
+   }
+
+   /**
+    * Get the mask of all the trigger characters in the text.
+    */
+   public static int scan(String text) {
+      int rtn = 0;
+
+      for (int ndx = 0; ndx < text.length(); ndx++) {
+         char character = text.charAt(ndx);
+         if (character < 128) {
+            rtn |= BITS[character];
+         }
+      }
+
+      if ((rtn & DOT) != 0 && !hasLinkDot(text)) {
+         rtn &= ~DOT;
+      }
+
+      return rtn;
+   }
+
+   /**
+    * scan() for the ASCII (or UTF-8) bytes[offset, offset + length).
+    */
+   public static int scan(byte[] bytes, int offset, int length) {
+      int rtn = 0;
+      boolean linkDot = false;
+
+      for (int ndx = offset; ndx < offset + length; ndx++) {
+         byte character = bytes[ndx];
+         if (character >= 0) {
+            rtn |= BITS[character];
+
+            if (character == '.' && ndx + 1 < offset + length &&
+                !isRegexWhitespace((char)(bytes[ndx + 1] & 0xFF))) {
+               linkDot = true;
+            }
+         }
+      }
+
+      return linkDot ? rtn : rtn & ~DOT;
+   }
+
+   /**
+    * If there is a '.' with something other than whitespace (\S in the link regex) after it.
+    */
+   private static boolean hasLinkDot(String text) {
+      for (int ndx = text.indexOf('.'); ndx != -1 && ndx + 1 < text.length();
+           ndx = text.indexOf('.', ndx + 1)) {
+         if (!isRegexWhitespace(text.charAt(ndx + 1))) {
+            return true;
+         }
+      }
+
+      return false;
+   }
+
+   /**
+    * \s in a regex (without UNICODE_CHARACTER_CLASS).
+    */
+   private static boolean isRegexWhitespace(char character) {
+      return character == ' ' || character == '\t' || character == '\n' ||
+             character == 0x0B || character == '\f' || character == '\r';
+   }
+
+   public static boolean mayHaveLinks(int mask) {
+      return (mask & LINK_TRIGGERS) != 0;
+   }
+
+   public static boolean mayHaveEmotes(int mask) {
+      return (mask & EMOTE_TRIGGERS) != 0;
+   }
+
+   /**
+    * If the parser may find an emoticon in text with this mask.
+    * Always true unless the parser uses the bundled dictionary.
+    */
+   public static boolean mayHaveEmotes(int mask, EmoticonParser emote) {
+      return !emote.isBundledDictionary() || mayHaveEmotes(mask);
+   }
+
+   /**
+    * MiscFilters.replaceLinks(), but only if the mask says there may be a link.
+    */
+   public static String replaceLinks(String input, String replacement, int mask) {
+      if (!mayHaveLinks(mask)) {
+         return input;
+      }
+
+      return MiscFilters.replaceLinks(input, replacement);
+   }
+
+   /**
+    * Replace the links and then the emoticons, skipping either one when the text
+    *  has none of its trigger characters.
+    * The text is rescanned only if a link was actually replaced, since the
+    *  replacement may bring in new triggers.
+    */
+   public static String replaceLinksAndEmotes(String input, String linkReplacement,
+                                              EmoticonParser emote) {
+      int mask = scan(input);
+
+      if (mayHaveLinks(mask)) {
+         String replaced = MiscFilters.replaceLinks(input, linkReplacement);
+         if (!replaced.equals(input)) {
+            mask = scan(replaced);
+         }
+         input = replaced;
+      }
+
+      if (mayHaveEmotes(mask, emote)) {
+         input = emote.parse(input);
+      }
+
+      return input;
+   }
+}
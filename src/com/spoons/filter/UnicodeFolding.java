@@ -0,0 +1,160 @@
+/*
+ * com.spoons.filter
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.filter;
+
+import java.text.Normalizer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Case and diacritic folding for the non-ASCII characters in a post:
+ *  NFKD, then drop the non-spacing and enclosing marks, then lower case.
+ *  Spacing marks (Mc) are kept as letters.
+ *  So "Jos\u00E9" -> "jose", "Ca\u00F1on" -> "canon", and the "fi" ligature -> "fi".
+ *
+ * Normalizing is slow, so the result for every BMP character is worked out once
+ *  (the first time folding is used) and kept in a table.
+ * ASCII is never looked up, the callers handle it themselves.
+ */
+public class UnicodeFolding {
+   /**
+    * fold() result: the character is not a letter, it ends the word.
+    */
+   public static final String NOT_LETTER = null;
+
+   /**
+    * fold() result: the character is only a combining mark, skip it but stay in the word.
+    */
+   public static final String DROP = "";
+
+   /**
+    * Private to promote static behavior.
+    */
+   private UnicodeFolding() {
+   }
+
+   /**
+    * Build the tables now instead of on first use. See FilterRuntime.
+    */
+   public static void init() {
+      fold('\u00E9');
+   }
+
+   /**
+    * Fold a single (lower cased or not) non-ASCII character.
+    *
+    * @return The folded letters, DROP, or NOT_LETTER.
+    */
+   public static String fold(char character) {
+      return Tables.FOLDED[character];
+   }
+
+   /**
+    * Fold a whole string the way SmartSplitString does in Unicode mode,
+    *  keeping everything that is not a letter as is.
+    */
+   public static String foldString(String text) {
+      StringBuilder rtn = null;
+
+      for (int ndx = 0; ndx < text.length(); ndx++) {
+         char character = text.charAt(ndx);
+         if (character < 0x80) {
+            if (rtn != null) {
+               rtn.append(character);
+            }
+            continue;
+         }
+
+         if (rtn == null) {
+            rtn = new StringBuilder(text.length());
+            rtn.append(text, 0, ndx);
+         }
+
+         String folded = fold(character);
+         rtn.append(folded == NOT_LETTER ? String.valueOf(character) : folded);
+      }
+
+      return rtn == null ? text : rtn.toString();
+   }
+
+   /**
+    * Built the first time folding is used (class loading is lazy).
+    */
+   private static class Tables {
+      public static final String[] FOLDED = build();
+
+      private static String[] build() {
+         long start = System.nanoTime();
+         String[] rtn = new String[0x10000];
+         // Reuse the Strings, most characters fold to one of a few thousand.
+         Map<String, String> interned = new HashMap<String, String>();
+
+         for (int character = 0x80; character < 0x10000; character++) {
+            if (Character.isSurrogate((char)character)) {
+               continue;
+            }
+
+            String decomposed = Normalizer.normalize(String.valueOf((char)character),
+                                                     Normalizer.Form.NFKD);
+
+            StringBuilder letters = new StringBuilder();
+            boolean onlyMarks = true;
+            for (int ndx = 0; ndx < decomposed.length(); ndx++) {
+               char part = decomposed.charAt(ndx);
+               int type = Character.getType(part);
+
+               if (type == Character.NON_SPACING_MARK || type == Character.ENCLOSING_MARK) {
+                  continue;
+               }
+
+               onlyMarks = false;
+               // Spacing marks (mostly the vowel signs of Indic scripts) are part of the word.
+               if (Character.isLetter(part) || type == Character.COMBINING_SPACING_MARK) {
+                  letters.append(Character.toLowerCase(part));
+               }
+            }
+
+            if (onlyMarks) {
+               rtn[character] = DROP;
+            } else if (letters.length() > 0) {
+               String folded = letters.toString();
+               String existing = interned.get(folded);
+               if (existing == null) {
+                  interned.put(folded, folded);
+                  existing = folded;
+               }
+               rtn[character] = existing;
+            }
+         }
+
+         FilterRuntime.recordLoad(FilterRuntime.UNICODE_FOLDING, System.nanoTime() - start);
+         return rtn;
+      }
+   }
+}
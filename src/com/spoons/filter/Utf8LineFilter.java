@@ -0,0 +1,336 @@
+/*
+ * com.spoons.filter
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.filter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Runs a TextFilter over newline separated UTF-8 input and writes UTF-8 output
+ *  without going through a Scanner or a Writer.
+ *
+ * Lines are found directly in the input bytes.
+ * Pure ASCII lines are first offered to the filter as bytes (see
+ *  TextFilter.splitFilterAscii()). The filters that can (NoFilter, BasicFilter,
+ *  EriqFilter) split, replace locations and remove stop words right on the
+ *  bytes, and the words are copied from there to the output, so the line never
+ *  becomes a String. Lines that need the link regex or the emoticon automata
+ *  (which only work on Strings) are turned down by the filter.
+ * Every other line is decoded into one String and run through splitFilter().
+ *  Pure ASCII ones become Latin-1 Strings, which is just a copy of the bytes
+ *  and never inflates to a char[].
+ * Filtered words are encoded straight into an output byte buffer instead of being
+ *  joined into a new String first (which is what TextFilter.filter() does).
+ *
+ * Not thread safe, use one per thread.
+ */
+public class Utf8LineFilter {
+   private static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+   /**
+    * The filter to run over every line.
+    */
+   private TextFilter filter;
+
+   /**
+    * The encoded output that has not been written yet.
+    */
+   private byte[] outBuffer;
+   private int outLength;
+
+   /**
+    * The words of the current line when it is filtered as bytes.
+    */
+   private AsciiWords asciiWords;
+
+   public Utf8LineFilter(TextFilter filter) {
+      this.filter = filter;
+      outBuffer = new byte[DEFAULT_BUFFER_SIZE];
+      outLength = 0;
+      asciiWords = new AsciiWords();
+   }
+
+   /**
+    * Filter every line in input and write the results to output.
+    * Lines end the same places a Scanner ends them: "\r\n", "\n", "\r",
+    *  "\u0085", "\u2028" or "\u2029". Output lines always end in "\n".
+    * The output is flushed, but not closed.
+    *
+    * @return The number of lines filtered.
+    */
+   public long filter(InputStream input, OutputStream output) throws IOException {
+      return filter(input, output, null);
+   }
+
+   /**
+    * Like filter(InputStream, OutputStream), but tell listener about every line
+    *  that gets filtered.
+    *
+    * @param listener Told about every line, may be null.
+    */
+   public long filter(InputStream input, OutputStream output, LineListener listener)
+    throws IOException {
+      byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+      int start = 0;
+      int end = 0;
+      long lines = 0;
+      // The input offset of buffer[0].
+      long bufferOffset = 0;
+
+      boolean done = false;
+
+      while (!done) {
+         int read = input.read(buffer, end, buffer.length - end);
+         if (read < 0) {
+            done = true;
+         } else {
+            end += read;
+         }
+
+         int lineEnd;
+         while ((lineEnd = lineEnd(buffer, start, end, done)) != -1) {
+            filterLine(buffer, start, lineEnd - start, output);
+            lines++;
+            start = lineEnd + terminatorLength(buffer, lineEnd, end);
+
+            if (listener != null) {
+               listener.lineFiltered(lines, bufferOffset + start);
+            }
+         }
+
+         if (done) {
+            break;
+         }
+
+         // Make room for the rest of the partial line.
+         if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            bufferOffset += start;
+            end -= start;
+            start = 0;
+         } else if (end == buffer.length) {
+            byte[] bigger = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, bigger, 0, end);
+            buffer = bigger;
+         }
+      }
+
+      // The last line does not need a terminator.
+      if (end > start) {
+         filterLine(buffer, start, end - start, output);
+         lines++;
+
+         if (listener != null) {
+            listener.lineFiltered(lines, bufferOffset + end);
+         }
+      }
+
+      flush(output);
+      output.flush();
+
+      return lines;
+   }
+
+   /**
+    * Filter a single line (without its newline) held in a ByteBuffer.
+    * The buffer's position is not changed.
+    */
+   public void filterLine(ByteBuffer line, OutputStream output) throws IOException {
+      if (line.hasArray()) {
+         filterLine(line.array(), line.arrayOffset() + line.position(), line.remaining(), output);
+      } else {
+         byte[] bytes = new byte[line.remaining()];
+         line.duplicate().get(bytes);
+         filterLine(bytes, 0, bytes.length, output);
+      }
+   }
+
+   /**
+    * Filter a single line (without its newline) and write it, and a newline, to output.
+    * The output may be buffered until filter() finishes or flush() is called.
+    */
+   public void filterLine(byte[] bytes, int offset, int length, OutputStream output)
+    throws IOException {
+      if (length > 0 && bytes[offset + length - 1] == '\r') {
+         length--;
+      }
+
+      String line;
+      if (AsciiSplitString.isAscii(bytes, offset, length)) {
+         if (filter.splitFilterAscii(bytes, offset, length, asciiWords)) {
+            putWords(asciiWords, output);
+            return;
+         }
+
+         line = new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+      } else {
+         line = new String(bytes, offset, length, StandardCharsets.UTF_8);
+      }
+
+      String[] words = filter.splitFilter(line);
+      for (int ndx = 0; ndx < words.length; ndx++) {
+         if (ndx > 0) {
+            put((byte)' ', output);
+         }
+         putWord(words[ndx], output);
+      }
+      put((byte)'\n', output);
+   }
+
+   /**
+    * Write out any buffered output.
+    */
+   public void flush(OutputStream output) throws IOException {
+      output.write(outBuffer, 0, outLength);
+      outLength = 0;
+   }
+
+   /**
+    * Copy the words (already UTF-8) into the output buffer, followed by a newline.
+    */
+   private void putWords(AsciiWords words, OutputStream output) throws IOException {
+      for (int ndx = 0; ndx < words.size(); ndx++) {
+         if (ndx > 0) {
+            put((byte)' ', output);
+         }
+
+         int start = words.start(ndx);
+         int length = words.end(ndx) - start;
+         if (outLength + length > outBuffer.length) {
+            flush(output);
+         }
+
+         if (length > outBuffer.length) {
+            output.write(words.chars, start, length);
+         } else {
+            System.arraycopy(words.chars, start, outBuffer, outLength, length);
+            outLength += length;
+         }
+      }
+      put((byte)'\n', output);
+   }
+
+   /**
+    * Encode a word as UTF-8 into the output buffer.
+    */
+   private void putWord(String word, OutputStream output) throws IOException {
+      for (int ndx = 0; ndx < word.length(); ndx++) {
+         char character = word.charAt(ndx);
+
+         if (character < 0x80) {
+            put((byte)character, output);
+         } else if (character < 0x800) {
+            put((byte)(0xC0 | (character >> 6)), output);
+            put((byte)(0x80 | (character & 0x3F)), output);
+         } else if (Character.isHighSurrogate(character) && ndx + 1 < word.length() &&
+                    Character.isLowSurrogate(word.charAt(ndx + 1))) {
+            int codePoint = Character.toCodePoint(character, word.charAt(++ndx));
+            put((byte)(0xF0 | (codePoint >> 18)), output);
+            put((byte)(0x80 | ((codePoint >> 12) & 0x3F)), output);
+            put((byte)(0x80 | ((codePoint >> 6) & 0x3F)), output);
+            put((byte)(0x80 | (codePoint & 0x3F)), output);
+         } else if (Character.isSurrogate(character)) {
+            // Same replacement that String.getBytes() uses.
+            put((byte)'?', output);
+         } else {
+            put((byte)(0xE0 | (character >> 12)), output);
+            put((byte)(0x80 | ((character >> 6) & 0x3F)), output);
+            put((byte)(0x80 | (character & 0x3F)), output);
+         }
+      }
+   }
+
+   private void put(byte value, OutputStream output) throws IOException {
+      if (outLength == outBuffer.length) {
+         flush(output);
+      }
+
+      outBuffer[outLength++] = value;
+   }
+
+   /**
+    * Gets told every time a line has been filtered.
+    */
+   public interface LineListener {
+      /**
+       * @param lines The number of lines filtered so far.
+       * @param inputOffset The number of input bytes consumed so far
+       *  (including the line's newline).
+       */
+      public void lineFiltered(long lines, long inputOffset) throws IOException;
+   }
+
+   /**
+    * Find the start of the first line terminator in bytes[start, end).
+    * A '\r' at the very end is not reported until done, since it may be the
+    *  start of a "\r\n".
+    *
+    * @param done If there are no more bytes coming after end.
+    * @return The index of the terminator, or -1 if there is not a whole one.
+    */
+   private static int lineEnd(byte[] bytes, int start, int end, boolean done) {
+      for (int ndx = start; ndx < end; ndx++) {
+         byte value = bytes[ndx];
+
+         if (value == '\n') {
+            return ndx;
+         } else if (value == '\r') {
+            return ndx + 1 < end || done ? ndx : -1;
+         } else if (terminatorLength(bytes, ndx, end) > 0) {
+            return ndx;
+         }
+      }
+
+      return -1;
+   }
+
+   /**
+    * The length of the line terminator at bytes[ndx], 0 if there isn't one.
+    * The multi-byte ones are U+0085 (C2 85), U+2028 (E2 80 A8)
+    *  and U+2029 (E2 80 A9).
+    */
+   private static int terminatorLength(byte[] bytes, int ndx, int end) {
+      switch (bytes[ndx]) {
+         case '\n':
+            return 1;
+         case '\r':
+            return ndx + 1 < end && bytes[ndx + 1] == '\n' ? 2 : 1;
+         case (byte)0xC2:
+            return ndx + 1 < end && bytes[ndx + 1] == (byte)0x85 ? 2 : 0;
+         case (byte)0xE2:
+            return ndx + 2 < end && bytes[ndx + 1] == (byte)0x80 &&
+                   (bytes[ndx + 2] == (byte)0xA8 || bytes[ndx + 2] == (byte)0xA9) ? 3 : 0;
+         default:
+            return 0;
+      }
+   }
+}
@@ -0,0 +1,243 @@
+/*
+ * com.spoons.filter
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.filter;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps words to int IDs so that filtered posts can be kept as int[] instead of
+ *  String[] (see TextFilter.splitFilterIds()).
+ *
+ * The vocabulary grows as new words are seen, and it is safe to share between
+ *  all the threads that are filtering.
+ * IDs are handed out in order starting at zero, and the meta words that the
+ *  filters produce (links, locations, emotes, ...) always get the same, reserved,
+ *  IDs at the start so that they mean the same thing in every vocabulary.
+ *
+ * A vocabulary can also be kept off the heap (see OffHeapStringTable), for when
+ *  it gets big enough to matter to the GC. Then words can also be looked up
+ *  by slices of text, without making a String.
+ */
+public class Vocabulary {
+   /**
+    * The meta words that get reserved IDs, in ID order.
+    * Only ever add to the end, so that the IDs in old corpora stay the same.
+    */
+   public static final String[] RESERVED = {
+      "<$link$>",
+      "<$location$>",
+      "<$RT$>",
+      "<$#$>",
+      "<$@$>",
+      "<$emote:smile$>",
+      "<$emote:angry$>",
+      "<$emote:frown$>",
+      "<$emote:wink$>",
+      "<$emote:slant$>",
+      "<$emote:heart$>",
+      "<$emote:shifty$>",
+      "<$emote:happy$>",
+      "<$emote:doh$>",
+      // The emoji names that are not also emoticon names, see EmojiTable.
+      "<$emote:laugh$>",
+      "<$emote:thumbsup$>",
+      "<$emote:thumbsdown$>",
+      "<$emote:flag$>",
+      "<$emote:emoji$>"
+   };
+
+   public static final int LINK_ID = 0;
+   public static final int LOCATION_ID = 1;
+
+   private final ConcurrentHashMap<String, Integer> ids;
+
+   /**
+    * Used instead of ids and words when the vocabulary is off the heap.
+    */
+   private final OffHeapStringTable table;
+
+   /**
+    * The words by ID.
+    * Only grows (under the lock), and is swapped out when it gets full.
+    */
+   private volatile String[] words;
+   private volatile int size;
+
+   public Vocabulary() {
+      this(false);
+   }
+
+   public Vocabulary(boolean offHeap) {
+      if (offHeap) {
+         ids = null;
+         words = null;
+         table = new OffHeapStringTable();
+      } else {
+         ids = new ConcurrentHashMap<String, Integer>();
+         words = new String[1024];
+         table = null;
+      }
+      size = 0;
+
+      for (String word : RESERVED) {
+         getId(word);
+      }
+   }
+
+   /**
+    * Get the ID of a word, giving it a new one if it has never been seen.
+    */
+   public int getId(String word) {
+      if (table != null) {
+         int rtn = table.lookup(word);
+         return rtn != -1 ? rtn : table.add(word);
+      }
+
+      Integer id = ids.get(word);
+      if (id != null) {
+         return id.intValue();
+      }
+
+      synchronized (this) {
+         id = ids.get(word);
+         if (id != null) {
+            return id.intValue();
+         }
+
+         String[] currentWords = words;
+         if (size == currentWords.length) {
+            currentWords = Arrays.copyOf(currentWords, size * 2);
+         }
+         currentWords[size] = word;
+         words = currentWords;
+
+         id = Integer.valueOf(size);
+         size++;
+         ids.put(word, id);
+
+         return id.intValue();
+      }
+   }
+
+   /**
+    * Get the ID of a word without adding it.
+    *
+    * @return The ID, or -1 if the word has never been seen.
+    */
+   public int lookup(String word) {
+      if (table != null) {
+         return table.lookup(word);
+      }
+
+      Integer id = ids.get(word);
+      return id == null ? -1 : id.intValue();
+   }
+
+   /**
+    * Get the ID of the word text[start, end) without adding it.
+    * Only an off heap vocabulary can do this without making a String.
+    *
+    * @return The ID, or -1 if the word has never been seen.
+    */
+   public int lookup(CharSequence text, int start, int end) {
+      if (table != null) {
+         return table.lookup(text, start, end);
+      }
+
+      return lookup(text.subSequence(start, end).toString());
+   }
+
+   public boolean isOffHeap() {
+      return table != null;
+   }
+
+   /**
+    * Get the word for an ID.
+    */
+   public String getWord(int id) {
+      if (table != null) {
+         return table.get(id);
+      }
+
+      if (id < 0 || id >= size) {
+         throw new IndexOutOfBoundsException("Unknown ID: " + id);
+      }
+
+      return words[id];
+   }
+
+   public int size() {
+      if (table != null) {
+         return table.size();
+      }
+
+      return size;
+   }
+
+   /**
+    * Get the IDs for all of the words.
+    */
+   public int[] encode(String[] words) {
+      int[] rtn = new int[words.length];
+      for (int ndx = 0; ndx < words.length; ndx++) {
+         rtn[ndx] = getId(words[ndx]);
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Put the IDs for all of the words into out.
+    *
+    * @return The number of IDs put into out.
+    *
+    * @throws java.nio.BufferOverflowException If out does not have room for all the words.
+    */
+   public int encode(String[] words, IntBuffer out) {
+      for (String word : words) {
+         out.put(getId(word));
+      }
+
+      return words.length;
+   }
+
+   /**
+    * Turn IDs back into words.
+    */
+   public String[] decode(int[] ids) {
+      String[] rtn = new String[ids.length];
+      for (int ndx = 0; ndx < ids.length; ndx++) {
+         rtn[ndx] = getWord(ids[ndx]);
+      }
+
+      return rtn;
+   }
+}
@@ -0,0 +1,210 @@
+/*
+ * com.spoons.filter
+ *
+ * Copyright (c) 2012-2019 Eriq Augustine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.spoons.filter;
+
+/**
+ * A map from words to values that can be looked up with a slice of a char[] (or
+ *  of ASCII bytes), so that EntityMatcher can look up the words of a post
+ *  without making Strings.
+ *
+ * Open addressed with linear probing, like OffHeapStringTable, but on the heap:
+ *  keys[slot] is the word, hashes[slot] its String.hashCode(), and values[slot]
+ *  the value. A null key is an empty slot.
+ * Tables start with room for just one word, since most of EntityMatcher's
+ *  tables (the words after a word) only ever get one or two.
+ *
+ * Not thread safe for put(), but any number of threads can get() once the puts
+ *  are done (and the table has been safely published).
+ */
+class WordTable<V> {
+   /**
+    * The table is kept at most half full, so this holds one word.
+    */
+   private static final int INITIAL_CAPACITY = 2;
+
+   private String[] keys;
+   private int[] hashes;
+   private Object[] values;
+   private int mask;
+   private int size;
+
+   public WordTable() {
+      keys = new String[INITIAL_CAPACITY];
+      hashes = new int[INITIAL_CAPACITY];
+      values = new Object[INITIAL_CAPACITY];
+      mask = INITIAL_CAPACITY - 1;
+      size = 0;
+   }
+
+   public int size() {
+      return size;
+   }
+
+   /**
+    * Set the value of a word, replacing any old one.
+    */
+   public void put(String word, V value) {
+      // Keep the table at most half full.
+      if ((size + 1) * 2 > keys.length) {
+         grow();
+      }
+
+      int hash = word.hashCode();
+      for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+         if (keys[slot] == null) {
+            keys[slot] = word;
+            hashes[slot] = hash;
+            values[slot] = value;
+            size++;
+            return;
+         }
+
+         if (hashes[slot] == hash && keys[slot].equals(word)) {
+            values[slot] = value;
+            return;
+         }
+      }
+   }
+
+   /**
+    * @return The value of the word, or null if it is not in the table.
+    */
+   public V get(String word) {
+      int hash = word.hashCode();
+      for (int slot = mix(hash) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+         if (hashes[slot] == hash && keys[slot].equals(word)) {
+            return value(slot);
+         }
+      }
+
+      return null;
+   }
+
+   /**
+    * Get the value of the word in chars[offset, offset + length).
+    */
+   public V get(char[] chars, int offset, int length) {
+      int hash = 0;
+      for (int ndx = offset; ndx < offset + length; ndx++) {
+         hash = 31 * hash + chars[ndx];
+      }
+
+      for (int slot = mix(hash) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+         if (hashes[slot] == hash && matches(keys[slot], chars, offset, length)) {
+            return value(slot);
+         }
+      }
+
+      return null;
+   }
+
+   /**
+    * Get the value of the ASCII (or ISO-8859-1) word in bytes[offset, offset + length).
+    */
+   public V get(byte[] bytes, int offset, int length) {
+      int hash = 0;
+      for (int ndx = offset; ndx < offset + length; ndx++) {
+         hash = 31 * hash + (bytes[ndx] & 0xFF);
+      }
+
+      for (int slot = mix(hash) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+         if (hashes[slot] == hash && matches(keys[slot], bytes, offset, length)) {
+            return value(slot);
+         }
+      }
+
+      return null;
+   }
+
+   @SuppressWarnings("unchecked")
+   private V value(int slot) {
+      return (V)values[slot];
+   }
+
+   private void grow() {
+      String[] oldKeys = keys;
+      int[] oldHashes = hashes;
+      Object[] oldValues = values;
+
+      keys = new String[oldKeys.length * 2];
+      hashes = new int[oldKeys.length * 2];
+      values = new Object[oldKeys.length * 2];
+      mask = keys.length - 1;
+
+      for (int ndx = 0; ndx < oldKeys.length; ndx++) {
+         if (oldKeys[ndx] == null) {
+            continue;
+         }
+
+         int slot = mix(oldHashes[ndx]) & mask;
+         while (keys[slot] != null) {
+            slot = (slot + 1) & mask;
+         }
+         keys[slot] = oldKeys[ndx];
+         hashes[slot] = oldHashes[ndx];
+         values[slot] = oldValues[ndx];
+      }
+   }
+
+   private static boolean matches(String word, char[] chars, int offset, int length) {
+      if (word.length() != length) {
+         return false;
+      }
+
+      for (int ndx = 0; ndx < length; ndx++) {
+         if (word.charAt(ndx) != chars[offset + ndx]) {
+            return false;
+         }
+      }
+
+      return true;
+   }
+
+   private static boolean matches(String word, byte[] bytes, int offset, int length) {
+      if (word.length() != length) {
+         return false;
+      }
+
+      for (int ndx = 0; ndx < length; ndx++) {
+         if (word.charAt(ndx) != (bytes[offset + ndx] & 0xFF)) {
+            return false;
+         }
+      }
+
+      return true;
+   }
+
+   /**
+    * Spread out the hash bits, String.hashCode() is weak in the low bits for short words.
+    */
+   private static int mix(int hash) {
+      hash *= 0x9E3779B9;
+      return hash ^ (hash >>> 16);
+   }
+}